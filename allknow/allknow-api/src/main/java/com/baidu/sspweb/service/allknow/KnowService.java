@@ -3,7 +3,11 @@
  */
 package com.baidu.sspweb.service.allknow;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+
+import com.baidu.sspweb.service.allknow.query.Query;
 
 /**
  * Created by whimsy on 15/10/24.
@@ -18,4 +22,62 @@ public interface KnowService {
      * @return 符合条件广告ID集合
      */
     List<Long> findDeliveryIds(Long userId, String keyword);
+
+    /**
+     * 同 findDeliveryIds, 返回基本类型数组, 不装箱
+     * @param userId 用户ID
+     * @param keyword 查询关键字
+     * @return 符合条件广告ID, 升序
+     */
+    long[] findDeliveryIdArray(Long userId, String keyword);
+
+    /**
+     * 批量查询, 一次调用查询同一用户的多个关键字, 所有关键字看到同一个版本的索引
+     * @param userId 用户ID
+     * @param keywords 查询关键字
+     * @return 关键字 -> 符合条件广告ID集合, 按关键字的顺序
+     */
+    Map<String, List<Long>> findDeliveryIds(Long userId, Collection<String> keywords);
+
+    /**
+     * 跨用户查询, 一次调用查询多个用户的同一个关键字
+     * @param userIds 用户ID
+     * @param keyword 查询关键字
+     * @return 用户ID -> 符合条件广告ID集合, 按用户ID的顺序
+     */
+    Map<Long, List<Long>> findDeliveryIds(Collection<Long> userIds, String keyword);
+
+    /**
+     * 分页查询 delivery Ids, 按ID升序
+     * @param userId 用户ID
+     * @param keyword 查询关键字
+     * @param offset 跳过的条数
+     * @param limit 最多返回的条数
+     * @return 符合条件广告ID集合
+     */
+    List<Long> findDeliveryIds(Long userId, String keyword, int offset, int limit);
+
+    /**
+     * @param userId 用户ID
+     * @param keyword 查询关键字
+     * @return 符合条件广告数量
+     */
+    int countDeliveryIds(Long userId, String keyword);
+
+    /**
+     * 在服务端计算布尔查询, 比如 "北京 AND 医院 NOT 删除", 不需要多次查询后在调用方求交
+     * @param userId 用户ID
+     * @param query 布尔查询
+     * @return 符合条件广告ID, 升序
+     */
+    long[] findDeliveryIdArray(Long userId, Query query);
+
+    /**
+     * 同 findDeliveryIdArray, 同时返回结果是否可能缺少最近的写入 <br/>
+     * 写入过多, 后台重建索引跟不上时, 服务可能返回不包含最近写入的结果, 标记与结果来自同一个版本的索引
+     * @param userId 用户ID
+     * @param keyword 查询关键字
+     * @return 符合条件广告ID, 升序, 以及结果是否可能缺少最近的写入
+     */
+    QueryResult findDeliveryIdResult(Long userId, String keyword);
 }
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * 查询结果和结果是否缺少最近的写入 <br/>
+ * 两者由同一个版本的索引得到, 不会出现结果跳过了增量而标记却为 false 的情况
+ *
+ * Created by whimsy on 15/12/24.
+ */
+public class QueryResult implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long[] ids;
+
+    private final boolean stale;
+
+    /**
+     * @param ids 符合条件的ID, 升序
+     * @param stale 查询是否跳过了最近的写入
+     */
+    public QueryResult(long[] ids, boolean stale) {
+        this.ids = ids;
+        this.stale = stale;
+    }
+
+    /**
+     * @return 符合条件的ID, 升序
+     */
+    public long[] getIds() {
+        return ids;
+    }
+
+    /**
+     * 写入过多, 后台重建索引跟不上时, 查询可能跳过最近的写入
+     *
+     * @return 结果是否可能缺少最近的写入
+     */
+    public boolean isStale() {
+        return stale;
+    }
+
+    @Override
+    public String toString() {
+        return "QueryResult{ids=" + Arrays.toString(ids) + ", stale=" + stale + '}';
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow.query;
+
+/**
+ * 关键字的匹配方式 <br/>
+ * <br/>
+ * 索引字串中每个条目前后都有分隔符, PREFIX, SUFFIX, EXACT 在后缀数组上连同分隔符一起查找, 不需要再逐条过滤 <br/>
+ *
+ * Created by whimsy on 15/12/17.
+ */
+public enum MatchMode {
+
+    /**
+     * like %keyword%
+     */
+    CONTAINS {
+        @Override
+        public boolean matches(String content, String keyword) {
+            return content.contains(keyword);
+        }
+    },
+
+    /**
+     * like keyword%
+     */
+    PREFIX {
+        @Override
+        public boolean matches(String content, String keyword) {
+            return content.startsWith(keyword);
+        }
+    },
+
+    /**
+     * like %keyword
+     */
+    SUFFIX {
+        @Override
+        public boolean matches(String content, String keyword) {
+            return content.endsWith(keyword);
+        }
+    },
+
+    /**
+     * content = keyword
+     */
+    EXACT {
+        @Override
+        public boolean matches(String content, String keyword) {
+            return content.equals(keyword);
+        }
+    };
+
+    /**
+     * @param content 条目的 content
+     * @param keyword 查询关键字
+     * @return content 是否以该方式匹配 keyword
+     */
+    public abstract boolean matches(String content, String keyword);
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow.query;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 布尔查询表达式 <br/>
+ * <br/>
+ * 比如 "北京 AND 医院 NOT 删除": <br/>
+ * <pre>
+ *     Query.and(Query.term("北京"), Query.term("医院"), Query.not(Query.term("删除")))
+ * </pre>
+ * NOT 只能作为 AND 的子句, 并且 AND 中至少有一个不是 NOT 的子句 <br/>
+ * 名称以 "北京" 开头: Query.term("北京", MatchMode.PREFIX) <br/>
+ *
+ * Created by whimsy on 15/12/16.
+ */
+public class Query implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 查询操作符
+     */
+    public enum Operator {
+        /**
+         * 单个关键字, 按 MatchMode 匹配
+         */
+        TERM,
+        /**
+         * 所有子句都满足
+         */
+        AND,
+        /**
+         * 至少一个子句满足
+         */
+        OR,
+        /**
+         * 子句不满足
+         */
+        NOT
+    }
+
+    private Operator operator;
+
+    /**
+     * TERM 的关键字
+     */
+    private String keyword;
+
+    /**
+     * TERM 的匹配方式
+     */
+    private MatchMode mode = MatchMode.CONTAINS;
+
+    /**
+     * AND, OR, NOT 的子句
+     */
+    private List<Query> clauses = new ArrayList<Query>();
+
+    /**
+     * 用于RPC反序列化
+     */
+    public Query() {
+    }
+
+    private Query(Operator operator, String keyword, List<Query> clauses) {
+        this.operator = operator;
+        this.keyword = keyword;
+        this.clauses = clauses;
+    }
+
+    /**
+     * @param keyword 查询关键字
+     * @return content 中包含 keyword
+     */
+    public static Query term(String keyword) {
+        return term(keyword, MatchMode.CONTAINS);
+    }
+
+    /**
+     * @param keyword 查询关键字
+     * @param mode 匹配方式
+     * @return content 按 mode 匹配 keyword, 比如 PREFIX 为 like keyword%
+     */
+    public static Query term(String keyword, MatchMode mode) {
+        if (keyword == null) {
+            throw new IllegalArgumentException("keyword should not be null");
+        }
+        if (mode == null) {
+            throw new IllegalArgumentException("mode should not be null");
+        }
+        Query query = new Query(Operator.TERM, keyword, new ArrayList<Query>());
+        query.mode = mode;
+        return query;
+    }
+
+    /**
+     * @return 所有子句都满足
+     */
+    public static Query and(Query... clauses) {
+        return new Query(Operator.AND, null, checkClauses(clauses));
+    }
+
+    /**
+     * @return 至少一个子句满足
+     */
+    public static Query or(Query... clauses) {
+        return new Query(Operator.OR, null, checkClauses(clauses));
+    }
+
+    /**
+     * @return 子句不满足, 只能作为 AND 的子句
+     */
+    public static Query not(Query clause) {
+        return new Query(Operator.NOT, null, checkClauses(clause));
+    }
+
+    private static List<Query> checkClauses(Query... clauses) {
+        if (clauses == null || clauses.length == 0) {
+            throw new IllegalArgumentException("clauses should not be empty");
+        }
+        for (Query clause : clauses) {
+            if (clause == null) {
+                throw new IllegalArgumentException("clause should not be null");
+            }
+        }
+        return new ArrayList<Query>(Arrays.asList(clauses));
+    }
+
+    public Operator getOperator() {
+        return operator;
+    }
+
+    public void setOperator(Operator operator) {
+        this.operator = operator;
+    }
+
+    public String getKeyword() {
+        return keyword;
+    }
+
+    public void setKeyword(String keyword) {
+        this.keyword = keyword;
+    }
+
+    public MatchMode getMode() {
+        return mode;
+    }
+
+    public void setMode(MatchMode mode) {
+        this.mode = mode;
+    }
+
+    public List<Query> getClauses() {
+        return clauses;
+    }
+
+    public void setClauses(List<Query> clauses) {
+        this.clauses = clauses;
+    }
+
+    @Override
+    public String toString() {
+        switch (operator) {
+            case TERM:
+                return mode == MatchMode.CONTAINS ? "\"" + keyword + "\"" : mode + " \"" + keyword + "\"";
+            case NOT:
+                return "NOT " + clauses.get(0);
+            default:
+                StringBuilder sb = new StringBuilder("(");
+                for (int i = 0; i < clauses.size(); i++) {
+                    if (i > 0) {
+                        sb.append(' ').append(operator).append(' ');
+                    }
+                    sb.append(clauses.get(i));
+                }
+                return sb.append(')').toString();
+        }
+    }
+}
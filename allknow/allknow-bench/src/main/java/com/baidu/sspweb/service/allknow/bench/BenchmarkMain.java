@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow.bench;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * benchmarks.jar 的入口, 参数与 JMH 命令行一致 <br/>
+ * -rf 和 -rff 都没有指定时结果以 JSON 写入 allknow-bench-yyyyMMdd-HHmmss.json, 便于比较不同版本的结果 <br/>
+ * 没有指定要运行的 benchmark 时运行本包下所有 benchmark
+ *
+ * Created by whimsy on 15/12/24.
+ */
+public final class BenchmarkMain {
+
+    private BenchmarkMain() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        if (cmd.shouldHelp() || cmd.shouldList()) {
+            // 只打印信息的命令交给 JMH 处理
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+
+        ChainedOptionsBuilder builder = new OptionsBuilder().parent(cmd);
+        if (!cmd.getResultFormat().hasValue() && !cmd.getResult().hasValue()) {
+            builder.resultFormat(ResultFormatType.JSON);
+            builder.result("allknow-bench-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".json");
+        }
+        if (cmd.getIncludes().isEmpty()) {
+            builder.include(BenchmarkMain.class.getPackage().getName() + ".*");
+        }
+        new Runner(builder.build()).run();
+    }
+}
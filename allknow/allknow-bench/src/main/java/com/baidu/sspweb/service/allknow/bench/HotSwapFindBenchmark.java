@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.baidu.sspweb.service.allknow.index.HotSwapKWIC;
+import com.baidu.sspweb.service.allknow.index.IndexConfig;
+import com.baidu.sspweb.service.allknow.index.KWIC;
+import com.baidu.sspweb.service.allknow.index.PairEntry;
+
+/**
+ * 一个段 + 不同长度的增量上的查询 <br/>
+ * 没有调度器, 增量不会被构建成段; 增量中的条目一半是新 ID, 一半覆盖段中的条目
+ *
+ * Created by whimsy on 15/12/24.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HotSwapFindBenchmark {
+
+    private static final int KEYWORDS = 1024;
+
+    @Param({"20000"})
+    public int size;
+
+    /**
+     * 增量长度, 跨过 gramThreshold 前后分别是顺序扫描和 gram 索引
+     */
+    @Param({"0", "16", "256", "4096"})
+    public int deltaSize;
+
+    private HotSwapKWIC index;
+
+    private String[] keywords;
+
+    private int next;
+
+    @Setup
+    public void setUp() {
+        List<PairEntry> entries = SyntheticCorpus.entries(size, 42L);
+
+        IndexConfig config = new IndexConfig();
+        config.setPlainIndexThreshold(size);
+        index = new HotSwapKWIC(KWIC.DEFAULT_BUILDER, 1L, null, config, null);
+        index.batchLoad(entries);
+
+        List<PairEntry> delta = SyntheticCorpus.entries(size - deltaSize / 2, deltaSize, 43L);
+        for (PairEntry entry : delta) {
+            index.insertOrUpdate(entry);
+        }
+        keywords = SyntheticCorpus.keywords(entries, KEYWORDS, 7L);
+    }
+
+    private String nextKeyword() {
+        return keywords[next++ & (KEYWORDS - 1)];
+    }
+
+    @Benchmark
+    public List<PairEntry> find() {
+        return index.find(nextKeyword());
+    }
+
+    @Benchmark
+    public long[] findIds() {
+        return index.findIds(nextKeyword());
+    }
+}
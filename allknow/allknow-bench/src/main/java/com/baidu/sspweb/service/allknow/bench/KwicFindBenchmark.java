@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.baidu.sspweb.service.allknow.index.KWIC;
+import com.baidu.sspweb.service.allknow.index.PairEntry;
+
+/**
+ * 单个不可变段上的查询, 关键字轮流使用, 避免只测到某一个词
+ *
+ * Created by whimsy on 15/12/24.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KwicFindBenchmark {
+
+    private static final int KEYWORDS = 1024;
+
+    @Param({"2000", "20000", "200000"})
+    public int size;
+
+    private KWIC kwic;
+
+    private String[] keywords;
+
+    private int next;
+
+    @Setup
+    public void setUp() {
+        List<PairEntry> entries = SyntheticCorpus.entries(size, 42L);
+        kwic = new KWIC(entries);
+        keywords = SyntheticCorpus.keywords(entries, KEYWORDS, 7L);
+    }
+
+    private String nextKeyword() {
+        return keywords[next++ & (KEYWORDS - 1)];
+    }
+
+    @Benchmark
+    public List<PairEntry> find() {
+        return kwic.find(nextKeyword());
+    }
+
+    @Benchmark
+    public long[] findIds() {
+        return kwic.findIds(nextKeyword());
+    }
+
+    @Benchmark
+    public int count() {
+        return kwic.count(nextKeyword());
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.baidu.sspweb.service.allknow.index.suffix.ManberBuilder;
+import com.baidu.sspweb.service.allknow.index.suffix.ParallelBuilder;
+import com.baidu.sspweb.service.allknow.index.suffix.SAISBuilder;
+import com.baidu.sspweb.service.allknow.index.suffix.SuffixArrayBuilder;
+
+import edu.princeton.cs.algs4.Manber;
+
+/**
+ * 构建 Manber 索引: 后缀数组 + lcp, 即构建一个段的主要开销
+ *
+ * Created by whimsy on 15/12/24.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ManberBuildBenchmark {
+
+    /**
+     * 条目数, delivery_5106311_data_medium.txt 约 2000 条
+     */
+    @Param({"2000", "20000", "200000"})
+    public int size;
+
+    @Param({"sais", "manber", "parallel"})
+    public String builder;
+
+    private String text;
+
+    private SuffixArrayBuilder suffixArrayBuilder;
+
+    @Setup
+    public void setUp() {
+        text = SyntheticCorpus.text(SyntheticCorpus.entries(size, 42L));
+        if ("manber".equals(builder)) {
+            suffixArrayBuilder = new ManberBuilder();
+        } else if ("parallel".equals(builder)) {
+            suffixArrayBuilder = new ParallelBuilder();
+        } else {
+            suffixArrayBuilder = new SAISBuilder();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (suffixArrayBuilder instanceof ParallelBuilder) {
+            ((ParallelBuilder) suffixArrayBuilder).shutdown();
+        }
+    }
+
+    @Benchmark
+    public Manber build() {
+        return new Manber(text, suffixArrayBuilder.build(text));
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow.bench;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.baidu.sspweb.service.allknow.index.IndexConfig;
+import com.baidu.sspweb.service.allknow.index.MonitoredIndex;
+import com.baidu.sspweb.service.allknow.index.PairEntry;
+import com.google.common.collect.ImmutableListMultimap;
+
+/**
+ * 多用户多线程的混合负载: 查询线程与写入线程同时访问同一个 MonitoredIndex, 后台按阈值构建和合并段 <br/>
+ * mixed 组为 3 个查询线程 + 1 个写入线程, readOnly 为 4 个查询线程, 两者对比即写入对查询的影响
+ *
+ * Created by whimsy on 15/12/24.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MonitoredIndexMixedBenchmark {
+
+    private static final int KEYWORDS = 1024;
+
+    @Param({"100"})
+    public int users;
+
+    @Param({"2000"})
+    public int entriesPerUser;
+
+    /**
+     * 查询结果缓存的字节数, 为 0 时每次查询都访问索引
+     */
+    @Param({"0", "67108864"})
+    public long cacheBytes;
+
+    private MonitoredIndex index;
+
+    private String[] keywords;
+
+    /**
+     * 写入的 ID 从 entriesPerUser 开始递增, 写入全部是新条目
+     */
+    private final AtomicLong nextId = new AtomicLong();
+
+    @Setup
+    public void setUp() {
+        IndexConfig config = new IndexConfig();
+        config.setCacheBytes(cacheBytes);
+        index = new MonitoredIndex(config);
+
+        ImmutableListMultimap.Builder<Long, PairEntry> datas = ImmutableListMultimap.builder();
+        for (long userId = 0; userId < users; ++userId) {
+            datas.putAll(userId, SyntheticCorpus.entries(entriesPerUser, userId));
+        }
+        index.load(datas.build());
+
+        keywords = SyntheticCorpus.keywords(SyntheticCorpus.entries(entriesPerUser, 0L), KEYWORDS, 7L);
+        nextId.set(entriesPerUser);
+    }
+
+    @TearDown
+    public void tearDown() {
+        index.closeThreadPool();
+    }
+
+    private long randomUser() {
+        return ThreadLocalRandom.current().nextInt(users);
+    }
+
+    private long[] query() {
+        return index.queryIds(randomUser(), keywords[ThreadLocalRandom.current().nextInt(KEYWORDS)]);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public long[] mixedQuery() {
+        return query();
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public void mixedPush() {
+        long id = nextId.getAndIncrement();
+        index.push(randomUser(), id, "北京条目" + id);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long[] readOnly() {
+        return query();
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow.bench;
+
+import java.util.List;
+import java.util.Random;
+
+import com.baidu.sspweb.service.allknow.index.PairEntry;
+import com.google.common.collect.Lists;
+
+import edu.princeton.cs.algs4.Manber;
+
+/**
+ * 按 delivery_5106311_data_medium.txt 的形态生成的合成数据 <br/>
+ * 约一半是 "创建于2012-05-29 09:54:24", 其余是 病种 + 分隔符 + 医院/地区, 部分带 "...删除于" 后缀 <br/>
+ * 同一个 seed 生成的数据相同, 不同次运行的结果可以比较
+ *
+ * Created by whimsy on 15/12/24.
+ */
+public final class SyntheticCorpus {
+
+    private static final String[] DISEASES = {
+        "癫痫", "白癜风", "牛皮癣", "性病", "甲亢", "哮喘", "减肥", "尖锐湿疣", "包皮包茎", "包皮过长",
+        "肛周湿疹", "皮肤肿瘤", "艾滋病", "鱼鳞病", "荨麻疹", "皮肤性病打包", "皮肤性病一级科室", "性交障碍"
+    };
+
+    private static final String[] CITIES = {
+        "北京", "上海", "天津", "重庆", "河北", "山西", "内蒙古", "辽宁", "吉林", "黑龙江",
+        "河南", "广东", "广州", "大连", "西南地区", "江苏", "浙江", "四川"
+    };
+
+    private static final String[] HOSPITALS = {
+        "红旗精神医院", "解放军307医院", "京科银康医院", "星海医院", "德胜门中医院", "仁爱", "民安医院",
+        "东方博大", "军颐", "中医院"
+    };
+
+    private static final String[] SEPARATORS = {"-", "--", "---", " "};
+
+    private static final String[] SUFFIXES = {"全国", "默认", "专题", "商务通", "全国（除北京）", "（外科）全国"};
+
+    private SyntheticCorpus() {
+    }
+
+    /**
+     * @param size 条目数, ID 为 [0, size)
+     * @param seed 随机种子
+     * @return 合成的数据条目
+     */
+    public static List<PairEntry> entries(int size, long seed) {
+        return entries(0, size, seed);
+    }
+
+    /**
+     * @param firstId 第一个条目的 ID, 之后依次递增
+     * @param size 条目数
+     * @param seed 随机种子
+     * @return 合成的数据条目
+     */
+    public static List<PairEntry> entries(long firstId, int size, long seed) {
+        Random random = new Random(seed);
+        List<PairEntry> entries = Lists.newArrayListWithCapacity(size);
+        for (int i = 0; i < size; ++i) {
+            entries.add(new PairEntry(firstId + i, content(random)));
+        }
+        return entries;
+    }
+
+    /**
+     * 生成一条 content
+     */
+    static String content(Random random) {
+        if (random.nextInt(2) == 0) {
+            return "创建于" + timestamp(random);
+        }
+
+        StringBuilder sb = new StringBuilder(pick(random, DISEASES)).append(pick(random, SEPARATORS));
+        switch (random.nextInt(4)) {
+            case 0:
+                sb.append(pick(random, CITIES)).append(pick(random, HOSPITALS));
+                break;
+            case 1:
+                sb.append(pick(random, CITIES)).append('-').append(pick(random, CITIES))
+                        .append('-').append(pick(random, CITIES));
+                break;
+            case 2:
+                sb.append("定向").append(pick(random, CITIES));
+                break;
+            default:
+                sb.append(random.nextInt(5) + 1).append(pick(random, SUFFIXES));
+                break;
+        }
+        if (random.nextInt(4) == 0) {
+            sb.append("...删除于").append(timestamp(random));
+        }
+        return sb.toString();
+    }
+
+    private static String timestamp(Random random) {
+        return String.format("%d-%02d-%02d %02d:%02d:%02d", 2012 + random.nextInt(3), 1 + random.nextInt(12),
+                1 + random.nextInt(28), random.nextInt(24), random.nextInt(60), random.nextInt(60));
+    }
+
+    private static String pick(Random random, String[] candidates) {
+        return candidates[random.nextInt(candidates.length)];
+    }
+
+    /**
+     * 查询关键字: 线上常见的高频词, 从条目中截取的 1 到 4 个字的子串, 以及不存在的词
+     *
+     * @param entries 截取子串的条目
+     * @param count 关键字个数
+     * @param seed 随机种子
+     * @return 关键字
+     */
+    public static String[] keywords(List<PairEntry> entries, int count, long seed) {
+        Random random = new Random(seed);
+        String[] keywords = new String[count];
+        for (int i = 0; i < count; ++i) {
+            switch (random.nextInt(8)) {
+                case 0:
+                    keywords[i] = pick(random, new String[] {"全国", "北京", "创建于2012", "删除于", "-"});
+                    break;
+                case 1:
+                    keywords[i] = "不存在的关键字" + random.nextInt(100);
+                    break;
+                default:
+                    String content = entries.get(random.nextInt(entries.size())).getContent();
+                    int length = Math.min(content.length(), 1 + random.nextInt(4));
+                    int start = random.nextInt(content.length() - length + 1);
+                    keywords[i] = content.substring(start, start + length);
+                    break;
+            }
+        }
+        return keywords;
+    }
+
+    /**
+     * @return 与 KWIC 构建时相同格式的 Manber 索引字串
+     */
+    public static String text(List<PairEntry> entries) {
+        StringBuilder sb = new StringBuilder(Manber.START_SENTRY);
+        for (PairEntry entry : entries) {
+            sb.append(entry.getContent()).append(Manber.WORD_SEPARATOR);
+        }
+        return sb.append(Manber.END_SENTRY).toString();
+    }
+}
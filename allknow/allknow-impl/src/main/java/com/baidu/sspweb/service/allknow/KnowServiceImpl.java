@@ -3,17 +3,25 @@
  */
 package com.baidu.sspweb.service.allknow;
 
+import java.io.File;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import javax.annotation.PostConstruct;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import com.baidu.sspweb.service.allknow.index.PairEntry;
 import com.baidu.sspweb.service.allknow.index.impl.DeliveryIndex;
+import com.baidu.sspweb.service.allknow.query.Query;
 import com.google.common.base.Function;
+import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Longs;
 
 /**
  * Created by whimsy on 15/10/24.
@@ -21,23 +29,112 @@ import com.google.common.collect.Lists;
 @Service
 public class KnowServiceImpl implements KnowService {
 
+    private static final Function<PairEntry, Long> TO_ID = new Function<PairEntry, Long>() {
+        @Override
+        public Long apply(PairEntry input) {
+            return input.getId();
+        }
+    };
+
     @Autowired
     DeliveryIndex deliveryIndex;
 
+    /**
+     * 索引快照目录, 为空时不使用快照
+     */
+    @Value("${allknow.snapshot.dir:}")
+    String snapshotDir;
+
+    /**
+     * 打开快照时是否校验全部数据, 不校验时打开快照为 O(1)
+     */
+    @Value("${allknow.snapshot.verify:false}")
+    boolean snapshotVerify;
+
+    /**
+     * 预写日志目录, 为空时不记录日志
+     */
+    @Value("${allknow.wal.dir:}")
+    String walDir;
+
+    /**
+     * 注册 JMX MBean 的名字, 为空时不注册
+     */
+    @Value("${allknow.jmx.name:}")
+    String jmxName;
+
+    public KnowServiceImpl() {
+    }
+
+    /**
+     * @param deliveryIndex 不通过 Spring 注入时使用的索引
+     */
+    public KnowServiceImpl(DeliveryIndex deliveryIndex) {
+        this.deliveryIndex = deliveryIndex;
+    }
+
     @PostConstruct
     public void initIndex() {
-        // TODO
+        if (!Strings.isNullOrEmpty(snapshotDir)) {
+            deliveryIndex.openSnapshots(new File(snapshotDir), snapshotVerify);
+        }
+        if (!Strings.isNullOrEmpty(walDir)) {
+            deliveryIndex.openLog(new File(walDir));
+        }
+        if (!Strings.isNullOrEmpty(jmxName)) {
+            deliveryIndex.registerMBeans(jmxName);
+        }
     }
 
     @Override
     public List<Long> findDeliveryIds(Long userId, String keyword) {
-        List<PairEntry> res = deliveryIndex.query(userId, keyword);
-
-        return Lists.newArrayList(Lists.transform(res, new Function<PairEntry, Long>() {
-            @Override
-            public Long apply(PairEntry input) {
-                return input.getId();
-            }
-        }));
+        return Lists.newArrayList(Longs.asList(deliveryIndex.queryIds(userId, keyword)));
+    }
+
+    @Override
+    public Map<String, List<Long>> findDeliveryIds(Long userId, Collection<String> keywords) {
+        Map<String, List<PairEntry>> res = deliveryIndex.query(userId, keywords);
+
+        Map<String, List<Long>> ids = Maps.newLinkedHashMap();
+        for (Map.Entry<String, List<PairEntry>> entry : res.entrySet()) {
+            ids.put(entry.getKey(), Lists.newArrayList(Lists.transform(entry.getValue(), TO_ID)));
+        }
+        return ids;
+    }
+
+    @Override
+    public Map<Long, List<Long>> findDeliveryIds(Collection<Long> userIds, String keyword) {
+        Map<Long, List<Long>> ids = Maps.newLinkedHashMap();
+        for (Long userId : userIds) {
+            ids.put(userId, findDeliveryIds(userId, keyword));
+        }
+        return ids;
+    }
+
+    @Override
+    public long[] findDeliveryIdArray(Long userId, String keyword) {
+        return deliveryIndex.queryIds(userId, keyword);
+    }
+
+    @Override
+    public List<Long> findDeliveryIds(Long userId, String keyword, int offset, int limit) {
+        List<PairEntry> res = deliveryIndex.query(userId, keyword, offset, limit);
+
+        return Lists.newArrayList(Lists.transform(res, TO_ID));
+    }
+
+    @Override
+    public int countDeliveryIds(Long userId, String keyword) {
+        return deliveryIndex.count(userId, keyword);
+    }
+
+    @Override
+    public long[] findDeliveryIdArray(Long userId, Query query) {
+        return deliveryIndex.queryIds(userId, query);
+    }
+
+    @Override
+    public QueryResult findDeliveryIdResult(Long userId, String keyword) {
+        return deliveryIndex.queryIdResult(userId, keyword);
     }
 }
@@ -3,10 +3,17 @@
  */
 package com.baidu.sspweb.service.allknow.index;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.springframework.util.Assert;
 
+import com.baidu.sspweb.service.allknow.QueryResult;
+import com.baidu.sspweb.service.allknow.query.Query;
 import com.google.common.collect.Multimap;
 
 /**
@@ -22,7 +29,18 @@ public abstract class AbstractIndex implements Index {
     /**
      * 组合后台线程监控的热替换索引
      */
-    protected MonitoredIndex monitoredIndex = new MonitoredIndex();
+    protected final MonitoredIndex monitoredIndex;
+
+    protected AbstractIndex() {
+        this(new IndexConfig());
+    }
+
+    /**
+     * @param config 索引参数, 由 allknow.properties 配置
+     */
+    protected AbstractIndex(IndexConfig config) {
+        monitoredIndex = new MonitoredIndex(config);
+    }
 
     /**
      * In order to shutdown gracefully, need to call
@@ -32,6 +50,62 @@ public abstract class AbstractIndex implements Index {
         monitoredIndex.closeThreadPool();
     }
 
+    /**
+     * 从快照目录打开索引, 之后每次替换索引都写入快照
+     *
+     * @param dir 快照目录
+     * @param verify 打开时是否校验全部数据, 需要读取整个文件
+     */
+    public void openSnapshots(File dir, boolean verify) {
+        Assert.notNull(dir);
+
+        monitoredIndex.openSnapshots(new SnapshotStore(dir, verify));
+    }
+
+    /**
+     * 打开预写日志并恢复上次退出后的写入, 需要先打开快照
+     *
+     * @param dir 预写日志目录
+     */
+    public void openLog(File dir) {
+        Assert.notNull(dir);
+
+        try {
+            monitoredIndex.openLog(dir);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot open write ahead log " + dir, e);
+        }
+    }
+
+    /**
+     * 同步把用户的增量构建成段, 不等待增量达到阈值
+     *
+     * @param userId 用户
+     */
+    public void reIndex(Long userId) {
+        Assert.notNull(userId);
+
+        monitoredIndex.reIndex(userId);
+    }
+
+    /**
+     * @return 各操作的耗时分布和段替换次数
+     */
+    public IndexMetrics getMetrics() {
+        return monitoredIndex.getMetrics();
+    }
+
+    /**
+     * 注册索引状况和耗时分布的 MBean, close 时注销
+     *
+     * @param name 区分同一进程中的多个索引
+     */
+    public void registerMBeans(String name) {
+        Assert.notNull(name);
+
+        monitoredIndex.registerMBeans(name);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -65,5 +139,100 @@ public abstract class AbstractIndex implements Index {
         return monitoredIndex.query(userId, keyword);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, List<PairEntry>> query(Long userId, Collection<String> keywords) {
+        Assert.notNull(userId);
+        Assert.notNull(keywords);
+        Assert.noNullElements(keywords.toArray());
+
+        return monitoredIndex.query(userId, keywords);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long[] queryIds(Long userId, String keyword) {
+        Assert.notNull(userId);
+        Assert.notNull(keyword);
 
+        return monitoredIndex.queryIds(userId, keyword);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<PairEntry> query(Long userId, String keyword, int offset, int limit) {
+        Assert.notNull(userId);
+        Assert.notNull(keyword);
+        Assert.isTrue(offset >= 0, "offset should not be negative");
+        Assert.isTrue(limit >= 0, "limit should not be negative");
+
+        return monitoredIndex.query(userId, keyword, offset, limit);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int count(Long userId, String keyword) {
+        Assert.notNull(userId);
+        Assert.notNull(keyword);
+
+        return monitoredIndex.count(userId, keyword);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long[] queryIds(Long userId, Query query) {
+        Assert.notNull(userId);
+        Assert.notNull(query);
+
+        return monitoredIndex.queryIds(userId, query);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public QueryResult queryIdResult(Long userId, String keyword) {
+        Assert.notNull(userId);
+        Assert.notNull(keyword);
+
+        return monitoredIndex.queryIdResult(userId, keyword);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<Long> userIds() {
+        return monitoredIndex.userIds();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<PairEntry> export(Long userId) {
+        Assert.notNull(userId);
+
+        return monitoredIndex.export(userId);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void remove(Long userId) {
+        Assert.notNull(userId);
+
+        monitoredIndex.remove(userId);
+    }
 }
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow.index;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Aho-Corasick 多模式匹配自动机 <br/>
+ * <br/>
+ * 一次扫描文本, 找出文本中出现的所有关键字, 用于批量查询时对增量只扫描一遍 <br/>
+ * 构建完成后不可变, 可以被多个线程同时使用 <br/>
+ *
+ * Created by whimsy on 15/12/18.
+ */
+final class AhoCorasick {
+
+    /**
+     * goto[state] : 字符 -> 下一个状态
+     */
+    private final List<Map<Character, Integer>> transitions = Lists.newArrayList();
+
+    /**
+     * fail[state] : 失配时跳转的状态, 即当前状态最长的真后缀对应的状态
+     */
+    private int[] fail;
+
+    /**
+     * outputs[state] : 到达该状态时匹配的关键字序号, 已合并失配链上的输出
+     */
+    private final List<BitSet> outputs = Lists.newArrayList();
+
+    /**
+     * 关键字数量
+     */
+    private final int size;
+
+    /**
+     * @param keywords 关键字, 序号为在列表中的下标
+     */
+    AhoCorasick(List<String> keywords) {
+        this.size = keywords.size();
+        newState();
+        for (int i = 0; i < keywords.size(); i++) {
+            String keyword = keywords.get(i);
+            int state = 0;
+            for (int k = 0; k < keyword.length(); k++) {
+                Integer next = transitions.get(state).get(keyword.charAt(k));
+                if (next == null) {
+                    next = newState();
+                    transitions.get(state).put(keyword.charAt(k), next);
+                }
+                state = next;
+            }
+            outputs.get(state).set(i);
+        }
+        buildFail();
+    }
+
+    private int newState() {
+        transitions.add(Maps.<Character, Integer>newHashMap());
+        outputs.add(new BitSet());
+        return transitions.size() - 1;
+    }
+
+    /**
+     * 按层次遍历计算失配指针, 父状态的失配指针先于子状态确定
+     */
+    private void buildFail() {
+        fail = new int[transitions.size()];
+        Queue<Integer> queue = new ArrayDeque<Integer>();
+        for (Integer child : transitions.get(0).values()) {
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            for (Map.Entry<Character, Integer> edge : transitions.get(state).entrySet()) {
+                int child = edge.getValue();
+                int f = fail[state];
+                while (f != 0 && !transitions.get(f).containsKey(edge.getKey())) {
+                    f = fail[f];
+                }
+                Integer target = transitions.get(f).get(edge.getKey());
+                fail[child] = target == null || target == child ? 0 : target;
+                outputs.get(child).or(outputs.get(fail[child]));
+                queue.add(child);
+            }
+        }
+    }
+
+    /**
+     * 扫描一遍文本 <br/>
+     * 所有关键字都已出现时提前结束
+     *
+     * @param text 待匹配的文本
+     * @return 在文本中出现的关键字序号
+     */
+    BitSet match(String text) {
+        BitSet res = (BitSet) outputs.get(0).clone();
+        int state = 0;
+        for (int i = 0; i < text.length() && res.cardinality() < size; i++) {
+            char c = text.charAt(i);
+            Integer next = transitions.get(state).get(c);
+            while (next == null && state != 0) {
+                state = fail[state];
+                next = transitions.get(state).get(c);
+            }
+            state = next == null ? 0 : next;
+            res.or(outputs.get(state));
+        }
+        return res;
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow.index;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import com.baidu.sspweb.service.allknow.query.MatchMode;
+import com.baidu.sspweb.service.allknow.query.Query;
+import com.google.common.collect.Lists;
+
+/**
+ * 在索引内计算布尔查询 <br/>
+ * <br/>
+ * 1. AND 从估算结果最少的子句开始, 估算值为后缀数组中匹配区间的大小 <br/>
+ * 2. 其余子句的估算值不大于当前结果的 FILTER_FACTOR 倍时, 求出ID后与当前结果按有序数组求交(差) <br/>
+ * 3. 否则不再查询该子句, 直接检查当前结果中每个条目的 content <br/>
+ * 4. OR 对子句的有序ID数组求并 <br/>
+ *
+ * @see com.baidu.sspweb.service.allknow.query.Query
+ *
+ * Created by whimsy on 15/12/16.
+ */
+final class BooleanQueryEvaluator {
+
+    /**
+     * 子句的估算结果数超过当前结果数的该倍数时, 逐个检查当前结果
+     */
+    private static final int FILTER_FACTOR = 8;
+
+    /**
+     * 两个数组的长度相差超过该倍数时, 用二分查找求交
+     */
+    private static final int GALLOP_FACTOR = 16;
+
+    /**
+     * 索引的一个一致的版本
+     */
+    interface Source {
+
+        /**
+         * @return 按 mode 匹配 keyword 的条目ID, 升序
+         */
+        long[] ids(String keyword, MatchMode mode);
+
+        /**
+         * @return 按 mode 匹配 keyword 的条目数的上界估算, 不访问条目
+         */
+        long estimate(String keyword, MatchMode mode);
+
+        /**
+         * @return 条目的 content, 条目不存在时返回 null
+         */
+        String content(long id);
+    }
+
+    private final Source source;
+
+    BooleanQueryEvaluator(Source source) {
+        this.source = source;
+    }
+
+    /**
+     * @return 满足查询的条目ID, 升序
+     * @throws IllegalArgumentException NOT 不是 AND 的子句, 或者 AND 的子句全是 NOT 时
+     */
+    long[] evaluate(Query query) {
+        switch (query.getOperator()) {
+            case TERM:
+                return source.ids(query.getKeyword(), query.getMode());
+            case OR:
+                return or(query.getClauses());
+            case AND:
+                return and(query.getClauses());
+            default:
+                throw new IllegalArgumentException("NOT should be a clause of AND: " + query);
+        }
+    }
+
+    private long[] or(List<Query> clauses) {
+        long[] res = new long[0];
+        for (Query clause : clauses) {
+            res = union(res, evaluate(clause));
+        }
+        return res;
+    }
+
+    private long[] and(List<Query> clauses) {
+        List<Query> positives = Lists.newArrayList();
+        List<Query> negatives = Lists.newArrayList();
+        for (Query clause : clauses) {
+            if (clause.getOperator() == Query.Operator.NOT) {
+                negatives.add(clause.getClauses().get(0));
+            } else {
+                positives.add(clause);
+            }
+        }
+        if (positives.isEmpty()) {
+            throw new IllegalArgumentException("AND should have a clause other than NOT: " + clauses);
+        }
+
+        final long[] estimates = new long[positives.size()];
+        Integer[] order = new Integer[positives.size()];
+        for (int i = 0; i < positives.size(); i++) {
+            estimates[i] = estimate(positives.get(i));
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Long.compare(estimates[o1], estimates[o2]);
+            }
+        });
+
+        long[] res = evaluate(positives.get(order[0]));
+        for (int i = 1; i < order.length && res.length > 0; i++) {
+            Query clause = positives.get(order[i]);
+            if (estimates[order[i]] <= (long) res.length * FILTER_FACTOR) {
+                res = intersect(res, evaluate(clause));
+            } else {
+                res = filter(res, clause, false);
+            }
+        }
+        for (int i = 0; i < negatives.size() && res.length > 0; i++) {
+            Query clause = negatives.get(i);
+            if (estimate(clause) <= (long) res.length * FILTER_FACTOR) {
+                res = subtract(res, evaluate(clause));
+            } else {
+                res = filter(res, clause, true);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return 子句结果数的上界估算
+     */
+    private long estimate(Query query) {
+        switch (query.getOperator()) {
+            case TERM:
+                return source.estimate(query.getKeyword(), query.getMode());
+            case OR:
+                long sum = 0;
+                for (Query clause : query.getClauses()) {
+                    sum = Math.min(Long.MAX_VALUE / 2, sum + estimate(clause));
+                }
+                return sum;
+            case AND:
+                long min = Long.MAX_VALUE;
+                for (Query clause : query.getClauses()) {
+                    if (clause.getOperator() != Query.Operator.NOT) {
+                        min = Math.min(min, estimate(clause));
+                    }
+                }
+                return min;
+            default:
+                return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * 逐个检查条目的 content
+     *
+     * @param negate true 时保留不满足子句的条目
+     */
+    private long[] filter(long[] ids, Query clause, boolean negate) {
+        long[] res = new long[ids.length];
+        int size = 0;
+        for (long id : ids) {
+            String content = source.content(id);
+            if (content != null && matches(clause, content) != negate) {
+                res[size++] = id;
+            }
+        }
+        return Arrays.copyOf(res, size);
+    }
+
+    /**
+     * @return content 是否满足查询
+     */
+    static boolean matches(Query query, String content) {
+        switch (query.getOperator()) {
+            case TERM:
+                return query.getMode().matches(content, query.getKeyword());
+            case AND:
+                for (Query clause : query.getClauses()) {
+                    if (!matches(clause, content)) {
+                        return false;
+                    }
+                }
+                return true;
+            case OR:
+                for (Query clause : query.getClauses()) {
+                    if (matches(clause, content)) {
+                        return true;
+                    }
+                }
+                return false;
+            default:
+                return !matches(query.getClauses().get(0), content);
+        }
+    }
+
+    /**
+     * @return 两个有序数组的交集
+     */
+    static long[] intersect(long[] a, long[] b) {
+        if (a.length > b.length) {
+            return intersect(b, a);
+        }
+        long[] res = new long[a.length];
+        int size = 0;
+        if ((long) a.length * GALLOP_FACTOR < b.length) {
+            // 短数组中的每个ID在长数组中二分查找
+            int from = 0;
+            for (long id : a) {
+                int pos = Arrays.binarySearch(b, from, b.length, id);
+                if (pos >= 0) {
+                    res[size++] = id;
+                    from = pos + 1;
+                } else {
+                    from = -pos - 1;
+                }
+            }
+        } else {
+            int i = 0;
+            int j = 0;
+            while (i < a.length && j < b.length) {
+                if (a[i] < b[j]) {
+                    i++;
+                } else if (a[i] > b[j]) {
+                    j++;
+                } else {
+                    res[size++] = a[i];
+                    i++;
+                    j++;
+                }
+            }
+        }
+        return Arrays.copyOf(res, size);
+    }
+
+    /**
+     * @return 两个有序数组的并集
+     */
+    static long[] union(long[] a, long[] b) {
+        if (a.length == 0) {
+            return b;
+        }
+        if (b.length == 0) {
+            return a;
+        }
+        long[] res = new long[a.length + b.length];
+        int size = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length || j < b.length) {
+            if (j == b.length || (i < a.length && a[i] < b[j])) {
+                res[size++] = a[i++];
+            } else if (i == a.length || b[j] < a[i]) {
+                res[size++] = b[j++];
+            } else {
+                res[size++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(res, size);
+    }
+
+    /**
+     * @return 有序数组 a 中不在 b 中的ID
+     */
+    static long[] subtract(long[] a, long[] b) {
+        long[] res = new long[a.length];
+        int size = 0;
+        int j = 0;
+        for (long id : a) {
+            while (j < b.length && b[j] < id) {
+                j++;
+            }
+            if (j == b.length || b[j] != id) {
+                res[size++] = id;
+            }
+        }
+        return Arrays.copyOf(res, size);
+    }
+}
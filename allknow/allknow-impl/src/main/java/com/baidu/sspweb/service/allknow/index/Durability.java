@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow.index;
+
+/**
+ * 预写日志的持久化方式, 越靠后写入越慢, 崩溃时丢失的写入越少
+ *
+ * @see IndexConfig#getWalDurability
+ * @see WriteAheadLog
+ *
+ * Created by whimsy on 15/12/22.
+ */
+public enum Durability {
+
+    /**
+     * 只写入操作系统缓存, 不 fsync, 进程崩溃不丢数据, 机器掉电可能丢失
+     */
+    NONE,
+
+    /**
+     * 后台线程每 walSyncMillis 毫秒 fsync 一次, 写入不等待, 掉电最多丢失这段时间的写入
+     */
+    GROUP,
+
+    /**
+     * 写入等待 fsync 完成后返回, 同时等待的写入共用一次 fsync(group commit)
+     */
+    SYNC
+}
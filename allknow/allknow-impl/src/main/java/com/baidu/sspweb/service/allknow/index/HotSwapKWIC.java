@@ -3,32 +3,46 @@
  */
 package com.baidu.sspweb.service.allknow.index;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.baidu.sspweb.service.allknow.exception.IndexParamException;
+import com.baidu.sspweb.service.allknow.QueryResult;
+import com.baidu.sspweb.service.allknow.index.suffix.SuffixArrayBuilder;
+import com.baidu.sspweb.service.allknow.query.MatchMode;
+import com.baidu.sspweb.service.allknow.query.Query;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Longs;
 
 /**
  * 热替换索引<br/>
  * <br/>
  * 重建索引耗时长， 为了<b>不阻塞用户的查询请求</b>。 <br/>
- * 0. 数据分段(suffixIndexes + plainIndexes) 累计到足够多变化后， 再重建索引
- * 1. 将重建索引任务交给后台线程。 <br/>
- * 2. 当后台线程重建索引时， 用户线程继续访问旧的的索引。  <br/>
- * 3. 重建索引完成后， 替换索引 <br/>
+ * 0. 数据分段: 增量(delta) + 多个不可变的后缀索引段(segments) <br/>
+ * 1. 增量累计到足够多变化后， 通知调度器, 后台线程只把增量构建成一个新的小段， 不重建整个用户的数据 <br/>
+ * 2. 同一层(大小相近)的段数量达到 mergeFactor 时， 后台线程把它们合并成一个大段 <br/>
+ * 3. 构建和合并时， 用户线程继续访问旧的段， 完成后替换段列表 <br/>
+ * 4. 查询访问所有段， 相同ID以最新的数据为准: delta > flushing > segments(新 -> 旧) <br/>
  * <br/>
+ * 增量 + 段列表 组成不可变的版本(Version), 通过 AtomicReference 发布: <br/>
+ * 查询读取一次当前版本后不加任何锁; 写入在旧版本上追加节点生成新版本, CAS 替换 <br/>
  *
  * @see com.baidu.sspweb.service.allknow.index.MonitoredIndex
  *
@@ -39,111 +53,578 @@ public class HotSwapKWIC {
     static Logger logger = LoggerFactory.getLogger(HotSwapKWIC.class);
 
     /**
-     * 普通索引的长度限制， 当长度大于阈值的时候，
-     * PLAIN_INDEX_THRESHOLD 重构索引
-     *
-     * 需要通过实验部署调整该数值
+     * 增量中每个节点除 content 外的估算字节数: 节点, PairEntry, String 对象头和 gram 倒排索引中的位置
      */
-    private static final int PLAIN_INDEX_THRESHOLD = 1000;
+    private static final long DELTA_NODE_BYTES = 96L;
 
     /**
-     *  当普通索引长度超过阈值，  后台线程无法及时重建索引, 即
-     *  普通索引长度 PLAIN_INDEX_THRESHOLD * TOO_LONG_FACTOR
-     *  打出报警日志， 并且抛出异常
-     *
-     *  需要通过实验部署调整该数值
+     * 增量长度阈值, 合并因子等参数
+     */
+    private final IndexConfig config;
+
+    /**
+     * 增量达到阈值或者有可以合并的段时, 通知调度器重建, 为 null 时由调用者调用 tryReIndex
+     */
+    private final ReIndexScheduler scheduler;
+
+    /**
+     * 上次构建段之后的查询次数, 用于计算重建的优先级
      */
-    private static final int TOO_LONG_FACTOR = 2;
+    private final AtomicLong queries = new AtomicLong();
 
     /**
-     * 后缀索引, 构建两个用以热替换
+     * 增量过长时各种处理方式的触发次数
      */
-    private KWIC [] suffixIndexes =  new KWIC[2];
+    private final OverflowStats overflowStats;
 
     /**
-     * 增量存储索引， 构造两个用以热替换
+     * 构建和合并段的耗时, 段替换次数
      */
-    private Map<Long, PairEntry> [] plainIndexes = new TreeMap[2];
+    private final IndexMetrics metrics;
 
     /**
-     * 当前活跃的索引下标
+     * THROTTLE_WRITERS 时写入线程在此等待增量被移出
      */
-    private int activeIndex = 0;
+    private final Object overflowMonitor = new Object();
 
     /**
-     * 增量存储索引锁
+     * 串行化对增量的修改, 保证 gram 倒排索引中的节点都在已发布的增量中 <br/>
+     * 只在追加节点和移出增量时持有, 查询不需要
      */
-    private ReadWriteLock plainIndexLock = new ReentrantReadWriteLock();
+    private final Lock appendLock = new ReentrantLock();
 
     /**
-     * 索引替换锁
+     * 预写日志, 为 null 时不记录日志
+     */
+    private volatile WriteAheadLog log;
+
+    /**
+     * 当前版本, 查询只读取一次
+     */
+    private final AtomicReference<Version> version = new AtomicReference<Version>(Version.EMPTY);
+
+    /**
+     * 构建 + 合并段的锁, 同一时间只有一个后台线程修改段
      */
     private Lock switchIndexLock = new ReentrantLock();
 
+    /**
+     * 用户被删除后为 true, 之后不再构建, 合并段或写快照, 只在持有 switchIndexLock 时读写
+     */
+    private boolean closed;
+
+    /**
+     * 所属用户, 用于写快照
+     */
+    private final Long userId;
+
+    /**
+     * 快照存储, 为 null 时不写快照
+     */
+    private final SnapshotStore snapshotStore;
+
+    /**
+     * 构建段使用的后缀数组构建算法
+     */
+    private final SuffixArrayBuilder builder;
+
+    /**
+     * 段的序号, 越大越新
+     */
+    private final AtomicLong segmentSeq = new AtomicLong();
+
     public HotSwapKWIC() {
-        suffixIndexes[activeIndex] = new KWIC(new ArrayList<PairEntry>());
+        this(KWIC.DEFAULT_BUILDER);
+    }
+
+    /**
+     * @param builder 构建段时使用的后缀数组构建算法
+     */
+    public HotSwapKWIC(SuffixArrayBuilder builder) {
+        this(builder, null, null);
+    }
+
+    /**
+     * @param builder 构建段时使用的后缀数组构建算法
+     * @param userId 所属用户
+     * @param snapshotStore 每次构建或合并段后写入快照, 可以为 null
+     */
+    public HotSwapKWIC(SuffixArrayBuilder builder, Long userId, SnapshotStore snapshotStore) {
+        this(builder, userId, snapshotStore, new IndexConfig(), null);
+    }
+
+    /**
+     * @param builder 构建段时使用的后缀数组构建算法
+     * @param userId 所属用户
+     * @param snapshotStore 每次构建或合并段后写入快照, 可以为 null
+     * @param config 索引参数
+     * @param scheduler 需要重建时通知的调度器, 为 null 时由调用者调用 tryReIndex
+     */
+    public HotSwapKWIC(SuffixArrayBuilder builder, Long userId, SnapshotStore snapshotStore,
+                       IndexConfig config, ReIndexScheduler scheduler) {
+        this(builder, userId, snapshotStore, config, scheduler, new OverflowStats());
+    }
 
-        plainIndexes[activeIndex] = Maps.newTreeMap();
-        plainIndexes[other()] = Maps.newTreeMap();
+    /**
+     * @param builder 构建段时使用的后缀数组构建算法
+     * @param userId 所属用户
+     * @param snapshotStore 每次构建或合并段后写入快照, 可以为 null
+     * @param config 索引参数
+     * @param scheduler 需要重建时通知的调度器, 为 null 时由调用者调用 tryReIndex
+     * @param overflowStats 增量过长时的计数, 可以被多个用户共享
+     */
+    public HotSwapKWIC(SuffixArrayBuilder builder, Long userId, SnapshotStore snapshotStore,
+                       IndexConfig config, ReIndexScheduler scheduler, OverflowStats overflowStats) {
+        this(builder, userId, snapshotStore, config, scheduler, overflowStats, new IndexMetrics());
+    }
 
+    /**
+     * @param builder 构建段时使用的后缀数组构建算法
+     * @param userId 所属用户
+     * @param snapshotStore 每次构建或合并段后写入快照, 可以为 null
+     * @param config 索引参数
+     * @param scheduler 需要重建时通知的调度器, 为 null 时由调用者调用 tryReIndex
+     * @param overflowStats 增量过长时的计数, 可以被多个用户共享
+     * @param metrics 构建和合并段的耗时, 可以被多个用户共享
+     */
+    public HotSwapKWIC(SuffixArrayBuilder builder, Long userId, SnapshotStore snapshotStore, IndexConfig config,
+                       ReIndexScheduler scheduler, OverflowStats overflowStats, IndexMetrics metrics) {
+        this.builder = builder;
+        this.userId = userId;
+        this.snapshotStore = snapshotStore;
+        this.config = config;
+        this.scheduler = scheduler;
+        this.overflowStats = overflowStats;
+        this.metrics = metrics;
     }
 
     /**
-     * 获取 模糊匹配 query 的数据集
+     * 从快照打开用户的所有段
+     *
+     * @param seqs 快照中段的序号
+     * @throws IOException 打开快照失败
+     */
+    public static HotSwapKWIC open(SuffixArrayBuilder builder, Long userId,
+                                   SnapshotStore snapshotStore, Collection<Long> seqs) throws IOException {
+        return open(builder, userId, snapshotStore, seqs, new IndexConfig(), null, new OverflowStats(),
+                new IndexMetrics());
+    }
+
+    /**
+     * 从快照打开用户的所有段, 有可以合并的段时通知调度器
+     *
+     * @param seqs 快照中段的序号
+     * @throws IOException 打开快照失败
+     */
+    public static HotSwapKWIC open(SuffixArrayBuilder builder, Long userId, SnapshotStore snapshotStore,
+                                   Collection<Long> seqs, IndexConfig config, ReIndexScheduler scheduler,
+                                   OverflowStats overflowStats, IndexMetrics metrics) throws IOException {
+        HotSwapKWIC index = new HotSwapKWIC(builder, userId, snapshotStore, config, scheduler, overflowStats, metrics);
+
+        ImmutableList.Builder<Segment> segments = ImmutableList.builder();
+        // 从新到旧
+        for (Long seq : Ordering.<Long>natural().reverse().sortedCopy(seqs)) {
+            segments.add(new Segment(seq, snapshotStore.open(userId, seq, builder)));
+            index.segmentSeq.set(Math.max(index.segmentSeq.get(), seq));
+        }
+        index.version.set(Version.EMPTY.next(null, null, segments.build()));
+        index.signalIfNeeded();
+        return index;
+    }
+
+    /**
+     * 获取 模糊匹配 query 的数据集 <br/>
+     * 不加锁, 只访问调用时的版本
+     *
      * @param query 查询关键字
      * @return 模糊匹配的数据集 列表
-     *
-     * @throws java.lang.RuntimeException 索引参数设置不合理时
      */
     public List<PairEntry> find(String query) {
-        // get base
-        List<PairEntry> res = suffixIndexes[activeIndex].find(query);
+        Version current = read();
 
-        // updated by incremental
         Map<Long, PairEntry> resMap = new TreeMap<Long, PairEntry>();
-        for (PairEntry entry : res) {
+
+        for (PairEntry entry : matchDelta(current, query, MatchMode.CONTAINS)) {
             resMap.put(entry.getId(), entry);
         }
 
-        logger.info("Get {} from suffix index", res.size());
-        if (plainIndexes[activeIndex].size() >= PLAIN_INDEX_THRESHOLD * TOO_LONG_FACTOR) {
+        List<Segment> segments = current.segments;
+        for (int i = 0; i < segments.size(); i++) {
+            for (PairEntry entry : segments.get(i).kwic.find(query)) {
+                if (!inDelta(current, entry.getId()) && !shadowed(entry.getId(), segments, i)) {
+                    resMap.put(entry.getId(), entry);
+                }
+            }
+        }
+
+        return Lists.newArrayList(resMap.values());
+
+    }
+
+    /**
+     * 批量获取 模糊匹配 每个 query 的数据集 <br/>
+     * 所有关键字访问同一个版本, 增量只扫描一遍, 每条 content 用 Aho-Corasick 自动机同时匹配所有关键字
+     *
+     * @param queries 查询关键字, 重复的关键字只查询一次
+     * @return 关键字 -> 模糊匹配的数据集 列表, 按关键字的顺序
+     */
+    public Map<String, List<PairEntry>> find(Collection<String> queries) {
+        Version current = read();
 
-            logger.error("size >= PLAIN_INDEX_THRESHOLD 的时候应该进行重建索引\n"
-                    + "size >= 2 * PLAIN_INDEX_THRESHOLD 说明当前参数设置不合理, 热替换机制不能完成\n"
-                    + "尝试\n"
-                    + "    1. 增大 PLAIN_INDEX_THRESHOLD\n"
-                    + "    2. 增大 TOLL_LONG_FACTOR\n"
-                    + "    3. 增加重建索引监控线程数量\n"
-                    + "    4. 增大重建索引线程运行频率\n");
+        List<String> keywords = Lists.newArrayList(Sets.newLinkedHashSet(queries));
+        List<Map<Long, PairEntry>> resMaps = Lists.newArrayListWithCapacity(keywords.size());
+        for (int k = 0; k < keywords.size(); k++) {
+            resMaps.add(new TreeMap<Long, PairEntry>());
+        }
 
-            /**
-             * size >= PLAIN_INDEX_THRESHOLD 的时候应该进行重建索引
-             * size >= 2 * PLAIN_INDEX_THRESHOLD 说明当前参数设置不合理, 热替换机制不能完成
-             * 尝试
-             *      1. 增大 PLAIN_INDEX_THRESHOLD
-             *      2. 增大 TOLL_LONG_FACTOR
-             *      3. 增加重建索引监控线程数量
-             *      4. 增大重建索引线程运行频率
-             */
-            throw new IndexParamException("There are troubles to reindex");
+        // 增量从新到旧, 第一次出现的ID为最新数据
+        Set<Long> seen = Sets.newHashSet();
+        if (current.delta != null || current.flushing != null) {
+            AhoCorasick automaton = new AhoCorasick(keywords);
+            for (Delta node = current.delta; node != null; node = node.next) {
+                collect(node.entry, automaton, seen, resMaps);
+            }
+            for (Delta node = current.flushing; node != null; node = node.next) {
+                collect(node.entry, automaton, seen, resMaps);
+            }
         }
-        logger.info("PlainIndex size {}", plainIndexes[activeIndex].size());
+        long[] deltaIds = Longs.toArray(seen);
+        Arrays.sort(deltaIds);
 
-        plainIndexLock.readLock().lock();
-        try {
-            for (Map.Entry<Long, PairEntry> entry : plainIndexes[activeIndex].entrySet()) {
-                if (!entry.getValue().subMatch(query)) {
-                    resMap.remove(entry.getKey());
+        List<Segment> segments = current.segments;
+        for (int i = 0; i < segments.size(); i++) {
+            for (int k = 0; k < keywords.size(); k++) {
+                for (PairEntry entry : segments.get(i).kwic.find(keywords.get(k))) {
+                    if (Arrays.binarySearch(deltaIds, entry.getId()) < 0 && !shadowed(entry.getId(), segments, i)) {
+                        resMaps.get(k).put(entry.getId(), entry);
+                    }
+                }
+            }
+        }
+
+        Map<String, List<PairEntry>> res = Maps.newLinkedHashMap();
+        for (int k = 0; k < keywords.size(); k++) {
+            res.put(keywords.get(k), Lists.newArrayList(resMaps.get(k).values()));
+        }
+        return res;
+    }
+
+    /**
+     * 获取 模糊匹配 query 的数据ID <br/>
+     * 后缀索引段只访问 后缀数组 + ID表, 不截取 content, 不装箱
+     *
+     * @param query 查询关键字
+     * @return 模糊匹配的数据ID, 升序
+     */
+    public long[] findIds(String query) {
+        Version current = read();
+
+        return findIds(current, query, MatchMode.CONTAINS);
+    }
+
+    /**
+     * 同 findIds(String), 结果和 stale 标记来自同一次 read() 得到的版本
+     *
+     * @param query 查询关键字
+     * @return 模糊匹配的数据ID, 升序, 以及查询是否跳过了增量
+     */
+    public QueryResult findIdResult(String query) {
+        Version current = read();
+
+        return new QueryResult(findIds(current, query, MatchMode.CONTAINS), current.degraded);
+    }
+
+    /**
+     * 获取 按 mode 匹配 query 的数据ID <br/>
+     * 后缀索引段在后缀数组上带分隔符查找, 增量逐条按 mode 匹配
+     *
+     * @param query 查询关键字
+     * @param mode 匹配方式
+     * @return 满足条件的数据ID, 升序
+     */
+    public long[] findIds(String query, MatchMode mode) {
+        Version current = read();
+
+        return findIds(current, query, mode);
+    }
+
+    /**
+     * 在索引内计算布尔查询, 所有子句访问同一个版本
+     *
+     * @param query 布尔查询
+     * @return 满足查询的数据ID, 升序
+     *
+     * @throws IllegalArgumentException 查询不合法时
+     */
+    public long[] findIds(Query query) {
+        Version current = read();
+
+        return new BooleanQueryEvaluator(new VersionSource(current)).evaluate(query);
+    }
+
+    private static long[] findIds(Version current, String query, MatchMode mode) {
+        List<Segment> segments = current.segments;
+        if (current.delta == null && current.flushing == null && segments.size() == 1) {
+            return segments.get(0).kwic.findIds(query, mode);
+        }
+
+        List<PairEntry> deltaMatches = matchDelta(current, query, mode);
+        long[] res = new long[deltaMatches.size()];
+        int size = 0;
+        for (PairEntry entry : deltaMatches) {
+            res[size++] = entry.getId();
+        }
+
+        for (int i = 0; i < segments.size(); i++) {
+            long[] ids = segments.get(i).kwic.findIds(query, mode);
+            if (size + ids.length > res.length) {
+                res = Arrays.copyOf(res, Math.max(size + ids.length, res.length * 2));
+            }
+            for (long id : ids) {
+                if (!inDelta(current, id) && !shadowed(id, segments, i)) {
+                    res[size++] = id;
+                }
+            }
+        }
+
+        // 各来源的ID互不重复
+        Arrays.sort(res, 0, size);
+        return size == res.length ? res : Arrays.copyOf(res, size);
+    }
+
+    /**
+     * 分页获取 模糊匹配 query 的数据集, 按ID升序 <br/>
+     * 增量 + 各段的结果按ID归并, 取到 offset + limit 条后立即结束
+     *
+     * @param query 查询关键字
+     * @param offset 跳过的条数
+     * @param limit 最多返回的条数
+     * @return 模糊匹配的数据集 列表
+     */
+    public List<PairEntry> find(String query, int offset, int limit) {
+        Version current = read();
+
+        List<PairEntry> res = Lists.newArrayListWithCapacity(Math.min(limit, config.getPlainIndexThreshold()));
+        if (limit == 0) {
+            return res;
+        }
+
+        // 增量中最新的数据, 按ID排序
+        List<PairEntry> deltaMatches = Ordering.natural().sortedCopy(matchDelta(current, query, MatchMode.CONTAINS));
+
+        List<Segment> segments = current.segments;
+        List<KWIC.Cursor> cursors = Lists.newArrayListWithCapacity(segments.size());
+        for (Segment segment : segments) {
+            cursors.add(segment.kwic.cursor(query));
+        }
+
+        int skipped = 0;
+        int deltaPos = 0;
+        while (res.size() < limit) {
+            // 当前ID最小的来源, -1 为增量
+            int source = -1;
+            long min = deltaPos < deltaMatches.size() ? deltaMatches.get(deltaPos).getId() : Long.MAX_VALUE;
+            boolean found = deltaPos < deltaMatches.size();
+            for (int i = 0; i < cursors.size(); i++) {
+                KWIC.Cursor cursor = cursors.get(i);
+                if (cursor.valid() && (!found || cursor.id() < min)) {
+                    min = cursor.id();
+                    source = i;
+                    found = true;
+                }
+            }
+            if (!found) {
+                break;
+            }
+
+            PairEntry entry = null;
+            if (source < 0) {
+                entry = deltaMatches.get(deltaPos++);
+            } else {
+                KWIC.Cursor cursor = cursors.get(source);
+                if (!inDelta(current, min) && !shadowed(min, segments, source)) {
+                    entry = skipped < offset ? null : cursor.entry();
                 } else {
-                    resMap.put(entry.getKey(), entry.getValue());
+                    // 被更新的数据覆盖, 不计数
+                    cursor.next();
+                    continue;
                 }
+                cursor.next();
+            }
+
+            if (skipped < offset) {
+                skipped++;
+            } else {
+                res.add(entry);
             }
-        } finally {
-            plainIndexLock.readLock().unlock();
         }
+        return res;
+    }
+
+    /**
+     * 模糊匹配 query 的数据条数 <br/>
+     * 只有一个段且没有增量时, 直接由后缀数组计算
+     *
+     * @param query 查询关键字
+     * @return 满足条件的条目数量
+     */
+    public int count(String query) {
+        Version current = read();
+        if (current.delta == null && current.flushing == null && current.segments.size() == 1) {
+            return current.segments.get(0).kwic.count(query);
+        }
+        return findIds(current, query, MatchMode.CONTAINS).length;
+    }
+
+    /**
+     * 导出全部数据, 用于迁移用户 <br/>
+     * 直接读取当前版本, 不经过 DEGRADE 的降级, 增量和正在构建的增量都包含在内, 相同ID以最新的数据为准
+     *
+     * @return 全部数据条目, 按ID升序
+     */
+    public List<PairEntry> export() {
+        Version current = version.get();
 
+        // 从新到旧, 第一次出现的ID为最新数据
+        Map<Long, PairEntry> resMap = new TreeMap<Long, PairEntry>();
+        for (Delta node = current.delta; node != null; node = node.next) {
+            putIfAbsent(resMap, node.entry);
+        }
+        for (Delta node = current.flushing; node != null; node = node.next) {
+            putIfAbsent(resMap, node.entry);
+        }
+        for (Segment segment : current.segments) {
+            for (PairEntry entry : segment.kwic.entries()) {
+                putIfAbsent(resMap, entry);
+            }
+        }
         return Lists.newArrayList(resMap.values());
+    }
+
+    private static void putIfAbsent(Map<Long, PairEntry> resMap, PairEntry entry) {
+        if (!resMap.containsKey(entry.getId())) {
+            resMap.put(entry.getId(), entry);
+        }
+    }
+
+    /**
+     * 读取查询使用的版本, 记录查询次数 <br/>
+     * 增量过长并且处理方式为 DEGRADE 时, 跳过增量, 相当于读取这些写入之前的版本, 查询不会失败
+     */
+    private Version read() {
+        queries.incrementAndGet();
+        Version current = version.get();
+        if (Delta.size(current.delta) >= overflowSize() && config.getOverflowPolicy() == OverflowPolicy.DEGRADE) {
+            overflowStats.degradedQuery();
+            return current.withoutDelta();
+        }
+        return current;
+    }
+
+    /**
+     * @return 增量长度达到该值时, 说明后台线程来不及构建段
+     */
+    private long overflowSize() {
+        return (long) config.getPlainIndexThreshold() * config.getTooLongFactor();
+    }
+
+    /**
+     * 写入后增量过长, 按 OverflowPolicy 处理, 由写入线程调用
+     */
+    private void onOverflow() {
+        OverflowPolicy policy = config.getOverflowPolicy();
+        if (policy == OverflowPolicy.THROTTLE_WRITERS && scheduler != null) {
+            throttle();
+        } else if (policy != OverflowPolicy.DEGRADE) {
+            // 没有后台线程时, THROTTLE_WRITERS 也只能同步构建
+            overflowStats.inlineCompaction();
+            switchIndexLock.lock();
+            reIndexAndUnlock(config.getPlainIndexThreshold());
+        }
+    }
+
+    /**
+     * 通知调度器后等待增量被移出, 最多等待 throttleMillis
+     */
+    private void throttle() {
+        overflowStats.throttledWrite();
+        scheduler.schedule(this);
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.getThrottleMillis());
+        synchronized (overflowMonitor) {
+            while (Delta.size(version.get().delta) >= overflowSize()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    overflowStats.throttleTimeout();
+                    return;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(overflowMonitor, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 增量和正在构建的增量中按 mode 匹配 query 的最新数据 <br/>
+     * 通过 gram 倒排索引只检查候选节点, 不遍历整个增量
+     *
+     * @return 匹配的数据, ID 互不重复, 无序
+     */
+    private static List<PairEntry> matchDelta(Version current, String query, MatchMode mode) {
+        List<PairEntry> res = Lists.newArrayList();
+        matchDelta(current.delta, null, query, mode, res);
+        matchDelta(current.flushing, current.delta, query, mode, res);
+        return res;
+    }
 
+    /**
+     * @param head 所读版本中链表的头
+     * @param newer 更新的链表, 其中出现的ID覆盖 head 中的数据
+     */
+    private static void matchDelta(Delta head, Delta newer, String query, MatchMode mode, List<PairEntry> res) {
+        if (head == null) {
+            return;
+        }
+        for (Delta node : DeltaIndex.candidates(head, query)) {
+            long id = node.entry.getId();
+            if (Delta.visible(head, id) == node && Delta.visible(newer, id) == null
+                    && node.entry.matches(query, mode)) {
+                res.add(node.entry);
+            }
+        }
+    }
+
+    /**
+     * @return id 是否在所读版本的增量或者正在构建的增量中出现, 出现时段中的数据已被覆盖
+     */
+    private static boolean inDelta(Version current, long id) {
+        return Delta.visible(current.delta, id) != null || Delta.visible(current.flushing, id) != null;
+    }
+
+    private static void collect(PairEntry entry, AhoCorasick automaton, Set<Long> seen,
+                                List<Map<Long, PairEntry>> resMaps) {
+        if (seen.add(entry.getId())) {
+            BitSet matched = automaton.match(entry.getContent());
+            for (int k = matched.nextSetBit(0); k >= 0; k = matched.nextSetBit(k + 1)) {
+                resMaps.get(k).put(entry.getId(), entry);
+            }
+        }
+    }
+
+    /**
+     * @return id 是否在比第 i 个段更新的段中出现
+     */
+    private static boolean shadowed(long id, List<Segment> segments, int i) {
+        for (int j = 0; j < i; j++) {
+            if (segments.get(j).kwic.contains(id)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -153,94 +634,838 @@ public class HotSwapKWIC {
      */
 
     public void insertOrUpdate(PairEntry entry) {
-
-        plainIndexLock.writeLock().lock();
-        try {
-            plainIndexes[activeIndex].put(entry.getId(), entry);
-            plainIndexes[other()].put(entry.getId(), entry);
-        } finally {
-            plainIndexLock.writeLock().unlock();
-        }
+        append(ImmutableList.of(entry));
 
         // this can be user behavior, so we let the monitor thread to do reindex.
     }
 
     /**
-     * 尝试重建索引
+     * 尝试构建新的段, 合并同一层的段
      */
     public void tryReIndex() {
 
-        if (plainIndexes[activeIndex].size() >= PLAIN_INDEX_THRESHOLD) {
-            if (switchIndexLock.tryLock()) {
-                try {
-                    if (plainIndexes[activeIndex].size() >= PLAIN_INDEX_THRESHOLD) {
-                        logger.info("ThreadId = {}  Reindexing started", Thread.currentThread().getId());
-                        putAndReConstruct();
-                        logger.info("ThreadId = {}  Reindexing ended", Thread.currentThread().getId());
-                    }
-                } finally {
-                    switchIndexLock.unlock();
-                }
+        if (needsReIndex() && switchIndexLock.tryLock()) {
+            reIndexAndUnlock(config.getPlainIndexThreshold());
+        }
+    }
+
+    /**
+     * 不等待增量达到阈值, 在当前线程把增量构建成新的段并合并, 等待正在进行的构建完成 <br/>
+     * 返回时调用之前的写入都已在段中, 用于测试和运维确定地触发热替换
+     */
+    public void reIndexNow() {
+        switchIndexLock.lock();
+        reIndexAndUnlock(1);
+    }
+
+    /**
+     * 构建新的段, 合并同一层的段, 调用者持有 switchIndexLock, 完成后释放
+     *
+     * @param flushSize 增量达到该长度时构建新的段
+     */
+    private void reIndexAndUnlock(int flushSize) {
+        try {
+            if (closed) {
+                return;
             }
+            retrySnapshots();
+            if (plainIndexSize() >= flushSize) {
+                logger.info("ThreadId = {}  Flushing started", Thread.currentThread().getId());
+                queries.set(0);
+                flush();
+                logger.info("ThreadId = {}  Flushing ended", Thread.currentThread().getId());
+            }
+            while (merge()) {
+                logger.info("ThreadId = {}  Segments merged", Thread.currentThread().getId());
+            }
+        } finally {
+            switchIndexLock.unlock();
         }
+        // 构建期间增量再次达到阈值时, 其它线程 tryLock 失败, 由持有锁的线程重新入队
+        signalIfNeeded();
     }
 
     /**
-     * 批量导入
-     * @param entries 数据集合
+     * 删除用户时调用, 等待正在进行的构建和合并完成, 之后调度器中的重建和写快照都不再进行
+     *
+     * @return 当前所有段的序号, 即需要删除的快照
      */
-    public void batchLoad(Collection<PairEntry> entries) {
-        plainIndexLock.writeLock().lock();
+    List<Long> close() {
+        switchIndexLock.lock();
         try {
-            for (PairEntry entry : entries) {
-                plainIndexes[activeIndex].put(entry.getId(), entry);
-                plainIndexes[other()].put(entry.getId(), entry);
+            closed = true;
+            List<Long> seqs = Lists.newArrayList();
+            for (Segment segment : version.get().segments) {
+                seqs.add(segment.seq);
             }
+            return seqs;
         } finally {
-            plainIndexLock.writeLock().unlock();
+            switchIndexLock.unlock();
         }
+    }
+
+    /**
+     * @return 增量达到阈值, 或者有可以合并的段
+     */
+    private boolean needsReIndex() {
+        return plainIndexSize() >= config.getPlainIndexThreshold() || mergeableRun(version.get().segments) != null;
+    }
+
+    private void signalIfNeeded() {
+        if (scheduler != null && needsReIndex()) {
+            scheduler.schedule(this);
+        }
+    }
+
+    /**
+     * @return 重建的优先级, 即下次重建前查询扫描增量的代价的估算
+     */
+    long reIndexPriority() {
+        long deltaSize = plainIndexSize();
+        return deltaSize * (1 + Math.min(queries.get(), Integer.MAX_VALUE));
+    }
+
+    /**
+     * 批量导入
+     * @param entries 数据集合
+     */
+    public void batchLoad(Collection<PairEntry> entries) {
+        append(entries);
 
         // bath load is sys behavior, we can block it.
-        tryReIndex();
+        // 后台线程可能正在构建这批数据, 等待其完成后再检查一次
+        switchIndexLock.lock();
+        reIndexAndUnlock(config.getPlainIndexThreshold());
 
     }
 
     /**
-     *  合并plainIndex 到后缀索引， 重建索引
+     * 当前版本号, 数据或段有任何变化时增加, 用于判断缓存的查询结果是否过期 <br/>
+     * 读取版本号之后的查询结果不会比该版本旧
+     *
+     * @return 版本号
      */
-    private void putAndReConstruct() {
+    public long generation() {
+        return version.get().generation;
+    }
 
+    /**
+     * @return 段的数量
+     */
+    public int segmentCount() {
+        return version.get().segments.size();
+    }
 
-        plainIndexLock.writeLock().lock();
-        List<PairEntry> entries = null;
+    /**
+     * @return 增量长度, 不包括正在构建成段的部分
+     */
+    public int deltaSize() {
+        return plainIndexSize();
+    }
+
+    /**
+     * 估算占用的内存: 各段的后缀数组和字串, 增量中的字串和节点 <br/>
+     * 内存映射打开的段也计算在内
+     *
+     * @return 估算的字节数
+     */
+    public long retainedSize() {
+        Version current = version.get();
+        long size = 0;
+        for (Segment segment : current.segments) {
+            size += segment.kwic.retainedSize();
+        }
+        for (Delta node = current.delta; node != null; node = node.next) {
+            size += DELTA_NODE_BYTES + 2L * node.entry.getContent().length();
+        }
+        for (Delta node = current.flushing; node != null; node = node.next) {
+            size += DELTA_NODE_BYTES + 2L * node.entry.getContent().length();
+        }
+        return size;
+    }
+
+    private int plainIndexSize() {
+        return Delta.size(version.get().delta);
+    }
+
+    /**
+     * 先写预写日志, 再在当前增量前追加数据并加入 gram 倒排索引, CAS 发布新版本, 不阻塞查询 <br/>
+     * 持有 appendLock 时增量不变, 同一用户日志中的顺序与增量中的顺序一致
+     */
+    private void append(Collection<PairEntry> entries) {
+        WriteAheadLog current = log;
+        long lsn = WriteAheadLog.NO_LSN;
+        int before;
+        int after;
+        appendLock.lock();
         try {
+            if (current != null) {
+                lsn = current.append(userId, entries);
+            }
+            before = plainIndexSize();
+            after = publish(entries, lsn);
+        } catch (IOException e) {
+            throw new IllegalStateException("UserId = " + userId + " write ahead log failed", e);
+        } finally {
+            appendLock.unlock();
+            if (lsn != WriteAheadLog.NO_LSN) {
+                current.published(lsn);
+            }
+        }
+        if (lsn != WriteAheadLog.NO_LSN) {
+            try {
+                current.awaitDurable(lsn);
+            } catch (IOException e) {
+                throw new IllegalStateException("UserId = " + userId + " sync write ahead log failed", e);
+            }
+        }
+        afterAppend(before, after);
+    }
 
-            entries = Lists.newArrayList(plainIndexes[other()].values());
-            plainIndexes[other()] = Maps.newTreeMap();
+    /**
+     * 恢复时重放日志中的一条记录, 不再写入日志
+     *
+     * @param entries 记录中的条目
+     * @param lsn 记录的 LSN, 构建成段并写入快照之前日志不能在此之后截断
+     */
+    void replay(Collection<PairEntry> entries, long lsn) {
+        int before;
+        int after;
+        appendLock.lock();
+        try {
+            before = plainIndexSize();
+            after = publish(entries, lsn);
         } finally {
-            plainIndexLock.writeLock().unlock();
+            appendLock.unlock();
+        }
+        afterAppend(before, after);
+    }
+
+    /**
+     * 调用者持有 appendLock, 增量不变, CAS 失败只可能是段发生了变化, 重试时复用已建好的节点
+     *
+     * @return 追加后增量的长度
+     */
+    private int publish(Collection<PairEntry> entries, long lsn) {
+        Delta delta = version.get().delta;
+        for (PairEntry entry : entries) {
+            delta = new Delta(entry, delta, config.getGramThreshold(), lsn);
+        }
+        while (true) {
+            Version current = version.get();
+            if (version.compareAndSet(current, current.next(delta, current.flushing, current.segments))) {
+                return Delta.size(delta);
+            }
+        }
+    }
+
+    /**
+     * 释放 appendLock 之后调用, 限流等待时不阻塞构建段
+     */
+    private void afterAppend(int before, int after) {
+        // 只在增量越过阈值时通知一次, 没有写入的用户不产生任何调度开销
+        int threshold = config.getPlainIndexThreshold();
+        if (scheduler != null && before < threshold && after >= threshold) {
+            scheduler.schedule(this);
+        }
+        if (after >= overflowSize()) {
+            if (before < overflowSize()) {
+                logger.warn("UserId = {}, delta size {} >= plainIndexThreshold * tooLongFactor, "
+                        + "background reindex can't keep up, apply {}. "
+                        + "Try to increase allknow.index.plainThreshold, allknow.index.tooLongFactor "
+                        + "or allknow.reindex.threads", userId, after, config.getOverflowPolicy());
+            }
+            onOverflow();
+        }
+    }
+
+    /**
+     * 之后的写入记录到日志中, 启动时恢复完成后调用
+     *
+     * @param log 预写日志
+     */
+    void attachLog(WriteAheadLog log) {
+        this.log = log;
+    }
+
+    /**
+     * 增量, 以及当前版本中快照写入失败的段, 都只在日志中 <br/>
+     * 这些段被合并且写入快照, 或者重试写入成功后, 不再阻止日志截断
+     *
+     * @return 还未写入快照的数据中最小的 LSN, 日志只能截断到此之前, 没有时返回 NO_LSN
+     */
+    long oldestLsn() {
+        Version current = version.get();
+        long oldest = Math.min(Delta.minLsn(current.delta), Delta.minLsn(current.flushing));
+        for (Segment segment : current.segments) {
+            oldest = Math.min(oldest, segment.unsnapshottedLsn);
         }
+        return oldest;
+    }
 
-        // 耗时操作， 并不获取plainIndexLock
-        suffixIndexes[other()] = new KWIC(suffixIndexes[activeIndex], entries);
+    /**
+     *  把增量构建成新的段, 调用者持有 switchIndexLock
+     */
+    private void flush() {
 
-        plainIndexLock.writeLock().lock();
+        Version current;
+        appendLock.lock();
         try {
-            // 切换索引
-            activeIndex = other();
-            // 同步plain index
-            plainIndexes[other()] = new TreeMap<Long, PairEntry>(plainIndexes[activeIndex]);
+            do {
+                current = version.get();
+            } while (!version.compareAndSet(current, current.next(null, current.delta, current.segments)));
         } finally {
-            plainIndexLock.writeLock().unlock();
+            appendLock.unlock();
+        }
+
+        // 增量已移出, 被限流的写入线程可以继续
+        synchronized (overflowMonitor) {
+            overflowMonitor.notifyAll();
+        }
+
+        // 从旧到新覆盖, 相同ID以新的数据为准
+        Delta flushed = current.delta;
+        TreeMap<Long, PairEntry> flushing = Maps.newTreeMap();
+        for (PairEntry entry : Lists.reverse(Delta.entries(flushed))) {
+            flushing.put(entry.getId(), entry);
+        }
+
+        // 耗时操作， 并不阻塞查询和写入
+        long start = System.nanoTime();
+        Segment segment = new Segment(segmentSeq.incrementAndGet(), new KWIC(flushing.values(), builder));
+        if (!writeSnapshot(segment)) {
+            segment = new Segment(segment.seq, segment.kwic, Delta.minLsn(flushed));
+        }
+
+        do {
+            current = version.get();
+        } while (!version.compareAndSet(current, current.next(current.delta, null,
+                ImmutableList.<Segment>builder().add(segment).addAll(current.segments).build())));
+        metrics.rebuilt(start);
+        metrics.swapped();
+
+        // 增量已写入快照, 日志可以截断
+        WriteAheadLog wal = log;
+        if (wal != null) {
+            wal.requestCheckpoint();
+        }
+
+    }
+
+    /**
+     * 合并一组同一层的相邻段, 调用者持有 switchIndexLock
+     *
+     * @return 是否进行了合并
+     */
+    private boolean merge() {
+        List<Segment> segments = version.get().segments;
+        int[] run = mergeableRun(segments);
+        if (run == null) {
+            return false;
+        }
+        int from = run[0];
+        int to = run[1];
+
+        // 从旧到新覆盖, 相同ID以新的段为准
+        long start = System.nanoTime();
+        Segment oldest = segments.get(to - 1);
+        TreeMap<Long, PairEntry> newer = Maps.newTreeMap();
+        for (int i = to - 2; i >= from; i--) {
+            for (PairEntry entry : segments.get(i).kwic.entries()) {
+                newer.put(entry.getId(), entry);
+            }
+        }
+
+        // 合并后的段沿用最新一段的序号, 保持与其它段的新旧关系
+        Segment merged = new Segment(segments.get(from).seq, new KWIC(oldest.kwic, newer.values()));
+        boolean written = writeSnapshot(merged);
+        if (!written) {
+            // 被合并的段的快照保留, 其中快照写入失败的段的数据仍然只在日志中
+            long lsn = WriteAheadLog.NO_LSN;
+            for (int i = from; i < to; i++) {
+                lsn = Math.min(lsn, segments.get(i).unsnapshottedLsn);
+            }
+            merged = new Segment(merged.seq, merged.kwic, lsn);
+        }
+
+        // 只有持有 switchIndexLock 的线程修改段列表, 其间只可能有增量的变化
+        List<Segment> replaced = ImmutableList.<Segment>builder()
+                .addAll(segments.subList(0, from))
+                .add(merged)
+                .addAll(segments.subList(to, segments.size()))
+                .build();
+        Version current;
+        do {
+            current = version.get();
+        } while (!version.compareAndSet(current, current.next(current.delta, current.flushing, replaced)));
+        metrics.getMerge().recordSince(start);
+        metrics.swapped();
+
+        // 合并的快照写入失败时保留旧的快照, 重启后仍然可以恢复
+        if (written) {
+            for (int i = from + 1; i < to; i++) {
+                deleteSnapshot(segments.get(i));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 重试写入之前失败的快照, 例如磁盘曾经写满, 成功后这些段不再阻止日志截断 <br/>
+     * 调用者持有 switchIndexLock
+     */
+    private void retrySnapshots() {
+        List<Segment> segments = version.get().segments;
+        List<Segment> retried = null;
+        for (int i = 0; i < segments.size(); i++) {
+            Segment segment = segments.get(i);
+            if (segment.unsnapshottedLsn != WriteAheadLog.NO_LSN && writeSnapshot(segment)) {
+                if (retried == null) {
+                    retried = Lists.newArrayList(segments);
+                }
+                retried.set(i, new Segment(segment.seq, segment.kwic));
+            }
+        }
+        if (retried == null) {
+            return;
+        }
+
+        // 只有持有 switchIndexLock 的线程修改段列表, 其间只可能有增量的变化
+        List<Segment> replaced = ImmutableList.copyOf(retried);
+        Version current;
+        do {
+            current = version.get();
+        } while (!version.compareAndSet(current, current.next(current.delta, current.flushing, replaced)));
+
+        WriteAheadLog wal = log;
+        if (wal != null) {
+            wal.requestCheckpoint();
+        }
+    }
+
+    /**
+     * @return 第一组同一层且数量达到 mergeFactor 的相邻段 [from, to), 没有时返回 null
+     */
+    private int[] mergeableRun(List<Segment> segments) {
+        int from = 0;
+        for (int i = 1; i <= segments.size(); i++) {
+            if (i == segments.size() || tier(segments.get(i)) != tier(segments.get(from))) {
+                if (i - from >= config.getMergeFactor()) {
+                    return new int[] {from, i};
+                }
+                from = i;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return 段所在的层, 第 k 层的段大小约为 plainIndexThreshold * mergeFactor^k
+     */
+    private int tier(Segment segment) {
+        int tier = 0;
+        long size = segment.kwic.size() / config.getPlainIndexThreshold();
+        while (size >= config.getMergeFactor()) {
+            size /= config.getMergeFactor();
+            tier++;
+        }
+        return tier;
+    }
+
+    /**
+     * @return 快照是否写入成功, 不写快照时返回 true
+     */
+    private boolean writeSnapshot(Segment segment) {
+        if (snapshotStore != null) {
+            try {
+                snapshotStore.write(userId, segment.seq, segment.kwic);
+            } catch (IOException e) {
+                // 快照只用于加快重启, 写失败不影响查询
+                logger.error("UserId = " + userId + " write snapshot failed", e);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void deleteSnapshot(Segment segment) {
+        if (snapshotStore != null) {
+            try {
+                snapshotStore.delete(userId, segment.seq);
+            } catch (IOException e) {
+                // 残留的旧段会被更新的段覆盖, 不影响正确性
+                logger.error("UserId = " + userId + " delete snapshot failed", e);
+            }
+        }
+    }
+
+    /**
+     * 布尔查询访问的一个版本
+     */
+    private static final class VersionSource implements BooleanQueryEvaluator.Source {
+
+        private final Version current;
+
+        VersionSource(Version current) {
+            this.current = current;
+        }
+
+        @Override
+        public long[] ids(String keyword, MatchMode mode) {
+            return findIds(current, keyword, mode);
+        }
+
+        @Override
+        public long estimate(String keyword, MatchMode mode) {
+            long estimate = Delta.size(current.delta) + Delta.size(current.flushing);
+            for (Segment segment : current.segments) {
+                estimate += segment.kwic.estimate(keyword, mode);
+            }
+            return estimate;
+        }
+
+        @Override
+        public String content(long id) {
+            Delta node = Delta.visible(current.delta, id);
+            if (node == null) {
+                node = Delta.visible(current.flushing, id);
+            }
+            if (node != null) {
+                return node.entry.getContent();
+            }
+            for (Segment segment : current.segments) {
+                String content = segment.kwic.contentOf(id);
+                if (content != null) {
+                    return content;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * 不可变的版本: 增量 + 正在构建成段的增量 + 段列表
+     */
+    private static final class Version {
+
+        static final Version EMPTY = new Version(null, null, ImmutableList.<Segment>of(), 0L);
+
+        /**
+         * 所有索引共享的版本号, 同一用户的索引被替换后版本号也不会重复
+         */
+        private static final AtomicLong GENERATIONS = new AtomicLong();
+
+        /**
+         * 增量, 最新写入的在最前, 为 null 时为空
+         */
+        private final Delta delta;
+
+        /**
+         * 正在构建成段的增量, 构建完成前仍然需要被查询
+         */
+        private final Delta flushing;
+
+        /**
+         * 后缀索引段, 从新到旧
+         */
+        private final List<Segment> segments;
+
+        /**
+         * 版本号, 每次写入, 构建或合并段后增加
+         */
+        private final long generation;
+
+        /**
+         * 是否为跳过了增量的视图, 在该视图上的查询可能缺少最近的写入
+         */
+        private final boolean degraded;
+
+        Version(Delta delta, Delta flushing, List<Segment> segments, long generation) {
+            this(delta, flushing, segments, generation, false);
+        }
+
+        private Version(Delta delta, Delta flushing, List<Segment> segments, long generation, boolean degraded) {
+            this.delta = delta;
+            this.flushing = flushing;
+            this.segments = segments;
+            this.generation = generation;
+            this.degraded = degraded;
+        }
+
+        /**
+         * @return 不包含增量的视图, 版本号不变
+         */
+        Version withoutDelta() {
+            return new Version(null, flushing, segments, generation, true);
+        }
+
+        /**
+         * @return 使用新版本号的新版本
+         */
+        Version next(Delta delta, Delta flushing, List<Segment> segments) {
+            return new Version(delta, flushing, segments, GENERATIONS.incrementAndGet());
+        }
+    }
+
+    /**
+     * 不可变的增量链表节点, 追加时共享旧的节点
+     */
+    private static final class Delta {
+
+        private final PairEntry entry;
+
+        private final Delta next;
+
+        /**
+         * 从该节点到链表末尾的节点数, 同一链表中越新越大
+         */
+        private final int size;
+
+        /**
+         * 整条链表共享的 gram 倒排索引, 链表被构建成段后随之释放 <br/>
+         * 链表长度达到 gramThreshold 前为 null, 查询逐条扫描
+         */
+        private final DeltaIndex index;
+
+        /**
+         * 同一链表中相同ID的上一个节点, 加入 gram 倒排索引时设置, 没有时为 null <br/>
+         * 在发布新版本之前写入, 读到带索引的链表头的线程都能看到
+         */
+        private Delta older;
+
+        /**
+         * 从该节点到链表末尾的节点中最小的 LSN
+         */
+        private final long minLsn;
+
+        /**
+         * 调用者持有 appendLock
+         *
+         * @param gramThreshold 链表长度达到该值时建立 gram 倒排索引
+         * @param lsn 所在日志记录的 LSN, 不在日志中时为 NO_LSN
+         */
+        Delta(PairEntry entry, Delta next, int gramThreshold, long lsn) {
+            this.entry = entry;
+            this.next = next;
+            this.size = next == null ? 1 : next.size + 1;
+            this.minLsn = next == null ? lsn : Math.min(lsn, next.minLsn);
+            if (next != null && next.index != null) {
+                this.index = next.index;
+                index.add(this);
+            } else if (size >= gramThreshold) {
+                // 第一次达到阈值, 从旧到新加入链表中已有的节点
+                this.index = new DeltaIndex();
+                for (Delta node : Lists.reverse(nodes(next))) {
+                    index.add(node);
+                }
+                index.add(this);
+            } else {
+                this.index = null;
+            }
+        }
+
+        /**
+         * @return 链表中的节点, 从新到旧
+         */
+        private static List<Delta> nodes(Delta delta) {
+            List<Delta> res = Lists.newArrayListWithCapacity(size(delta));
+            for (Delta node = delta; node != null; node = node.next) {
+                res.add(node);
+            }
+            return res;
+        }
+
+        static int size(Delta delta) {
+            return delta == null ? 0 : delta.size;
+        }
+
+        static long minLsn(Delta delta) {
+            return delta == null ? WriteAheadLog.NO_LSN : delta.minLsn;
+        }
+
+        /**
+         * @param head 所读版本中链表的头, 可以为 null
+         * @return 链表中该ID最新的节点, 不在链表中时为 null
+         */
+        static Delta visible(Delta head, long id) {
+            if (head == null) {
+                return null;
+            }
+            if (head.index == null) {
+                for (Delta node = head; node != null; node = node.next) {
+                    if (node.entry.getId() == id) {
+                        return node;
+                    }
+                }
+                return null;
+            }
+            // 比 head 新的节点是之后的写入, 所读版本中不可见
+            Delta node = head.index.latest.get(id);
+            while (node != null && node.size > head.size) {
+                node = node.older;
+            }
+            return node;
         }
 
+        /**
+         * @return 链表中的数据, 从新到旧
+         */
+        static List<PairEntry> entries(Delta delta) {
+            List<PairEntry> res = Lists.newArrayListWithCapacity(size(delta));
+            for (Delta node = delta; node != null; node = node.next) {
+                res.add(node.entry);
+            }
+            return res;
+        }
     }
 
     /**
-     * @return 交替索引中， 不活跃的索引
+     * 增量的 gram 倒排索引: 单字和相邻两字 -> 包含它的节点 <br/>
+     * 查询只检查 query 中最少出现的两字 gram 的节点, 不需要遍历整个增量, 对中文同样有效 <br/>
+     * 只由持有 appendLock 的线程写入, 查询线程无锁读取
      */
-    private int other() {
-        return 1 - activeIndex;
+    private static final class DeltaIndex {
+
+        /**
+         * 单字 gram 的标记位, 与两字 gram 的编码区分
+         */
+        private static final long UNIGRAM = 1L << 32;
+
+        private final Map<Long, Postings> grams = Maps.newConcurrentMap();
+
+        /**
+         * ID -> 该ID最新的节点
+         */
+        private final Map<Long, Delta> latest = Maps.newConcurrentMap();
+
+        private static long unigram(char c) {
+            return UNIGRAM | c;
+        }
+
+        private static long bigram(char c1, char c2) {
+            return (long) c1 << 16 | c2;
+        }
+
+        void add(Delta node) {
+            String content = node.entry.getContent();
+            Set<Long> keys = Sets.newHashSet();
+            for (int i = 0; i < content.length(); i++) {
+                keys.add(unigram(content.charAt(i)));
+                if (i + 1 < content.length()) {
+                    keys.add(bigram(content.charAt(i), content.charAt(i + 1)));
+                }
+            }
+            for (Long key : keys) {
+                Postings postings = grams.get(key);
+                if (postings == null) {
+                    postings = new Postings();
+                    grams.put(key, postings);
+                }
+                postings.add(node);
+            }
+            // 先设置 older 再放入 latest, 查询线程读到节点时 older 已写入
+            node.older = latest.get(node.entry.getId());
+            latest.put(node.entry.getId(), node);
+        }
+
+        /**
+         * @param head 所读版本中链表的头
+         * @return 可能包含 query 的节点, 需要调用者检查 content
+         */
+        static List<Delta> candidates(Delta head, String query) {
+            if (head.index == null || query.isEmpty()) {
+                return Delta.nodes(head);
+            }
+            return head.index.candidates(head.size, query);
+        }
+
+        /**
+         * @param maxSize 所读链表头的 size
+         * @return 可能包含 query 的节点, 从旧到新
+         */
+        private List<Delta> candidates(int maxSize, String query) {
+            List<Delta> res = Lists.newArrayList();
+
+            Postings smallest = null;
+            if (query.length() == 1) {
+                smallest = grams.get(unigram(query.charAt(0)));
+            } else {
+                for (int i = 0; i + 1 < query.length(); i++) {
+                    Postings postings = grams.get(bigram(query.charAt(i), query.charAt(i + 1)));
+                    if (postings == null) {
+                        // 有一个 gram 不在增量中出现
+                        return res;
+                    }
+                    if (smallest == null || postings.size < smallest.size) {
+                        smallest = postings;
+                    }
+                }
+            }
+            if (smallest != null) {
+                smallest.copyTo(maxSize, res);
+            }
+            return res;
+        }
+    }
+
+    /**
+     * 只追加的节点列表, 按写入顺序排列 <br/>
+     * 写入时先写元素再增加 size, 读取时先读 size 再读数组, 读到的元素都已写入
+     */
+    private static final class Postings {
+
+        private volatile Delta[] nodes = new Delta[2];
+
+        private volatile int size;
+
+        void add(Delta node) {
+            Delta[] array = nodes;
+            if (size == array.length) {
+                array = Arrays.copyOf(array, array.length * 2);
+                nodes = array;
+            }
+            array[size] = node;
+            size++;
+        }
+
+        /**
+         * @param maxSize 所读链表头的 size, 更新的节点不可见
+         */
+        void copyTo(int maxSize, List<Delta> res) {
+            int n = size;
+            Delta[] array = nodes;
+            for (int i = 0; i < n && array[i].size <= maxSize; i++) {
+                res.add(array[i]);
+            }
+        }
+    }
+
+    /**
+     * 不可变的后缀索引段
+     */
+    private static final class Segment {
+
+        /**
+         * 序号, 越大越新
+         */
+        private final long seq;
+
+        private final KWIC kwic;
+
+        /**
+         * 快照写入失败时段中数据的最小 LSN, 这些写入只在日志中, 快照已写入时为 NO_LSN
+         */
+        private final long unsnapshottedLsn;
+
+        Segment(long seq, KWIC kwic) {
+            this(seq, kwic, WriteAheadLog.NO_LSN);
+        }
+
+        Segment(long seq, KWIC kwic, long unsnapshottedLsn) {
+            this.seq = seq;
+            this.kwic = kwic;
+            this.unsnapshottedLsn = unsnapshottedLsn;
+        }
     }
 
 }
@@ -3,8 +3,13 @@
  */
 package com.baidu.sspweb.service.allknow.index;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import com.baidu.sspweb.service.allknow.QueryResult;
+import com.baidu.sspweb.service.allknow.query.Query;
 import com.google.common.collect.Multimap;
 
 /**
@@ -43,4 +48,84 @@ public interface Index {
      * @return  符合查询条件的条目
      */
     List<PairEntry> query(Long userId, String keyword);
+
+    /**
+     * 批量查询userId的， content 中包含每个 keyword 的条目  <br/>
+     * 所有关键字访问同一个版本的索引
+     *
+     * @param userId  用户ID
+     * @param keywords 查询关键字
+     * @return  关键字 -> 符合查询条件的条目, 按关键字的顺序
+     */
+    Map<String, List<PairEntry>> query(Long userId, Collection<String> keywords);
+
+    /**
+     * 查询userId的， content 中包含 keyword 的条目ID  <br/>
+     * 只返回ID时不需要创建条目对象
+     *
+     * @param userId  用户ID
+     * @param keyword 查询关键字
+     * @return  符合查询条件的条目ID, 升序
+     */
+    long[] queryIds(Long userId, String keyword);
+
+    /**
+     * 分页查询userId的， content 中包含 keyword 的条目, 按ID升序  <br/>
+     * 只取到需要的条数, 耗时与满足条件的总条数无关
+     *
+     * @param userId  用户ID
+     * @param keyword 查询关键字
+     * @param offset  跳过的条数
+     * @param limit   最多返回的条数
+     * @return  符合查询条件的条目
+     */
+    List<PairEntry> query(Long userId, String keyword, int offset, int limit);
+
+    /**
+     * 查询userId的， content 中包含 keyword 的条目数量
+     *
+     * @param userId  用户ID
+     * @param keyword 查询关键字
+     * @return  符合查询条件的条目数量
+     */
+    int count(Long userId, String keyword);
+
+    /**
+     * 在索引内计算布尔查询, 比如 "北京 AND 医院 NOT 删除"  <br/>
+     *
+     * @param userId  用户ID
+     * @param query   布尔查询
+     * @return  符合查询条件的条目ID, 升序
+     */
+    long[] queryIds(Long userId, Query query);
+
+    /**
+     * 同 queryIds, 同时返回结果是否可能缺少最近的写入 <br/>
+     * 后台重建跟不上写入, 并且 overflowPolicy 为 DEGRADE 时, 查询跳过最近的写入 <br/>
+     *
+     * @param userId  用户ID
+     * @param keyword 查询关键字
+     * @return  模糊匹配的条目ID, 升序, 以及由同一个版本得到的 stale 标记
+     */
+    QueryResult queryIdResult(Long userId, String keyword);
+
+    /**
+     * @return  有索引的所有用户ID
+     */
+    Set<Long> userIds();
+
+    /**
+     * 导出用户的全部条目, 用于把用户迁移到其它索引  <br/>
+     *
+     * @param userId  用户ID
+     * @return  用户的全部条目, 按ID升序
+     */
+    List<PairEntry> export(Long userId);
+
+    /**
+     * 删除用户的索引和快照, 用户迁移到其它索引之后调用  <br/>
+     *
+     * @param userId  用户ID
+     */
+    void remove(Long userId);
 }
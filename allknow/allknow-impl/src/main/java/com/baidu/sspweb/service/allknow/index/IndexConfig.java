@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow.index;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.baidu.sspweb.service.allknow.exception.IndexParamException;
+
+/**
+ * 索引参数, 由 allknow.properties 配置, 未配置时使用默认值 <br/>
+ * 需要通过实验部署调整这些数值
+ *
+ * @see MonitoredIndex
+ * @see HotSwapKWIC
+ *
+ * Created by whimsy on 15/12/19.
+ */
+@Component
+public class IndexConfig {
+
+    /**
+     * 增量的长度达到阈值时, 构建新的段
+     */
+    @Value("${allknow.index.plainThreshold:1000}")
+    private int plainIndexThreshold = 1000;
+
+    /**
+     * 增量长度达到该值时才建立 gram 倒排索引, 之前逐条扫描 <br/>
+     * 大部分用户的数据很少, 不建索引可以让每个用户占用的内存接近原始数据的大小
+     */
+    @Value("${allknow.index.gramThreshold:64}")
+    private int gramThreshold = 64;
+
+    /**
+     * 增量长度达到 plainIndexThreshold * tooLongFactor 时, 说明后台线程无法及时构建段
+     */
+    @Value("${allknow.index.tooLongFactor:2}")
+    private int tooLongFactor = 2;
+
+    /**
+     * 增量长度达到 plainIndexThreshold * tooLongFactor 时的处理方式
+     */
+    @Value("${allknow.index.overflowPolicy:THROTTLE_WRITERS}")
+    private OverflowPolicy overflowPolicy = OverflowPolicy.THROTTLE_WRITERS;
+
+    /**
+     * THROTTLE_WRITERS 时写入线程最多等待的毫秒数, 超时后放行
+     */
+    @Value("${allknow.index.throttleMillis:1000}")
+    private long throttleMillis = 1000L;
+
+    /**
+     * 同一层的段达到该数量时合并, 每层段的大小约为上一层的 mergeFactor 倍
+     */
+    @Value("${allknow.index.mergeFactor:4}")
+    private int mergeFactor = 4;
+
+    /**
+     * 构建和合并段的后台线程数
+     */
+    @Value("${allknow.reindex.threads:2}")
+    private int reindexThreads = 2;
+
+    /**
+     * 大用户构建段时是否使用并行倍增, 默认使用单线程 SAIS <br/>
+     * 倍增的计算量是 SAIS 的 2 到 3 倍, 并行度不足 ParallelBuilder.MIN_PARALLELISM 时仍然使用 SAIS
+     */
+    @Value("${allknow.build.parallel:false}")
+    private boolean parallelBuild = false;
+
+    /**
+     * 并行构建后缀数组和重放预写日志的并行度, 为 0 时使用 CPU 核数
+     */
+    @Value("${allknow.build.parallelism:0}")
+    private int buildParallelism = 0;
+
+    /**
+     * 预写日志的持久化方式
+     */
+    @Value("${allknow.wal.durability:GROUP}")
+    private Durability walDurability = Durability.GROUP;
+
+    /**
+     * GROUP 时后台 fsync 预写日志的间隔毫秒数
+     */
+    @Value("${allknow.wal.syncMillis:10}")
+    private long walSyncMillis = 10L;
+
+    /**
+     * 预写日志文件达到该字节数后滚动, 只能整个文件截断
+     */
+    @Value("${allknow.wal.fileBytes:67108864}")
+    private long walFileBytes = 64L << 20;
+
+    /**
+     * 查询结果缓存的最大估算字节数, 为 0 时不缓存
+     */
+    @Value("${allknow.cache.bytes:67108864}")
+    private long cacheBytes = QueryCache.DEFAULT_MAX_BYTES;
+
+    public int getPlainIndexThreshold() {
+        return plainIndexThreshold;
+    }
+
+    public void setPlainIndexThreshold(int plainIndexThreshold) {
+        this.plainIndexThreshold = plainIndexThreshold;
+    }
+
+    public int getGramThreshold() {
+        return gramThreshold;
+    }
+
+    public void setGramThreshold(int gramThreshold) {
+        this.gramThreshold = gramThreshold;
+    }
+
+    public int getTooLongFactor() {
+        return tooLongFactor;
+    }
+
+    public void setTooLongFactor(int tooLongFactor) {
+        this.tooLongFactor = tooLongFactor;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public long getThrottleMillis() {
+        return throttleMillis;
+    }
+
+    public void setThrottleMillis(long throttleMillis) {
+        this.throttleMillis = throttleMillis;
+    }
+
+    public int getMergeFactor() {
+        return mergeFactor;
+    }
+
+    public void setMergeFactor(int mergeFactor) {
+        this.mergeFactor = mergeFactor;
+    }
+
+    public int getReindexThreads() {
+        return reindexThreads;
+    }
+
+    public void setReindexThreads(int reindexThreads) {
+        this.reindexThreads = reindexThreads;
+    }
+
+    public boolean isParallelBuild() {
+        return parallelBuild;
+    }
+
+    public void setParallelBuild(boolean parallelBuild) {
+        this.parallelBuild = parallelBuild;
+    }
+
+    public int getBuildParallelism() {
+        return buildParallelism > 0 ? buildParallelism : Runtime.getRuntime().availableProcessors();
+    }
+
+    public void setBuildParallelism(int buildParallelism) {
+        this.buildParallelism = buildParallelism;
+    }
+
+    public Durability getWalDurability() {
+        return walDurability;
+    }
+
+    public void setWalDurability(Durability walDurability) {
+        this.walDurability = walDurability;
+    }
+
+    public long getWalSyncMillis() {
+        return walSyncMillis;
+    }
+
+    public void setWalSyncMillis(long walSyncMillis) {
+        this.walSyncMillis = walSyncMillis;
+    }
+
+    public long getWalFileBytes() {
+        return walFileBytes;
+    }
+
+    public void setWalFileBytes(long walFileBytes) {
+        this.walFileBytes = walFileBytes;
+    }
+
+    public long getCacheBytes() {
+        return cacheBytes;
+    }
+
+    public void setCacheBytes(long cacheBytes) {
+        this.cacheBytes = cacheBytes;
+    }
+
+    /**
+     * @throws IndexParamException 参数设置不合理时
+     */
+    public void validate() {
+        if (plainIndexThreshold <= 0 || gramThreshold <= 0 || tooLongFactor < 1 || mergeFactor < 2 || reindexThreads <= 0
+                || overflowPolicy == null || throttleMillis < 0 || cacheBytes < 0
+                || walDurability == null || walSyncMillis <= 0 || walFileBytes <= 0) {
+            throw new IndexParamException("Invalid index config: " + this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "IndexConfig{plainIndexThreshold=" + plainIndexThreshold
+                + ", gramThreshold=" + gramThreshold
+                + ", tooLongFactor=" + tooLongFactor
+                + ", overflowPolicy=" + overflowPolicy
+                + ", throttleMillis=" + throttleMillis
+                + ", mergeFactor=" + mergeFactor
+                + ", reindexThreads=" + reindexThreads
+                + ", parallelBuild=" + parallelBuild
+                + ", buildParallelism=" + buildParallelism
+                + ", walDurability=" + walDurability
+                + ", walSyncMillis=" + walSyncMillis
+                + ", walFileBytes=" + walFileBytes
+                + ", cacheBytes=" + cacheBytes + '}';
+    }
+}
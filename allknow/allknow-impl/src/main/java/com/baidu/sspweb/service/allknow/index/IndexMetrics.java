@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow.index;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 各操作的耗时分布和段替换次数, 所有用户共享 <br/>
+ * 查询, 写入, 导入由 MonitoredIndex 记录, 构建和合并段由 HotSwapKWIC 记录
+ *
+ * @see MonitoredIndex#registerMBeans
+ *
+ * Created by whimsy on 15/12/24.
+ */
+public class IndexMetrics {
+
+    private final LatencyHistogram query = new LatencyHistogram();
+
+    private final LatencyHistogram push = new LatencyHistogram();
+
+    private final LatencyHistogram load = new LatencyHistogram();
+
+    private final LatencyHistogram rebuild = new LatencyHistogram();
+
+    private final LatencyHistogram merge = new LatencyHistogram();
+
+    /**
+     * 发布新的段列表的次数, 即构建 + 合并
+     */
+    private final AtomicLong swaps = new AtomicLong();
+
+    /**
+     * 最近一次构建段完成的时间, 毫秒
+     */
+    private final AtomicLong lastRebuildMillis = new AtomicLong();
+
+    /**
+     * @return 查询的耗时, 包括命中缓存的查询
+     */
+    public LatencyHistogram getQuery() {
+        return query;
+    }
+
+    /**
+     * @return 单条写入的耗时, 包括写日志和限流等待
+     */
+    public LatencyHistogram getPush() {
+        return push;
+    }
+
+    /**
+     * @return 一次批量导入的耗时
+     */
+    public LatencyHistogram getLoad() {
+        return load;
+    }
+
+    /**
+     * @return 把增量构建成段的耗时, 次数即构建次数
+     */
+    public LatencyHistogram getRebuild() {
+        return rebuild;
+    }
+
+    /**
+     * @return 合并段的耗时
+     */
+    public LatencyHistogram getMerge() {
+        return merge;
+    }
+
+    /**
+     * @return 发布新的段列表的次数
+     */
+    public long getSwaps() {
+        return swaps.get();
+    }
+
+    /**
+     * @return 最近一次构建段完成的时间, 没有构建过时为 0
+     */
+    public long getLastRebuildMillis() {
+        return lastRebuildMillis.get();
+    }
+
+    void rebuilt(long startNanos) {
+        rebuild.recordSince(startNanos);
+        lastRebuildMillis.set(System.currentTimeMillis());
+    }
+
+    void swapped() {
+        swaps.incrementAndGet();
+    }
+
+    @Override
+    public String toString() {
+        return "IndexMetrics{query=" + query
+                + ", push=" + push
+                + ", load=" + load
+                + ", rebuild=" + rebuild
+                + ", merge=" + merge
+                + ", swaps=" + swaps + '}';
+    }
+}
@@ -3,17 +3,20 @@
  */
 package com.baidu.sspweb.service.allknow.index;
 
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 import java.util.TreeMap;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import com.baidu.sspweb.service.allknow.index.suffix.SAISBuilder;
+import com.baidu.sspweb.service.allknow.index.suffix.SuffixArrayBuilder;
+import com.baidu.sspweb.service.allknow.query.MatchMode;
 import com.baidu.unbiz.common.Assert;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
 
 import edu.princeton.cs.algs4.Manber;
 
@@ -22,7 +25,10 @@ import edu.princeton.cs.algs4.Manber;
  *     1. 查询接口 <br/>
  *          根据keyword, 找出符合like %keyword% 的所有数据 <br/>
  *     2. 插入接口(重新构建索引) <br/>
- *          插入新的数据集合， 合并（更新或新增）后重新构建索引 <br/>
+ *          旧索引 + 新的数据集合， 合并（更新或新增）后构建新的索引 <br/>
+ *
+ * 构建完成后不可变, 可以被多个线程同时查询 <br/>
+ * 只保留 索引字串 + 后缀数组 + 条目边界表(starts + 分块目录 blocks), 条目 content 查询时从索引字串中截取 <br/>
  *
  * <br/>
  * Created by whimsy on 9/5/14.
@@ -30,120 +36,521 @@ import edu.princeton.cs.algs4.Manber;
 public class KWIC {
 
     /**
-     * 后缀数组的核心算法
+     * 默认的后缀数组构建算法
+     */
+    public static final SuffixArrayBuilder DEFAULT_BUILDER = new SAISBuilder();
+
+    /**
+     * 每 2^BLOCK_SHIFT 个字符记录一个条目序号, 每个字符约 0.5 bit
      */
-    private Manber manber;
+    private static final int BLOCK_SHIFT = 6;
 
     /**
-     * key : keyword 在 Manber 索引字串中的开始下标
+     * 后缀数组的核心算法, 同时持有索引字串 <br/>
+     * 数据条目的 content 只存在于该字串中, 不再另外保存
+     */
+    private final Manber manber;
+
+    /**
+     * 后缀数组构建算法, 复制索引时沿用
+     */
+    private final SuffixArrayBuilder builder;
+
+    /**
+     * starts[i] : 第 i 个数据条目之前的分隔符在 Manber 索引字串中的下标 <br/>
+     * 第 i 个条目的 content 为 text[starts[i] + 1, starts[i + 1]) <br/>
+     * 最后一位为最后一个条目之后的分隔符 <br/>
      *
-     * 可通过该manber计算得到的id转化为用户数据条目
+     * 可通过该manber计算得到的下标转化为用户数据条目
      *
      * @see #find
      */
-    private TreeMap<Integer, PairEntry> dict = new TreeMap<Integer, PairEntry>();
+    private final IntBuffer starts;
 
     /**
-     * 存入后缀索引内数据的Map形式的保存, 用来加入新的数据重新构建索引时， 合并相同ID <br/>
-     * 在复制索引时需要复制该值 <br/>
-     *
-     * indexLock控制了并发量， stash无线程安全问题 <br/>
-     *
-     * @see #putAndReConstruct
-     * @see #KWIC
+     * ids[i] : 第 i 个数据条目的ID, 升序
      */
-    private TreeMap<Long, PairEntry> stash = Maps.newTreeMap();
+    private final LongBuffer ids;
 
     /**
-     * 索引的锁
-     *
-     * manber 是后缀索引， <br/>
-     * dict 是本类对外接口的辅助数据， 完成从Manber下标->数据条目的映射 <br/>
-     *
-     * 1. manber + dict 构成了KWIC <br/>
-     * 2. stash 数据易读取的存储方式， 同时保证ID相同被合并, 方便重构索引 <br/>
-     *
-     * manber + dict + stash 三者在存取上一致， 用同一个锁indexLock 来控制竞争状态， 保证数据的一致性。
+     * blocks[b] : 下标 b << BLOCK_SHIFT 所在数据条目的序号 <br/>
+     * 下标 index 所在的条目序号在 [blocks[index >>> BLOCK_SHIFT], blocks[(index >>> BLOCK_SHIFT) + 1]] 之间,
+     * 一般只有一个, 不需要在整个 starts 上二分查找
      *
+     * @see #ordinalOf
      */
-    private ReadWriteLock indexLock = new ReentrantReadWriteLock();
+    private final int[] blocks;
 
     /**
      * 用数据集合构建索引
      * @param pairEntries  数据集合 NotNull
      */
     public KWIC(Collection<PairEntry> pairEntries) {
+        this(pairEntries, DEFAULT_BUILDER);
+    }
 
-        Assert.assertNotNull(pairEntries);
-
-        indexLock.writeLock().lock();
-        try {
-            putAndReConstruct(pairEntries);
-        } finally {
-            indexLock.writeLock().unlock();
-        }
+    /**
+     * 用数据集合构建索引
+     * @param pairEntries  数据集合 NotNull
+     * @param builder  后缀数组构建算法 NotNull
+     */
+    public KWIC(Collection<PairEntry> pairEntries, SuffixArrayBuilder builder) {
+        this(merge(null, pairEntries), builder);
     }
 
     /**
-     * 旧的索引 + 新增数据集合 构造新的索引
+     * 旧的索引 + 新增数据集合 构造新的索引, 相同ID以新增数据为准
      * @param that  旧索引 NotNull
      * @param pairEntries  新的数据集合 NotNull
      */
     public KWIC(KWIC that, Collection<PairEntry> pairEntries) {
-        Assert.assertNotNull(that);
-        Assert.assertNotNull(pairEntries);
+        this(merge(that, pairEntries), that.builder);
+    }
+
+    private KWIC(TreeMap<Long, String> contents, SuffixArrayBuilder builder) {
+        Assert.assertNotNull(builder);
+
+        this.builder = builder;
+
+        int[] starts = new int[contents.size() + 1];
+        long[] ids = new long[contents.size()];
+
+        int total = 0;
+        int ordinal = 0;
+
+        // start sentry
+        StringBuilder sb = new StringBuilder(Manber.START_SENTRY);
 
-        indexLock.writeLock().lock();
-        try {
-            this.stash = (TreeMap<Long, PairEntry>) that.stash.clone();
-            putAndReConstruct(pairEntries);
-        } finally {
-            indexLock.writeLock().unlock();
+        for (Map.Entry<Long, String> entry : contents.entrySet()) {
+            starts[ordinal] = total;
+            ids[ordinal++] = entry.getKey();
+            sb.append(entry.getValue()).append(Manber.WORD_SEPARATOR);  // specail seperator
+            total += entry.getValue().length() + 1;
         }
+        starts[ordinal] = total;
 
+        // end sentry
+        sb = sb.append(Manber.END_SENTRY);
+
+        String text = sb.toString();
+        this.manber = new Manber(text, builder.build(text));
+        this.starts = IntBuffer.wrap(starts);
+        this.ids = LongBuffer.wrap(ids);
+        this.blocks = buildBlocks();
+    }
+
+    /**
+     * 使用已有的全部数据构造索引, 比如内存映射的索引文件
+     *
+     * @see SnapshotStore#open
+     */
+    KWIC(Manber manber, IntBuffer starts, LongBuffer ids, SuffixArrayBuilder builder) {
+        this.manber = manber;
+        this.starts = starts;
+        this.ids = ids;
+        this.builder = builder;
+        this.blocks = buildBlocks();
+    }
+
+    /**
+     * 顺序扫描 starts, 计算每一块起点所在的条目序号
+     */
+    private int[] buildBlocks() {
+        int size = size();
+        int[] blocks = new int[(manber.length() >>> BLOCK_SHIFT) + 2];
+        int ordinal = 0;
+        for (int b = 0; b < blocks.length; b++) {
+            long position = (long) b << BLOCK_SHIFT;
+            while (ordinal + 1 < size && starts.get(ordinal + 1) <= position) {
+                ordinal++;
+            }
+            blocks[b] = ordinal;
+        }
+        return blocks;
+    }
+
+    /**
+     * 合并旧索引中的数据和新增数据, 只在构建期间存在
+     */
+    private static TreeMap<Long, String> merge(KWIC that, Collection<PairEntry> pairEntries) {
+        Assert.assertNotNull(pairEntries);
+
+        TreeMap<Long, String> contents = Maps.newTreeMap();
+        if (that != null) {
+            for (int i = 0; i < that.size(); i++) {
+                contents.put(that.ids.get(i), that.content(i));
+            }
+        }
+        for (PairEntry entry : pairEntries) {
+            contents.put(entry.getId(), entry.getContent());
+        }
+        return contents;
     }
 
     /**
      * 根据keyword, 找出符合like %keyword% 的所有数据
      *
      * @param query 查询关键字
-     * @return 满足条件的数据列表
+     * @return 满足条件的数据列表, 按ID升序
      */
     public List<PairEntry> find(String query) {
 
-        Set<PairEntry> res = Sets.newTreeSet();
+        BitSet ordinals = match(query, MatchMode.CONTAINS);
 
-        for (Integer index : manber.findPrefixMatch(query)) {
-            res.add(dict.floorEntry(index).getValue());
+        List<PairEntry> res = Lists.newArrayListWithCapacity(ordinals.cardinality());
+        for (int ordinal = ordinals.nextSetBit(0); ordinal >= 0; ordinal = ordinals.nextSetBit(ordinal + 1)) {
+            res.add(new PairEntry(ids.get(ordinal), content(ordinal)));
         }
+        return res;
 
-        return Lists.newArrayList(res);
+    }
 
+    /**
+     * 根据keyword, 找出符合like %keyword% 的所有数据ID <br/>
+     * 不创建 PairEntry, 也不装箱
+     *
+     * @param query 查询关键字
+     * @return 满足条件的数据ID, 升序
+     */
+    public long[] findIds(String query) {
+        return findIds(query, MatchMode.CONTAINS);
     }
 
     /**
-     * 插入新的数据集合， 合并（更新或新增）后重新构建索引
-     * @param pairEntries 数据集合
+     * 根据keyword 和匹配方式, 找出满足条件的所有数据ID <br/>
+     * PREFIX, SUFFIX, EXACT 连同条目前后的分隔符一起在后缀数组上查找, 匹配区间内的后缀都满足条件
+     *
+     * @param query 查询关键字
+     * @param mode 匹配方式
+     * @return 满足条件的数据ID, 升序
      */
-    public void putAndReConstruct(Collection<PairEntry> pairEntries) {
-        int total = 0;
+    public long[] findIds(String query, MatchMode mode) {
 
-        // start sentry
-        StringBuilder sb = new StringBuilder(Manber.START_SENTRY);
+        BitSet ordinals = match(query, mode);
 
-        for (PairEntry entry : pairEntries) {
-            stash.put(entry.getId(), entry);
+        long[] res = new long[ordinals.cardinality()];
+        int i = 0;
+        for (int ordinal = ordinals.nextSetBit(0); ordinal >= 0; ordinal = ordinals.nextSetBit(ordinal + 1)) {
+            res[i++] = ids.get(ordinal);
         }
+        return res;
+    }
+
+    /**
+     * 后缀数组中匹配区间 -> 条目序号的位图, 同时完成去重和按ID排序 <br/>
+     * 第一个条目前是 START_SENTRY, 其余条目前是 WORD_SEPARATOR, 锚定开头时两者都要查找
+     *
+     * @return 满足条件的条目序号
+     */
+    private BitSet match(String query, MatchMode mode) {
+        BitSet ordinals = new BitSet(size());
 
-        for (PairEntry entry : stash.values()) {
-            dict.put(total, entry);
-            sb.append(entry.getContent()).append(Manber.WORD_SEPARATOR);  // specail seperator
-            total += entry.getContent().length() + 1;
+        switch (mode) {
+            case PREFIX:
+                mark(ordinals, Manber.START_SENTRY + query, 0);
+                mark(ordinals, Manber.WORD_SEPARATOR + query, 0);
+                break;
+            case SUFFIX:
+                // 从 query 的最后一个字符定位条目, query 为空时为分隔符之前的位置
+                mark(ordinals, query + Manber.WORD_SEPARATOR, query.length() - 1);
+                break;
+            case EXACT:
+                mark(ordinals, Manber.START_SENTRY + query + Manber.WORD_SEPARATOR, 0);
+                mark(ordinals, Manber.WORD_SEPARATOR + query + Manber.WORD_SEPARATOR, 0);
+                break;
+            default:
+                mark(ordinals, query, 0);
+                break;
         }
+        return ordinals;
+    }
 
-        // end sentry
-        sb = sb.append(Manber.END_SENTRY);
+    /**
+     * 标记前缀为 pattern 的后缀所在的条目 <br/>
+     * 最后一个条目之后的 END_SENTRY 不属于任何条目
+     *
+     * @param shift 后缀起点到用于定位条目的下标的偏移
+     */
+    private void mark(BitSet ordinals, String pattern, int shift) {
+        int end = starts.get(size());
+        int ceiling = manber.ceiling(pattern);
+        for (int rank = manber.floor(pattern); rank < ceiling; rank++) {
+            int index = manber.indexAt(rank) + shift;
+            if (index < end) {
+                int ordinal = ordinalOf(index);
+                if (ordinal >= 0) {
+                    ordinals.set(ordinal);
+                }
+            }
+        }
+    }
+
+    /**
+     * 满足 like %keyword% 的条目数量 <br/>
+     * 后缀数组中匹配的后缀不超过1个时直接由区间大小得到, 不需要访问条目
+     *
+     * @param query 查询关键字
+     * @return 满足条件的条目数量
+     */
+    public int count(String query) {
+        int floor = manber.floor(query);
+        int ceiling = manber.ceiling(query);
+        if (ceiling - floor <= 1) {
+            return ceiling - floor == 1 && ordinalOf(manber.indexAt(floor)) >= 0 ? 1 : 0;
+        }
+        return match(query, MatchMode.CONTAINS).cardinality();
+    }
+
+    /**
+     * 按ID升序逐个访问满足 like %keyword% 的条目, 用于分页时提前结束 <br/>
+     * 匹配的后缀多于条目数时, 按条目顺序逐个匹配, 访问的条目数只与需要的结果数有关
+     *
+     * @param query 查询关键字
+     * @return 指向第一个满足条件条目的游标
+     */
+    public Cursor cursor(String query) {
+        int floor = manber.floor(query);
+        int ceiling = manber.ceiling(query);
+        if (ceiling - floor > size()) {
+            return new Cursor(query, null);
+        }
+        BitSet ordinals = new BitSet(size());
+        for (int rank = floor; rank < ceiling; rank++) {
+            int ordinal = ordinalOf(manber.indexAt(rank));
+            if (ordinal >= 0) {
+                ordinals.set(ordinal);
+            }
+        }
+        return new Cursor(query, ordinals);
+    }
+
+    /**
+     * 按ID升序的结果游标, 只在调用 entry 时截取 content
+     */
+    public final class Cursor {
+
+        private final String query;
+
+        /**
+         * 满足条件的条目序号, 为 null 时按条目顺序逐个匹配
+         */
+        private final BitSet ordinals;
+
+        /**
+         * 当前条目序号, 结束时为 -1
+         */
+        private int ordinal;
+
+        private Cursor(String query, BitSet ordinals) {
+            this.query = query;
+            this.ordinals = ordinals;
+            this.ordinal = seek(0);
+        }
+
+        /**
+         * @return 是否还有条目
+         */
+        public boolean valid() {
+            return ordinal >= 0;
+        }
+
+        /**
+         * @return 当前条目的ID
+         */
+        public long id() {
+            return ids.get(ordinal);
+        }
+
+        /**
+         * @return 当前条目
+         */
+        public PairEntry entry() {
+            return new PairEntry(ids.get(ordinal), content(ordinal));
+        }
+
+        /**
+         * 移动到下一个条目
+         */
+        public void next() {
+            ordinal = seek(ordinal + 1);
+        }
+
+        /**
+         * @return 不小于 from 的第一个满足条件的条目序号, 没有时返回 -1
+         */
+        private int seek(int from) {
+            if (ordinals != null) {
+                return ordinals.nextSetBit(from);
+            }
+            for (int i = from; i < size(); i++) {
+                if (contentContains(i, query)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * @param id 数据条目ID
+     * @return 索引中是否有该ID的条目, 用于判断旧段中的条目是否已被新的段覆盖
+     */
+    public boolean contains(long id) {
+        return ordinalOfId(id) >= 0;
+    }
+
+    /**
+     * @param id 数据条目ID
+     * @return 条目的 content, 不存在时返回 null
+     */
+    public String contentOf(long id) {
+        int ordinal = ordinalOfId(id);
+        return ordinal < 0 ? null : content(ordinal);
+    }
 
-        manber = new Manber(sb.toString());
+    /**
+     * 满足 like %keyword% 的条目数的上界, 即后缀数组中匹配区间的大小, 不访问条目
+     *
+     * @param query 查询关键字
+     * @return 匹配的后缀数
+     */
+    public int estimate(String query) {
+        return manber.ceiling(query) - manber.floor(query);
+    }
+
+    /**
+     * 按匹配方式估算条目数的上界, 锚定的方式为带分隔符的匹配区间大小
+     *
+     * @param query 查询关键字
+     * @param mode 匹配方式
+     * @return 匹配的后缀数
+     */
+    public int estimate(String query, MatchMode mode) {
+        switch (mode) {
+            case PREFIX:
+                return estimate(Manber.START_SENTRY + query) + estimate(Manber.WORD_SEPARATOR + query);
+            case SUFFIX:
+                return estimate(query + Manber.WORD_SEPARATOR);
+            case EXACT:
+                return estimate(Manber.START_SENTRY + query + Manber.WORD_SEPARATOR)
+                        + estimate(Manber.WORD_SEPARATOR + query + Manber.WORD_SEPARATOR);
+            default:
+                return estimate(query);
+        }
+    }
+
+    /**
+     * @return 全部数据条目, 按ID升序, 用于合并段
+     */
+    public List<PairEntry> entries() {
+        List<PairEntry> res = Lists.newArrayListWithCapacity(size());
+        for (int i = 0; i < size(); i++) {
+            res.add(new PairEntry(ids.get(i), content(i)));
+        }
+        return res;
+    }
+
+    /**
+     * @return 数据条目数量
+     */
+    public int size() {
+        return ids.limit();
+    }
+
+    /**
+     * 估算常驻内存大小, 不包括构建期间的临时数据
+     *
+     * @return 字节数
+     */
+    public long retainedSize() {
+        long size = manber.retainedSize() + 4L * blocks.length;
+        if (ids.hasArray()) {
+            size += 4L * starts.limit() + 8L * ids.limit();
+        }
+        return size;
+    }
+
+    Manber getManber() {
+        return manber;
+    }
+
+    IntBuffer getStarts() {
+        return starts.asReadOnlyBuffer();
+    }
+
+    LongBuffer getIds() {
+        return ids.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return ID 为 id 的条目序号, 不存在时返回 -1
+     */
+    private int ordinalOfId(long id) {
+        int left = 0;
+        int right = size() - 1;
+        while (left <= right) {
+            int mid = (left + right) >>> 1;
+            long value = ids.get(mid);
+            if (value < id) {
+                left = mid + 1;
+            } else if (value > id) {
+                right = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param index Manber 索引字串的下标
+     * @return 下标所在数据条目的序号, 没有数据时返回 -1
+     */
+    private int ordinalOf(int index) {
+        int size = size();
+        if (size == 0) {
+            return -1;
+        }
+        // 最后一个 starts[ordinal] <= index, 只在所在块的范围内查找
+        int block = index >>> BLOCK_SHIFT;
+        int left = blocks[block];
+        int right = blocks[block + 1];
+        while (left < right) {
+            int mid = (left + right + 1) >>> 1;
+            if (starts.get(mid) <= index) {
+                left = mid;
+            } else {
+                right = mid - 1;
+            }
+        }
+        return left;
+    }
+
+    /**
+     * 在索引字串上直接匹配, 不截取 content
+     *
+     * @return 第 ordinal 个数据条目的 content 是否包含 query
+     */
+    private boolean contentContains(int ordinal, String query) {
+        CharSequence text = manber.getText();
+        int from = starts.get(ordinal) + 1;
+        int last = starts.get(ordinal + 1) - query.length();
+        for (int i = from; i <= last; i++) {
+            int k = 0;
+            while (k < query.length() && text.charAt(i + k) == query.charAt(k)) {
+                k++;
+            }
+            if (k == query.length()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return 第 ordinal 个数据条目的 content
+     */
+    private String content(int ordinal) {
+        return manber.getText().subSequence(starts.get(ordinal) + 1, starts.get(ordinal + 1)).toString();
     }
 }
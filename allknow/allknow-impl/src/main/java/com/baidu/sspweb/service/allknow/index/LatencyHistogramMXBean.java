@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow.index;
+
+/**
+ * 一种操作的耗时分布, 单位微秒 <br/>
+ * 分位数是所在桶的上界, 相对误差不超过 1/8
+ *
+ * @see LatencyHistogram
+ *
+ * Created by whimsy on 15/12/24.
+ */
+public interface LatencyHistogramMXBean {
+
+    /**
+     * @return 上次 reset 之后的次数
+     */
+    long getCount();
+
+    long getMeanMicros();
+
+    long getP50Micros();
+
+    long getP99Micros();
+
+    long getP999Micros();
+
+    long getMaxMicros();
+
+    /**
+     * 清空计数, 比如发布新版本之后重新观察
+     */
+    void reset();
+}
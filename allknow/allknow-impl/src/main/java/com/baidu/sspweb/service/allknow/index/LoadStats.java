@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow.index;
+
+/**
+ * 一次批量导入的统计
+ *
+ * @see TsvLoader
+ *
+ * Created by whimsy on 15/12/23.
+ */
+public class LoadStats {
+
+    private static final double MB = 1024.0 * 1024.0;
+
+    private final long bytes;
+
+    private final long lines;
+
+    private final long skipped;
+
+    private final long users;
+
+    private final long elapsedMillis;
+
+    private final long peakHeapBytes;
+
+    LoadStats(long bytes, long lines, long skipped, long users, long elapsedMillis, long peakHeapBytes) {
+        this.bytes = bytes;
+        this.lines = lines;
+        this.skipped = skipped;
+        this.users = users;
+        this.elapsedMillis = elapsedMillis;
+        this.peakHeapBytes = peakHeapBytes;
+    }
+
+    /**
+     * @return 文件字节数
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return 导入的行数
+     */
+    public long getLines() {
+        return lines;
+    }
+
+    /**
+     * @return 格式错误被跳过的行数
+     */
+    public long getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * @return 不同的用户数
+     */
+    public long getUsers() {
+        return users;
+    }
+
+    /**
+     * @return 读取文件到所有用户构建完成的毫秒数
+     */
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    /**
+     * @return 导入期间各堆内存池峰值之和, 略大于堆的实际峰值
+     */
+    public long getPeakHeapBytes() {
+        return peakHeapBytes;
+    }
+
+    /**
+     * @return 吞吐量 MB/s
+     */
+    public double getThroughput() {
+        return elapsedMillis == 0 ? 0 : bytes / MB / (elapsedMillis / 1000.0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("LoadStats{lines=%d, skipped=%d, users=%d, size=%.1fMB, elapsed=%dms, "
+                        + "throughput=%.1fMB/s, peakHeap=%.1fMB}",
+                lines, skipped, users, bytes / MB, elapsedMillis, getThroughput(), peakHeapBytes / MB);
+    }
+}
@@ -3,103 +3,300 @@
  */
 package com.baidu.sspweb.service.allknow.index;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.Future;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.baidu.sspweb.service.allknow.QueryResult;
+import com.baidu.sspweb.service.allknow.index.suffix.ParallelBuilder;
+import com.baidu.sspweb.service.allknow.index.suffix.SuffixArrayBuilder;
+import com.baidu.sspweb.service.allknow.query.Query;
 import com.baidu.unbiz.common.Assert;
+import com.google.common.base.Supplier;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.MinMaxPriorityQueue;
 import com.google.common.collect.Multimap;
+import com.google.common.collect.Ordering;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
- * 启动监控线程 负责热替换任务
+ * 启动重建线程 负责热替换任务, 用户的增量达到阈值时进入调度队列
  *
  *  MonitorIndex -> HotSwapKWIC -> KWIC -> Manber
  *
  * Created by whimsy on 15/10/25.
  */
-public class MonitoredIndex implements Index {
+public class MonitoredIndex implements Index, MonitoredIndexMXBean {
 
 
     private static Logger logger = LoggerFactory.getLogger(MonitoredIndex.class);
     /**
      * 二维索引, 第一纬度UserId, 第二纬度为实现keyword -> Ids的高效查询的后缀索引
-     * userId -> suffixIndex
+     * userId -> suffixIndex <br/>
+     * ConcurrentMap 保证线程安全, 查询和插入都不需要全局锁, 新用户通过 putIfAbsent 注册
+     */
+    private final ConcurrentMap<Long, HotSwapKWIC> coreIndex = new ConcurrentHashMap<Long, HotSwapKWIC>();
+
+    private static final long[] EMPTY_IDS = new long[0];
+
+    /**
+     * JMX 中的域名
+     */
+    public static final String JMX_DOMAIN = "com.baidu.sspweb.allknow";
+
+    /**
+     * getLargestDeltas 返回的用户数
      */
-    private final Map<Long, HotSwapKWIC> coreIndex = new HashMap<Long, HotSwapKWIC>();
+    static final int LARGEST_DELTAS = 20;
 
     /**
-     * 1. 解决HashMap线程不安全问题
-     * 2. push & load 写锁， query & ReIndex 读锁, 避免竞争
-     * 避免“并发修改”
+     * 索引参数
      */
-    private ReadWriteLock indexMapLock = new ReentrantReadWriteLock();
+    private final IndexConfig config;
 
     /**
-     * 线程池的大小
+     * 事件驱动的重建调度, 只有增量达到阈值的用户进入队列
      */
-    private static final int THREAD_POOL_SIZE = 2;
+    private final ReIndexScheduler scheduler;
 
     /**
-     * 线程池
+     * 所有用户共享的增量过长计数
      */
-    ScheduledExecutorService service = Executors.newScheduledThreadPool(THREAD_POOL_SIZE);
+    private final OverflowStats overflowStats = new OverflowStats();
 
     /**
-     * 第一个监控线程开启的时间
+     * 所有用户共享的耗时分布和段替换次数
      */
-    private static final long MONITOR_INITIAL_DELAY = 5L;
+    private final IndexMetrics metrics = new IndexMetrics();
 
     /**
-     * 监控线程启动间隔
+     * 已注册的 MBean, closeThreadPool 时注销
      */
-    private static final long MONITOR_PERIOD = 5L;
+    private volatile List<ObjectName> mbeans = ImmutableList.of();
+
+    /**
+     * 所有用户共享的后缀数组构建算法, 默认单线程 SAIS, 配置 parallelBuild 时大用户并行构建
+     */
+    private final SuffixArrayBuilder builder;
+
+    /**
+     * 快照存储, 为 null 时不写快照
+     */
+    private volatile SnapshotStore snapshotStore;
+
+    /**
+     * 预写日志, 为 null 时不记录日志
+     */
+    private volatile WriteAheadLog log;
+
+    /**
+     * 查询结果缓存, key 中包含用户索引的版本号
+     */
+    private final QueryCache queryCache;
 
     public MonitoredIndex() {
+        this(new IndexConfig());
+    }
+
+    /**
+     * @param buildParallelism 重建索引时后缀数组构建的并行度
+     */
+    public MonitoredIndex(int buildParallelism) {
+        this(buildParallelism, QueryCache.DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param buildParallelism 重建索引时后缀数组构建的并行度
+     * @param cacheBytes 查询结果缓存的最大估算字节数, 为 0 时不缓存
+     */
+    public MonitoredIndex(int buildParallelism, long cacheBytes) {
+        this(config(buildParallelism, cacheBytes));
+    }
+
+    /**
+     * @param config 索引参数
+     */
+    public MonitoredIndex(IndexConfig config) {
+        Assert.assertNotNull(config);
+        config.validate();
+
+        this.config = config;
+        builder = config.isParallelBuild()
+                ? new ParallelBuilder(config.getBuildParallelism()) : KWIC.DEFAULT_BUILDER;
+        queryCache = new QueryCache(config.getCacheBytes());
+        scheduler = new ReIndexScheduler(config.getReindexThreads());
+    }
 
-        ReIndexTask task = new ReIndexTask();
-        service.scheduleAtFixedRate(task, MONITOR_INITIAL_DELAY,
-                MONITOR_PERIOD, TimeUnit.SECONDS);
+    private static IndexConfig config(int buildParallelism, long cacheBytes) {
+        IndexConfig config = new IndexConfig();
+        config.setBuildParallelism(buildParallelism);
+        config.setCacheBytes(cacheBytes);
+        return config;
     }
 
     /**
      * 防止tomcat 无法正常关闭， 需要关闭线程池
      */
     public void closeThreadPool() {
-        service.shutdownNow(); // Cancel currently executing tasks
-        if (!service.isTerminated()) {
-            logger.error("Pool did not terminate");
+        unregisterMBeans();
+        scheduler.shutdown();
+        // 重建线程已结束, 不会再使用构建线程池
+        if (builder instanceof ParallelBuilder) {
+            ((ParallelBuilder) builder).shutdown();
+        }
+        WriteAheadLog current = log;
+        if (current != null) {
+            current.close();
         }
     }
 
     /**
-     *  遍历所有用户的索引， 尝试重建索引
+     * 打开快照目录中所有用户的索引段, 之后每次构建或合并段都写入快照 <br/>
+     * 打开一个快照只需要内存映射文件, 不重建后缀数组 <br/>
+     * 打开失败的用户记录日志后跳过, 由之后的 load 重建
+     *
+     * @param store 快照存储
      */
-    private class ReIndexTask implements  Runnable {
-        @Override
-        public void run() {
+    public void openSnapshots(SnapshotStore store) {
+        Assert.assertNotNull(store);
+
+        snapshotStore = store;
+
+        Multimap<Long, Long> segments = store.segments();
+        for (Long userId : segments.keySet()) {
+            HotSwapKWIC index;
             try {
-                indexMapLock.readLock().lock();
-                try {
-                    for (HotSwapKWIC kwic : coreIndex.values()) {
-                        kwic.tryReIndex();
+                index = HotSwapKWIC.open(builder, userId, store, segments.get(userId),
+                        config, scheduler, overflowStats, metrics);
+            } catch (IOException e) {
+                logger.error("UserId = " + userId + " open snapshot failed", e);
+                continue;
+            }
+            coreIndex.put(userId, index);
+        }
+    }
+
+    /**
+     * 打开预写日志目录, 并行重放每个用户的记录, 之后的 push 和 load 都先写日志 <br/>
+     * 在 openSnapshots 之后, 任何写入之前调用, 恢复时间与日志大小成正比, 与数据总量无关
+     *
+     * @param dir 日志目录
+     * @throws IOException 读取日志失败
+     */
+    public void openLog(File dir) throws IOException {
+        Assert.assertNotNull(dir);
+        if (snapshotStore == null) {
+            // 日志只能截断到已写入快照的数据, 没有快照时日志会无限增长
+            throw new IllegalStateException("Write ahead log requires snapshots, call openSnapshots first");
+        }
+
+        WriteAheadLog wal = new WriteAheadLog(dir, config.getWalDurability(), config.getWalSyncMillis(),
+                config.getWalFileBytes());
+
+        // 按用户分组, 保持每个用户记录的顺序, LSN 为 NO_LSN 的记录表示删除用户
+        final ListMultimap<Long, Map.Entry<Long, List<PairEntry>>> records = LinkedListMultimap.create();
+        wal.replay(new WriteAheadLog.Replayer() {
+            @Override
+            public void put(long lsn, Long userId, List<PairEntry> entries) {
+                records.put(userId, Maps.immutableEntry(lsn, entries));
+            }
+
+            @Override
+            public void remove(long lsn, Long userId) {
+                records.removeAll(userId);
+                records.put(userId, Maps.immutableEntry(WriteAheadLog.NO_LSN, Collections.<PairEntry>emptyList()));
+            }
+        });
+
+        ExecutorService replayers = Executors.newFixedThreadPool(config.getBuildParallelism(),
+                new ThreadFactoryBuilder().setNameFormat("allknow-replay-%d").setDaemon(true).build());
+        try {
+            List<Future<?>> futures = Lists.newArrayList();
+            for (final Long userId : records.keySet()) {
+                final List<Map.Entry<Long, List<PairEntry>>> userRecords = records.get(userId);
+                futures.add(replayers.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (Map.Entry<Long, List<PairEntry>> record : userRecords) {
+                            if (record.getKey() == WriteAheadLog.NO_LSN) {
+                                drop(userId);
+                            } else {
+                                indexOf(userId).replay(record.getValue(), record.getKey());
+                            }
+                        }
                     }
-                } finally {
-                    indexMapLock.readLock().unlock();
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while replaying write ahead log");
+        } catch (ExecutionException e) {
+            throw new IOException("Replay write ahead log failed", e.getCause());
+        } finally {
+            replayers.shutdown();
+        }
+        logger.info("Replayed write ahead log of {} users", records.keySet().size());
+
+        log = wal;
+        for (HotSwapKWIC index : coreIndex.values()) {
+            index.attachLog(wal);
+        }
+        wal.setCheckpoint(new Supplier<Long>() {
+            @Override
+            public Long get() {
+                long oldest = WriteAheadLog.NO_LSN;
+                for (HotSwapKWIC index : coreIndex.values()) {
+                    oldest = Math.min(oldest, index.oldestLsn());
                 }
-            } catch (Exception e) {
-                logger.error("This shouldn't happen.", e);
+                return oldest;
             }
+        });
+    }
 
+    /**
+     * @return 用户的索引, 不存在时注册一个空索引
+     */
+    private HotSwapKWIC indexOf(Long userId) {
+        HotSwapKWIC index = coreIndex.get(userId);
+        if (index == null) {
+            HotSwapKWIC created = new HotSwapKWIC(builder, userId, snapshotStore, config, scheduler, overflowStats,
+                    metrics);
+            created.attachLog(log);
+            index = coreIndex.putIfAbsent(userId, created);
+            if (index == null) {
+                index = created;
+            }
         }
+        return index;
     }
 
     /**
@@ -112,84 +309,453 @@ public class MonitoredIndex implements Index {
             Assert.assertNotNull(entry.getContent());
         }
 
+        long start = System.nanoTime();
         for (Long userId : datas.keySet()) {
+            indexOf(userId).batchLoad(datas.get(userId));
+        }
+        metrics.getLoad().recordSince(start);
+    }
 
-            indexMapLock.writeLock().lock();
-            try {
-                if (coreIndex.get(userId) == null) {
-                    HotSwapKWIC kwic = new HotSwapKWIC();
-
-                    coreIndex.put(userId, kwic);
-                }
-            } finally {
-                indexMapLock.writeLock().unlock();
-            }
-
-            indexMapLock.readLock().lock();
+    /**
+     * 多线程下 同步状态插入 <br/>
+     *
+     * {@inheritDoc}
+     */
+    public void push(Long userId, Long id, String content) {
+        Assert.assertNotNull(content);
 
+        long start = System.nanoTime();
+        indexOf(userId).insertOrUpdate(new PairEntry(id, content));
+        metrics.getPush().recordSince(start);
+    }
 
-            HotSwapKWIC index = null;
+    /**
+     * 多线程下， 在同步状态下进行检索 <br/>
+     *
+     * {@inheritDoc}
+     */
+    public List<PairEntry> query(Long userId, final String keyword) {
+        long start = System.nanoTime();
+        final HotSwapKWIC index = coreIndex.get(userId);
+        if (index == null) {
+            logger.warn("UserId = {}, don't have index yet. keyword = {}", userId, keyword);
+            return Collections.<PairEntry>emptyList();
+        }
+        try {
+            return queryCache.get(userId, index.generation(), keyword, 0, -1, QueryCache.Kind.ENTRIES,
+                    new Callable<List<PairEntry>>() {
+                        @Override
+                        public List<PairEntry> call() {
+                            return ImmutableList.copyOf(index.find(keyword));
+                        }
+                    });
+        } finally {
+            metrics.getQuery().recordSince(start);
+        }
+    }
 
-            indexMapLock.readLock().lock();
-            try {
-                index = coreIndex.get(userId);
-            } finally {
-                indexMapLock.readLock().unlock();
+    /**
+     * 批量检索只读取一次用户索引, 不经过缓存 <br/>
+     *
+     * {@inheritDoc}
+     */
+    public Map<String, List<PairEntry>> query(Long userId, Collection<String> keywords) {
+        HotSwapKWIC index = coreIndex.get(userId);
+        if (index == null) {
+            logger.warn("UserId = {}, don't have index yet. keywords = {}", userId, keywords);
+            Map<String, List<PairEntry>> res = Maps.newLinkedHashMap();
+            for (String keyword : keywords) {
+                res.put(keyword, Collections.<PairEntry>emptyList());
             }
+            return res;
+        }
+        long start = System.nanoTime();
+        try {
+            return index.find(keywords);
+        } finally {
+            metrics.getQuery().recordSince(start);
+        }
+    }
 
-            index.batchLoad(datas.get(userId));
+    /**
+     * 多线程下， 在同步状态下进行检索 <br/>
+     *
+     * {@inheritDoc}
+     */
+    public long[] queryIds(Long userId, final String keyword) {
+        long start = System.nanoTime();
+        final HotSwapKWIC index = coreIndex.get(userId);
+        if (index == null) {
+            logger.warn("UserId = {}, don't have index yet. keyword = {}", userId, keyword);
+            return EMPTY_IDS;
+        }
+        try {
+            long[] ids = queryCache.get(userId, index.generation(), keyword, 0, -1, QueryCache.Kind.IDS,
+                    new Callable<long[]>() {
+                        @Override
+                        public long[] call() {
+                            return index.findIds(keyword);
+                        }
+                    });
+            // 缓存的数组被多个调用者共享
+            return ids.clone();
+        } finally {
+            metrics.getQuery().recordSince(start);
         }
     }
 
     /**
-     * 多线程下 同步状态插入 <br/>
+     * 多线程下， 在同步状态下进行分页检索 <br/>
      *
      * {@inheritDoc}
      */
-    public void push(Long userId, Long id, String content) {
-        Assert.assertNotNull(content);
+    public List<PairEntry> query(Long userId, final String keyword, final int offset, final int limit) {
+        long start = System.nanoTime();
+        final HotSwapKWIC index = coreIndex.get(userId);
+        if (index == null) {
+            logger.warn("UserId = {}, don't have index yet. keyword = {}", userId, keyword);
+            return Collections.<PairEntry>emptyList();
+        }
+        try {
+            return queryCache.get(userId, index.generation(), keyword, offset, limit, QueryCache.Kind.ENTRIES,
+                    new Callable<List<PairEntry>>() {
+                        @Override
+                        public List<PairEntry> call() {
+                            return ImmutableList.copyOf(index.find(keyword, offset, limit));
+                        }
+                    });
+        } finally {
+            metrics.getQuery().recordSince(start);
+        }
+    }
 
-        indexMapLock.writeLock().lock();
+    /**
+     * {@inheritDoc}
+     */
+    public int count(Long userId, final String keyword) {
+        final HotSwapKWIC index = coreIndex.get(userId);
+        if (index == null) {
+            return 0;
+        }
+        long start = System.nanoTime();
         try {
-            if (coreIndex.get(userId) == null) {
-                HotSwapKWIC index = new HotSwapKWIC();
-                coreIndex.put(userId, index);
-            }
+            return queryCache.get(userId, index.generation(), keyword, 0, -1, QueryCache.Kind.COUNT,
+                    new Callable<Integer>() {
+                        @Override
+                        public Integer call() {
+                            return index.count(keyword);
+                        }
+                    });
         } finally {
-            indexMapLock.writeLock().unlock();
+            metrics.getQuery().recordSince(start);
         }
+    }
 
+    /**
+     * 同步把用户的增量构建成段并合并, 不等待增量达到阈值 <br/>
+     * 用于测试和运维确定地触发热替换, 用户不存在时忽略
+     *
+     * @param userId 用户
+     */
+    public void reIndex(Long userId) {
+        HotSwapKWIC index = coreIndex.get(userId);
+        if (index != null) {
+            index.reIndexNow();
+        }
+    }
 
-        HotSwapKWIC index = null;
+    /**
+     * @return 查询结果缓存, 用于查看命中率, 淘汰次数和内存
+     */
+    public QueryCache getQueryCache() {
+        return queryCache;
+    }
 
-        indexMapLock.readLock().lock();
+    /**
+     * 不经过缓存: 缓存的结果没有记录查询时是否跳过了增量 <br/>
+     *
+     * {@inheritDoc}
+     */
+    public QueryResult queryIdResult(Long userId, String keyword) {
+        HotSwapKWIC index = coreIndex.get(userId);
+        if (index == null) {
+            logger.warn("UserId = {}, don't have index yet. keyword = {}", userId, keyword);
+            return new QueryResult(EMPTY_IDS, false);
+        }
+        long start = System.nanoTime();
         try {
-            index = coreIndex.get(userId);
+            return index.findIdResult(keyword);
         } finally {
-            indexMapLock.readLock().unlock();
+            metrics.getQuery().recordSince(start);
         }
+    }
 
-        index.insertOrUpdate(new PairEntry(id, content));
+    /**
+     * @return 增量过长时各种处理方式的触发次数
+     */
+    public OverflowStats getOverflowStats() {
+        return overflowStats;
     }
 
     /**
-     * 多线程下， 在同步状态下进行检索 <br/>
+     * @return 重建调度, 用于查看等待重建的用户数
+     */
+    public ReIndexScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * @return 各操作的耗时分布和段替换次数
+     */
+    public IndexMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 注册到平台 MBeanServer: <br/>
+     *      JMX_DOMAIN:type=MonitoredIndex,name=name <br/>
+     *      JMX_DOMAIN:type=Latency,name=name,operation=query|push|load|rebuild|merge <br/>
+     * 注册失败只记录日志, 监控不影响服务; closeThreadPool 时注销
      *
+     * @param name 区分同一进程中的多个索引
+     */
+    public synchronized void registerMBeans(String name) {
+        Assert.assertNotNull(name);
+
+        Map<String, Object> beans = Maps.newLinkedHashMap();
+        beans.put("type=MonitoredIndex,name=" + ObjectName.quote(name), this);
+        String latency = "type=Latency,name=" + ObjectName.quote(name) + ",operation=";
+        beans.put(latency + "query", metrics.getQuery());
+        beans.put(latency + "push", metrics.getPush());
+        beans.put(latency + "load", metrics.getLoad());
+        beans.put(latency + "rebuild", metrics.getRebuild());
+        beans.put(latency + "merge", metrics.getMerge());
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        List<ObjectName> registered = Lists.newArrayList(mbeans);
+        for (Map.Entry<String, Object> bean : beans.entrySet()) {
+            try {
+                registered.add(server.registerMBean(bean.getValue(),
+                        new ObjectName(JMX_DOMAIN + ":" + bean.getKey())).getObjectName());
+            } catch (JMException e) {
+                logger.error("Register MBean " + bean.getKey() + " failed", e);
+            }
+        }
+        mbeans = ImmutableList.copyOf(registered);
+    }
+
+    private synchronized void unregisterMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : mbeans) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                logger.error("Unregister MBean " + name + " failed", e);
+            }
+        }
+        mbeans = ImmutableList.of();
+    }
+
+    @Override
+    public int getUserCount() {
+        return coreIndex.size();
+    }
+
+    @Override
+    public int getSegmentCount() {
+        int count = 0;
+        for (HotSwapKWIC index : coreIndex.values()) {
+            count += index.segmentCount();
+        }
+        return count;
+    }
+
+    @Override
+    public long getTotalDeltaSize() {
+        long total = 0;
+        for (HotSwapKWIC index : coreIndex.values()) {
+            total += index.deltaSize();
+        }
+        return total;
+    }
+
+    @Override
+    public int getMaxDeltaSize() {
+        int max = 0;
+        for (HotSwapKWIC index : coreIndex.values()) {
+            max = Math.max(max, index.deltaSize());
+        }
+        return max;
+    }
+
+    @Override
+    public Map<Long, Integer> getLargestDeltas() {
+        Ordering<Map.Entry<Long, Integer>> bySize = new Ordering<Map.Entry<Long, Integer>>() {
+            @Override
+            public int compare(Map.Entry<Long, Integer> left, Map.Entry<Long, Integer> right) {
+                return Integer.compare(right.getValue(), left.getValue());
+            }
+        };
+        MinMaxPriorityQueue<Map.Entry<Long, Integer>> largest = MinMaxPriorityQueue.orderedBy(bySize)
+                .maximumSize(LARGEST_DELTAS).create();
+        for (Map.Entry<Long, HotSwapKWIC> entry : coreIndex.entrySet()) {
+            int size = entry.getValue().deltaSize();
+            if (size > 0) {
+                largest.add(Maps.immutableEntry(entry.getKey(), size));
+            }
+        }
+        Map<Long, Integer> res = Maps.newLinkedHashMap();
+        for (Map.Entry<Long, Integer> entry : bySize.sortedCopy(largest)) {
+            res.put(entry.getKey(), entry.getValue());
+        }
+        return res;
+    }
+
+    @Override
+    public int deltaSize(long userId) {
+        HotSwapKWIC index = coreIndex.get(userId);
+        return index == null ? -1 : index.deltaSize();
+    }
+
+    @Override
+    public int getReIndexQueueDepth() {
+        return scheduler.pendingCount();
+    }
+
+    @Override
+    public long getRebuildCount() {
+        return metrics.getRebuild().getCount();
+    }
+
+    @Override
+    public long getMergeCount() {
+        return metrics.getMerge().getCount();
+    }
+
+    @Override
+    public long getSwapCount() {
+        return metrics.getSwaps();
+    }
+
+    @Override
+    public long getSecondsSinceLastRebuild() {
+        long last = metrics.getLastRebuildMillis();
+        return last == 0 ? -1L : (System.currentTimeMillis() - last) / 1000L;
+    }
+
+    @Override
+    public long getRetainedBytes() {
+        long size = 0;
+        for (HotSwapKWIC index : coreIndex.values()) {
+            size += index.retainedSize();
+        }
+        return size;
+    }
+
+    @Override
+    public long getQueryCacheBytes() {
+        return queryCache.retainedSize();
+    }
+
+    @Override
+    public double getQueryCacheHitRate() {
+        CacheStats stats = queryCache.stats();
+        return stats.hitRate();
+    }
+
+    @Override
+    public long getInlineCompactions() {
+        return overflowStats.getInlineCompactions();
+    }
+
+    @Override
+    public long getThrottledWrites() {
+        return overflowStats.getThrottledWrites();
+    }
+
+    @Override
+    public long getThrottleTimeouts() {
+        return overflowStats.getThrottleTimeouts();
+    }
+
+    @Override
+    public long getDegradedQueries() {
+        return overflowStats.getDegradedQueries();
+    }
+
+    /**
      * {@inheritDoc}
      */
-    public List<PairEntry> query(Long userId, String keyword) {
-        HotSwapKWIC index = null;
-        indexMapLock.readLock().lock();
+    public long[] queryIds(Long userId, Query query) {
+        HotSwapKWIC index = coreIndex.get(userId);
+        if (index == null) {
+            logger.warn("UserId = {}, don't have index yet. query = {}", userId, query);
+            return EMPTY_IDS;
+        }
+        long start = System.nanoTime();
         try {
-            index = coreIndex.get(userId);
+            return index.findIds(query);
         } finally {
-            indexMapLock.readLock().unlock();
+            metrics.getQuery().recordSince(start);
         }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Set<Long> userIds() {
+        return ImmutableSet.copyOf(coreIndex.keySet());
+    }
+
+    /**
+     * 不经过缓存, 增量过长时也不降级 <br/>
+     *
+     * {@inheritDoc}
+     */
+    public List<PairEntry> export(Long userId) {
+        HotSwapKWIC index = coreIndex.get(userId);
         if (index == null) {
-            logger.warn("UserId = {}, don't have index yet. keyword = {}", userId, keyword);
-            return Collections.EMPTY_LIST;
-        } else {
-            return index.find(keyword);
+            return Collections.emptyList();
+        }
+        return index.export();
+    }
+
+    /**
+     * 删除后用户的查询返回空结果, 快照删除失败时记录日志 <br/>
+     *
+     * {@inheritDoc}
+     */
+    public void remove(Long userId) {
+        WriteAheadLog current = log;
+        if (current != null && coreIndex.containsKey(userId)) {
+            try {
+                current.remove(userId);
+            } catch (IOException e) {
+                throw new IllegalStateException("UserId = " + userId + " write ahead log failed", e);
+            }
+        }
+        drop(userId);
+    }
+
+    /**
+     * 删除用户的索引和快照, 不写日志 <br/>
+     * 先关闭索引, 已在调度队列中或正在进行的构建不会再写入快照, 再删除索引中所有段的快照
+     */
+    private void drop(Long userId) {
+        HotSwapKWIC index = coreIndex.remove(userId);
+        if (index == null) {
+            return;
+        }
+        List<Long> seqs = index.close();
+        SnapshotStore store = snapshotStore;
+        if (store != null) {
+            for (Long seq : seqs) {
+                try {
+                    store.delete(userId, seq);
+                } catch (IOException e) {
+                    logger.error("UserId = " + userId + " delete snapshot " + seq + " failed", e);
+                }
+            }
         }
     }
 
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow.index;
+
+import java.util.Map;
+
+/**
+ * 索引的健康状况, 每次读取都遍历所有用户, 不在查询路径上计算 <br/>
+ * 各操作的耗时分布注册为单独的 LatencyHistogramMXBean
+ *
+ * @see MonitoredIndex#registerMBeans
+ *
+ * Created by whimsy on 15/12/24.
+ */
+public interface MonitoredIndexMXBean {
+
+    int getUserCount();
+
+    int getSegmentCount();
+
+    /**
+     * @return 所有用户的增量长度之和
+     */
+    long getTotalDeltaSize();
+
+    int getMaxDeltaSize();
+
+    /**
+     * @return 增量最长的 LARGEST_DELTAS 个用户 -> 增量长度
+     */
+    Map<Long, Integer> getLargestDeltas();
+
+    /**
+     * @param userId 用户
+     * @return 用户的增量长度, 用户不存在时为 -1
+     */
+    int deltaSize(long userId);
+
+    /**
+     * @return 等待重建的用户数
+     */
+    int getReIndexQueueDepth();
+
+    /**
+     * @return 构建段的次数
+     */
+    long getRebuildCount();
+
+    long getMergeCount();
+
+    /**
+     * @return 发布新的段列表的次数
+     */
+    long getSwapCount();
+
+    /**
+     * @return 距最近一次构建段完成的秒数, 没有构建过时为 -1
+     */
+    long getSecondsSinceLastRebuild();
+
+    /**
+     * @return 所有用户索引估算占用的字节数
+     */
+    long getRetainedBytes();
+
+    long getQueryCacheBytes();
+
+    double getQueryCacheHitRate();
+
+    long getInlineCompactions();
+
+    long getThrottledWrites();
+
+    long getThrottleTimeouts();
+
+    long getDegradedQueries();
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow.index;
+
+/**
+ * 增量长度达到 plainIndexThreshold * tooLongFactor, 即后台线程来不及构建段时的处理方式 <br/>
+ * 任何一种方式下查询都不会失败
+ *
+ * @see IndexConfig#getOverflowPolicy
+ * @see OverflowStats
+ *
+ * Created by whimsy on 15/12/20.
+ */
+public enum OverflowPolicy {
+
+    /**
+     * 写入线程同步构建段, 写入变慢, 查询结果完整
+     */
+    INLINE_COMPACTION,
+
+    /**
+     * 写入线程等待后台线程构建段, 最多等待 throttleMillis, 查询结果完整
+     */
+    THROTTLE_WRITERS,
+
+    /**
+     * 写入不受影响, 查询跳过增量只访问段, 结果可能缺少最近的写入, 用户索引标记为 stale
+     */
+    DEGRADE
+}
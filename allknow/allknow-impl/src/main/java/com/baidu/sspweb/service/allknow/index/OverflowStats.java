@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow.index;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 增量过长时各种处理方式的触发次数, 所有用户共享
+ *
+ * @see OverflowPolicy
+ *
+ * Created by whimsy on 15/12/20.
+ */
+public class OverflowStats {
+
+    private final AtomicLong inlineCompactions = new AtomicLong();
+
+    private final AtomicLong throttledWrites = new AtomicLong();
+
+    private final AtomicLong throttleTimeouts = new AtomicLong();
+
+    private final AtomicLong degradedQueries = new AtomicLong();
+
+    /**
+     * @return 写入线程同步构建段的次数
+     */
+    public long getInlineCompactions() {
+        return inlineCompactions.get();
+    }
+
+    /**
+     * @return 写入线程等待后台构建的次数
+     */
+    public long getThrottledWrites() {
+        return throttledWrites.get();
+    }
+
+    /**
+     * @return 等待超过 throttleMillis 后放行的次数
+     */
+    public long getThrottleTimeouts() {
+        return throttleTimeouts.get();
+    }
+
+    /**
+     * @return 跳过增量, 返回可能过期的结果的查询次数
+     */
+    public long getDegradedQueries() {
+        return degradedQueries.get();
+    }
+
+    void inlineCompaction() {
+        inlineCompactions.incrementAndGet();
+    }
+
+    void throttledWrite() {
+        throttledWrites.incrementAndGet();
+    }
+
+    void throttleTimeout() {
+        throttleTimeouts.incrementAndGet();
+    }
+
+    void degradedQuery() {
+        degradedQueries.incrementAndGet();
+    }
+
+    @Override
+    public String toString() {
+        return "OverflowStats{inlineCompactions=" + inlineCompactions
+                + ", throttledWrites=" + throttledWrites
+                + ", throttleTimeouts=" + throttleTimeouts
+                + ", degradedQueries=" + degradedQueries + '}';
+    }
+}
@@ -5,6 +5,8 @@ package com.baidu.sspweb.service.allknow.index;
 
 import org.springframework.util.Assert;
 
+import com.baidu.sspweb.service.allknow.query.MatchMode;
+
 /**
  * 数据BO
  *
@@ -39,6 +41,19 @@ public class PairEntry implements  Comparable<PairEntry> {
         return this.content.contains(query);
     }
 
+    /**
+     * content 按 mode 匹配
+     *
+     * @param query 查询的字串
+     * @param mode 匹配方式
+     * @return true  如果匹配
+     *         false 如果不匹配
+     */
+    public boolean matches(String query, MatchMode mode) {
+        Assert.notNull(content);
+        return mode.matches(this.content, query);
+    }
+
     public Long getId() {
         return id;
     }
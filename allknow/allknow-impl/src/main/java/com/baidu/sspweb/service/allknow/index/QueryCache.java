@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow.index;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * 查询结果缓存 <br/>
+ * <br/>
+ * 用户反复查询相同的几个关键字(地域, 商务通, 医院名称 ...), 缓存 (userId, keyword) 的结果 <br/>
+ * 1. key 中包含用户索引的版本号, 索引有任何变化后旧的结果不会再被访问, 由 LRU 逐渐淘汰 <br/>
+ * 2. 按结果估算的字节数限制缓存大小 <br/>
+ * 3. 记录命中率, 淘汰次数, 估算的内存大小 <br/>
+ *
+ * @see HotSwapKWIC#generation
+ *
+ * Created by whimsy on 15/12/14.
+ */
+public class QueryCache {
+
+    /**
+     * 查询的种类, 区分同一关键字的不同查询, 同一种类的结果类型相同
+     */
+    public enum Kind {
+        /**
+         * 数据条目列表, List&lt;PairEntry&gt;
+         */
+        ENTRIES,
+        /**
+         * 数据ID, long[]
+         */
+        IDS,
+        /**
+         * 条数, Integer
+         */
+        COUNT
+    }
+
+    /**
+     * 默认的缓存大小
+     */
+    public static final long DEFAULT_MAX_BYTES = 64L << 20;
+
+    /**
+     * 对象头 + 引用的估算大小
+     */
+    private static final int OBJECT_OVERHEAD = 48;
+
+    /**
+     * PairEntry + Long + String 对象的估算大小, 不包括字符
+     */
+    private static final int ENTRY_OVERHEAD = 96;
+
+    /**
+     * 不为 null 时启用缓存
+     */
+    private final Cache<Key, Object> cache;
+
+    /**
+     * 当前缓存结果的估算字节数
+     */
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * @param maxBytes 缓存结果的最大估算字节数, 为 0 时不缓存
+     */
+    public QueryCache(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes should not be negative");
+        }
+        if (maxBytes == 0) {
+            cache = null;
+            return;
+        }
+        cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher(new Weigher<Key, Object>() {
+                    @Override
+                    public int weigh(Key key, Object value) {
+                        return QueryCache.weigh(key, value);
+                    }
+                })
+                .removalListener(new RemovalListener<Key, Object>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<Key, Object> notification) {
+                        bytes.addAndGet(-weigh(notification.getKey(), notification.getValue()));
+                    }
+                })
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * 获取缓存的结果, 不存在时查询并缓存 <br/>
+     * 同一个 key 同时只有一个线程查询
+     *
+     * @param userId 用户ID
+     * @param generation 查询前读取的用户索引版本号
+     * @param keyword 查询关键字
+     * @param offset 分页参数, 不分页时为 0
+     * @param limit 分页参数, 不分页时为 -1
+     * @param kind 查询的种类, 同一种类的 loader 返回相同类型的结果
+     * @param loader 查询
+     * @return 查询结果, 调用者不能修改
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(Long userId, long generation, String keyword, int offset, int limit,
+                     Kind kind, final Callable<T> loader) {
+        if (cache == null) {
+            return call(loader);
+        }
+        final Key key = new Key(userId, generation, keyword, offset, limit, kind);
+        try {
+            return (T) cache.get(key, new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    Object value = loader.call();
+                    bytes.addAndGet(weigh(key, value));
+                    return value;
+                }
+            });
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        } catch (UncheckedExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    /**
+     * @return 命中率, 淘汰次数等统计
+     */
+    public CacheStats stats() {
+        return cache == null ? new CacheStats(0, 0, 0, 0, 0, 0) : cache.stats();
+    }
+
+    /**
+     * @return 缓存的结果数
+     */
+    public long size() {
+        return cache == null ? 0 : cache.size();
+    }
+
+    /**
+     * @return 缓存结果的估算字节数
+     */
+    public long retainedSize() {
+        return bytes.get();
+    }
+
+    /**
+     * 清空缓存
+     */
+    public void invalidateAll() {
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
+    private static <T> T call(Callable<T> loader) {
+        try {
+            return loader.call();
+        } catch (Exception e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    /**
+     * 估算 key + 结果的字节数
+     */
+    private static int weigh(Key key, Object value) {
+        long size = OBJECT_OVERHEAD * 2 + 2L * key.keyword.length();
+        if (value instanceof long[]) {
+            size += 8L * ((long[]) value).length;
+        } else if (value instanceof List) {
+            for (Object entry : (List<?>) value) {
+                String content = ((PairEntry) entry).getContent();
+                size += ENTRY_OVERHEAD + 2L * (content == null ? 0 : content.length());
+            }
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 缓存的 key
+     */
+    private static final class Key {
+
+        private final Long userId;
+
+        private final long generation;
+
+        private final String keyword;
+
+        private final int offset;
+
+        private final int limit;
+
+        private final Kind kind;
+
+        Key(Long userId, long generation, String keyword, int offset, int limit, Kind kind) {
+            this.userId = userId;
+            this.generation = generation;
+            this.keyword = keyword;
+            this.offset = offset;
+            this.limit = limit;
+            this.kind = kind;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) o;
+            return generation == that.generation
+                    && offset == that.offset
+                    && limit == that.limit
+                    && userId.equals(that.userId)
+                    && keyword.equals(that.keyword)
+                    && kind == that.kind;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(userId, generation, keyword, offset, limit, kind);
+        }
+    }
+}
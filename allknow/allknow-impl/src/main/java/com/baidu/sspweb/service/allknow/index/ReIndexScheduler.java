@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow.index;
+
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * 事件驱动的重建索引调度 <br/>
+ * <br/>
+ * 1. 用户的增量达到阈值, 或者有可以合并的段时, HotSwapKWIC 把自己加入队列, 队列中每个用户最多一项 <br/>
+ * 2. 后台线程按优先级取出用户构建和合并段, 优先级为 增量长度 * (1 + 上次重建后的查询次数), 即下次重建前扫描增量的代价 <br/>
+ * 3. 没有写入的用户不在队列中, 不占用任何调度开销 <br/>
+ *
+ * @see HotSwapKWIC#tryReIndex
+ *
+ * Created by whimsy on 15/12/19.
+ */
+public class ReIndexScheduler {
+
+    private static Logger logger = LoggerFactory.getLogger(ReIndexScheduler.class);
+
+    /**
+     * 等待后台线程结束的时间
+     */
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 5L;
+
+    /**
+     * 等待重建的用户, 优先级高的在前
+     */
+    private final PriorityBlockingQueue<Ticket> queue = new PriorityBlockingQueue<Ticket>();
+
+    /**
+     * 已在队列中的用户索引, 保证每个用户最多一项
+     */
+    private final Set<HotSwapKWIC> pending = Sets.newConcurrentHashSet();
+
+    private final ExecutorService workers;
+
+    /**
+     * @param threads 后台线程数
+     */
+    public ReIndexScheduler(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads should be positive");
+        }
+        // 守护线程, 未调用 shutdown 时不阻止 JVM 退出
+        workers = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("allknow-reindex-%d").setDaemon(true).build());
+        for (int i = 0; i < threads; i++) {
+            workers.execute(new Worker());
+        }
+    }
+
+    /**
+     * 把用户索引加入队列, 已在队列中时忽略
+     *
+     * @param index 需要重建的用户索引
+     */
+    public void schedule(HotSwapKWIC index) {
+        if (pending.add(index)) {
+            queue.add(new Ticket(index, index.reIndexPriority()));
+        }
+    }
+
+    /**
+     * @return 等待重建的用户数
+     */
+    public int pendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * 停止后台线程, 正在进行的构建被中断
+     */
+    public void shutdown() {
+        workers.shutdownNow();
+        try {
+            if (!workers.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                logger.error("Pool did not terminate");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 不断取出优先级最高的用户进行重建
+     */
+    private class Worker implements Runnable {
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                Ticket ticket;
+                try {
+                    ticket = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                // 先移出, 重建期间的写入可以再次入队
+                pending.remove(ticket.index);
+                try {
+                    ticket.index.tryReIndex();
+                } catch (Exception e) {
+                    logger.error("This shouldn't happen.", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 队列中的一项, 优先级为入队时的值
+     */
+    private static final class Ticket implements Comparable<Ticket> {
+
+        private final HotSwapKWIC index;
+
+        private final long priority;
+
+        Ticket(HotSwapKWIC index, long priority) {
+            this.index = index;
+            this.priority = priority;
+        }
+
+        @Override
+        public int compareTo(Ticket that) {
+            return Long.compare(that.priority, priority);
+        }
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.baidu.sspweb.service.allknow.index.suffix.SuffixArrayBuilder;
+import com.baidu.unbiz.common.Assert;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.TreeMultimap;
+
+import edu.princeton.cs.algs4.Manber;
+
+/**
+ * KWIC 索引快照的存储 <br/>
+ * <br/>
+ * 每个索引段一个文件 userId-seq.kwic, 重启时直接内存映射, 不用重建后缀数组 <br/>
+ * 1. 写入: 先写临时文件并 fsync, 再原子重命名并 fsync 目录, 读到的文件总是完整的, 返回后掉电也不会丢失 <br/>
+ * 2. 打开: FileChannel.map 后只校验头部, O(1) 时间, 查询直接访问映射的页 <br/>
+ * <br/>
+ * 文件格式(little endian): <br/>
+ * <pre>
+ *  0   int   MAGIC
+ *  4   int   VERSION
+ *  8   int   docCount = d
+ *  12  int   textLength = n
+ *  16  long  payload CRC32
+ *  24  long  header CRC32 (字节 0 ~ 24)
+ *  32  long[d]     ids
+ *      int[d + 1]  starts
+ *      int[n + 1]  suffix array
+ *      char[n]     text
+ *      byte[n + 1] LCP-LR left
+ *      byte[n + 1] LCP-LR right
+ * </pre>
+ *
+ * @see KWIC
+ *
+ * Created by whimsy on 15/12/08.
+ */
+public class SnapshotStore {
+
+    static Logger logger = LoggerFactory.getLogger(SnapshotStore.class);
+
+    /**
+     * 'KWIC'
+     */
+    private static final int MAGIC = 0x4B574943;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 32;
+
+    private static final String SUFFIX = ".kwic";
+
+    private static final String SEQ_SEPARATOR = "-";
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * 快照目录
+     */
+    private final File dir;
+
+    /**
+     * 打开时是否校验全部数据的 CRC, 需要读取整个文件
+     */
+    private final boolean verify;
+
+    /**
+     * @param dir 快照目录, 不存在时创建
+     * @param verify 打开时是否校验全部数据
+     */
+    public SnapshotStore(File dir, boolean verify) {
+        Assert.assertNotNull(dir);
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IllegalArgumentException("Cannot create snapshot dir " + dir);
+        }
+        this.dir = dir;
+        this.verify = verify;
+    }
+
+    /**
+     * @return 目录中已有快照的 用户ID -> 段序号(升序)
+     */
+    public Multimap<Long, Long> segments() {
+        Multimap<Long, Long> segments = TreeMultimap.create();
+        String[] names = dir.list();
+        if (names == null) {
+            return segments;
+        }
+        for (String name : names) {
+            if (!name.endsWith(SUFFIX)) {
+                continue;
+            }
+            String base = name.substring(0, name.length() - SUFFIX.length());
+            int separator = base.indexOf(SEQ_SEPARATOR);
+            try {
+                if (separator < 0) {
+                    throw new NumberFormatException(name);
+                }
+                segments.put(Long.valueOf(base.substring(0, separator)),
+                        Long.valueOf(base.substring(separator + SEQ_SEPARATOR.length())));
+            } catch (NumberFormatException e) {
+                logger.warn("Unknown snapshot file {}", name);
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * 原子地写入索引段的快照, 覆盖相同序号的旧快照
+     *
+     * @param userId 用户ID
+     * @param seq 段序号
+     * @param kwic 索引
+     * @throws IOException 写入失败时, 旧的快照保持不变
+     */
+    public void write(Long userId, long seq, KWIC kwic) throws IOException {
+        Manber manber = kwic.getManber();
+        int docCount = kwic.size();
+        int length = manber.length();
+
+        long fileSize = lcpRightOffset(docCount, length) + length + 1;
+        if (fileSize > Integer.MAX_VALUE) {
+            throw new IOException("Snapshot is too large to map, size = " + fileSize);
+        }
+
+        File tmp = new File(dir, file(userId, seq).getName() + TMP_SUFFIX);
+        FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        try {
+            SectionWriter writer = new SectionWriter(channel);
+
+            LongBuffer ids = kwic.getIds();
+            for (int i = 0; i < docCount; i++) {
+                writer.ensure(8).putLong(ids.get(i));
+            }
+            IntBuffer starts = kwic.getStarts();
+            for (int i = 0; i <= docCount; i++) {
+                writer.ensure(4).putInt(starts.get(i));
+            }
+            IntBuffer index = manber.getIndex();
+            for (int i = 0; i <= length; i++) {
+                writer.ensure(4).putInt(index.get(i));
+            }
+            CharSequence text = manber.getText();
+            for (int i = 0; i < length; i++) {
+                writer.ensure(2).putChar(text.charAt(i));
+            }
+            ByteBuffer lcpLeft = manber.getLcpLeft();
+            for (int i = 0; i <= length; i++) {
+                writer.ensure(1).put(lcpLeft.get(i));
+            }
+            ByteBuffer lcpRight = manber.getLcpRight();
+            for (int i = 0; i <= length; i++) {
+                writer.ensure(1).put(lcpRight.get(i));
+            }
+            writer.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(docCount).putInt(length).putLong(writer.crc.getValue());
+            header.putLong(headerCrc(header));
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header, HEADER_SIZE - header.remaining());
+            }
+
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+
+        Files.move(tmp.toPath(), file(userId, seq).toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        // 重命名只修改目录, 目录落盘前掉电可能丢失, 之后预写日志会被截断
+        syncDirectory(dir);
+    }
+
+    /**
+     * 内存映射打开索引段的快照
+     *
+     * @param userId 用户ID
+     * @param seq 段序号
+     * @param builder 之后重建索引时使用的后缀数组构建算法
+     * @return 查询直接访问映射内存的索引
+     * @throws IOException 文件不存在, 版本不符或者校验失败
+     */
+    public KWIC open(Long userId, long seq, SuffixArrayBuilder builder) throws IOException {
+        File file = file(userId, seq);
+        MappedByteBuffer mapped;
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            // 映射在 channel 关闭后仍然有效
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            channel.close();
+        }
+        ByteBuffer buffer = mapped.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a snapshot file " + file);
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported snapshot version " + buffer.getInt(4) + " of " + file);
+        }
+        ByteBuffer header = slice(buffer, 0, HEADER_SIZE);
+        header.position(24);
+        if (headerCrc(header) != buffer.getLong(24)) {
+            throw new IOException("Corrupted snapshot header " + file);
+        }
+
+        int docCount = buffer.getInt(8);
+        int length = buffer.getInt(12);
+        long fileSize = lcpRightOffset(docCount, length) + length + 1;
+        if (buffer.limit() != fileSize) {
+            throw new IOException("Truncated snapshot " + file);
+        }
+        if (verify && payloadCrc(buffer) != buffer.getLong(16)) {
+            throw new IOException("Corrupted snapshot payload " + file);
+        }
+
+        LongBuffer ids = slice(buffer, HEADER_SIZE, 8L * docCount).asLongBuffer();
+        IntBuffer starts = slice(buffer, startsOffset(docCount), 4L * (docCount + 1)).asIntBuffer();
+        IntBuffer index = slice(buffer, indexOffset(docCount), 4L * (length + 1)).asIntBuffer();
+        CharSequence text = slice(buffer, textOffset(docCount, length), 2L * length).asCharBuffer();
+        ByteBuffer lcpLeft = slice(buffer, lcpLeftOffset(docCount, length), length + 1);
+        ByteBuffer lcpRight = slice(buffer, lcpRightOffset(docCount, length), length + 1);
+
+        return new KWIC(new Manber(text, index, lcpLeft, lcpRight), starts, ids, builder);
+    }
+
+    /**
+     * 删除索引段的快照, 比如已经被合并的段
+     */
+    public void delete(Long userId, long seq) throws IOException {
+        if (Files.deleteIfExists(file(userId, seq).toPath())) {
+            syncDirectory(dir);
+        }
+    }
+
+    /**
+     * fsync 目录, 使之前的创建, 重命名和删除在掉电后仍然有效
+     */
+    static void syncDirectory(File dir) throws IOException {
+        FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private File file(Long userId, long seq) {
+        return new File(dir, userId + SEQ_SEPARATOR + seq + SUFFIX);
+    }
+
+    private static long startsOffset(int docCount) {
+        return HEADER_SIZE + 8L * docCount;
+    }
+
+    private static long indexOffset(int docCount) {
+        return startsOffset(docCount) + 4L * (docCount + 1);
+    }
+
+    private static long textOffset(int docCount, int length) {
+        return indexOffset(docCount) + 4L * (length + 1);
+    }
+
+    private static long lcpLeftOffset(int docCount, int length) {
+        return textOffset(docCount, length) + 2L * length;
+    }
+
+    private static long lcpRightOffset(int docCount, int length) {
+        return lcpLeftOffset(docCount, length) + length + 1;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, long offset, long length) {
+        ByteBuffer dup = buffer.duplicate();
+        dup.position((int) offset);
+        dup.limit((int) (offset + length));
+        return dup.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * @param header 位置在 header CRC 之前
+     */
+    private static long headerCrc(ByteBuffer header) {
+        CRC32 crc = new CRC32();
+        byte[] bytes = new byte[header.position()];
+        ByteBuffer dup = header.duplicate();
+        dup.position(0);
+        dup.get(bytes);
+        crc.update(bytes);
+        return crc.getValue();
+    }
+
+    private static long payloadCrc(ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        ByteBuffer dup = buffer.duplicate();
+        dup.position(HEADER_SIZE);
+        byte[] bytes = new byte[BUFFER_SIZE];
+        while (dup.hasRemaining()) {
+            int size = Math.min(bytes.length, dup.remaining());
+            dup.get(bytes, 0, size);
+            crc.update(bytes, 0, size);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * 顺序写入头部之后的数据, 同时计算 CRC
+     */
+    private static final class SectionWriter {
+
+        private final FileChannel channel;
+
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        private final CRC32 crc = new CRC32();
+
+        private long position = HEADER_SIZE;
+
+        SectionWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        ByteBuffer ensure(int size) throws IOException {
+            if (buffer.remaining() < size) {
+                flush();
+            }
+            return buffer;
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            crc.update(buffer.array(), 0, buffer.limit());
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,445 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.baidu.unbiz.common.Assert;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * 流式导入 userId \t deliveryId \t name 格式的全量数据 <br/>
+ * <br/>
+ * 1. 内存映射文件, 按行解析, 数字直接从字节解析, UTF-8 直接解码到当前用户的 char 缓冲区, 不为每行创建 String <br/>
+ * 2. 同一用户连续的行组成一批, 用户变化或者缓冲区达到上限时, 交给线程池构建该用户的索引 <br/>
+ * 3. 等待构建的批次数有上限, 构建跟不上读取时读取线程等待, 内存占用与文件大小无关 <br/>
+ * 4. 同一用户的批次按文件中的顺序导入, 相同ID以后出现的为准 <br/>
+ *
+ * @see LoadStats
+ *
+ * Created by whimsy on 15/12/23.
+ */
+public class TsvLoader {
+
+    static Logger logger = LoggerFactory.getLogger(TsvLoader.class);
+
+    /**
+     * 每次映射的最大字节数, 不超过 MappedByteBuffer 的上限
+     */
+    private static final int WINDOW_BYTES = 1 << 30;
+
+    /**
+     * 一批数据的最大字符数, 超过后同一用户的数据分成多批
+     */
+    private static final int MAX_BATCH_CHARS = 1 << 23;
+
+    /**
+     * 等待线程池结束的时间
+     */
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 5L;
+
+    private static final byte TAB = '\t';
+
+    private static final byte NEWLINE = '\n';
+
+    private static final byte RETURN = '\r';
+
+    private static final char REPLACEMENT = '\ufffd';
+
+    private final Index index;
+
+    private final int threads;
+
+    /**
+     * @param index 导入的目标索引
+     * @param threads 并行构建用户索引的线程数
+     */
+    public TsvLoader(Index index, int threads) {
+        Assert.assertNotNull(index);
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads should be positive");
+        }
+        this.index = index;
+        this.threads = threads;
+    }
+
+    /**
+     * 导入文件, 所有用户构建完成后返回
+     *
+     * @param file 数据文件, UTF-8 编码
+     * @return 导入统计
+     * @throws IOException 读取文件或者构建索引失败
+     */
+    public LoadStats load(File file) throws IOException {
+        Assert.assertNotNull(file);
+
+        List<MemoryPoolMXBean> heapPools = Lists.newArrayList();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                pool.resetPeakUsage();
+                heapPools.add(pool);
+            }
+        }
+        Stopwatch watch = Stopwatch.createStarted();
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("allknow-load-%d").setDaemon(true).build());
+        Session session = new Session(pool);
+        long bytes;
+        try {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                bytes = channel.size();
+                long position = 0;
+                while (position < bytes) {
+                    int length = (int) Math.min(WINDOW_BYTES, bytes - position);
+                    MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                    int end = length;
+                    if (position + length < bytes) {
+                        // 窗口只处理到最后一个完整的行
+                        end = lastIndexOf(window, NEWLINE, length) + 1;
+                        if (end == 0) {
+                            throw new IOException("Line is too long at offset " + position);
+                        }
+                    }
+                    session.parse(window, end);
+                    position += end;
+                }
+            } finally {
+                channel.close();
+            }
+            session.finish();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading " + file);
+        } finally {
+            pool.shutdownNow();
+            try {
+                pool.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        long peak = 0;
+        for (MemoryPoolMXBean heapPool : heapPools) {
+            peak += heapPool.getPeakUsage().getUsed();
+        }
+        LoadStats stats = new LoadStats(bytes, session.lines, session.skipped, session.users.size(),
+                watch.elapsed(TimeUnit.MILLISECONDS), peak);
+        logger.info("Load {} finished, {}", file, stats);
+        return stats;
+    }
+
+    private static int lastIndexOf(MappedByteBuffer buffer, byte b, int end) {
+        for (int i = end - 1; i >= 0; i--) {
+            if (buffer.get(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(MappedByteBuffer buffer, byte b, int from, int end) {
+        for (int i = from; i < end; i++) {
+            if (buffer.get(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 一次导入的状态, 只由读取线程访问
+     */
+    private final class Session {
+
+        private final ExecutorService pool;
+
+        /**
+         * 等待或正在构建的批次数上限
+         */
+        private final Semaphore permits = new Semaphore(threads * 2);
+
+        /**
+         * 用户 -> 该用户最后一批的构建任务, 同一用户的下一批在其完成后提交 <br/>
+         * 已完成的任务定期移出, 大小与用户数无关
+         */
+        private final Map<Long, Future<?>> lastBatch = Maps.newHashMap();
+
+        private Batch current;
+
+        private long lines;
+
+        private long skipped;
+
+        /**
+         * 出现过的用户, 同一用户的数据不连续时只计一次
+         */
+        private final Set<Long> users = Sets.newHashSet();
+
+        Session(ExecutorService pool) {
+            this.pool = pool;
+        }
+
+        void parse(MappedByteBuffer buffer, int end) throws IOException, InterruptedException {
+            int from = 0;
+            while (from < end) {
+                int to = indexOf(buffer, NEWLINE, from, end);
+                if (to < 0) {
+                    to = end;
+                }
+                parseLine(buffer, from, to);
+                from = to + 1;
+            }
+        }
+
+        private void parseLine(MappedByteBuffer buffer, int from, int to) throws IOException, InterruptedException {
+            if (to > from && buffer.get(to - 1) == RETURN) {
+                to--;
+            }
+            if (to == from) {
+                return;
+            }
+            int tab1 = indexOf(buffer, TAB, from, to);
+            int tab2 = tab1 < 0 ? -1 : indexOf(buffer, TAB, tab1 + 1, to);
+            long userId = tab1 < 0 ? -1 : parseLong(buffer, from, tab1);
+            long id = tab2 < 0 ? -1 : parseLong(buffer, tab1 + 1, tab2);
+            if (userId < 0 || id < 0) {
+                skipped++;
+                return;
+            }
+            // 名称之后的列忽略
+            int contentEnd = indexOf(buffer, TAB, tab2 + 1, to);
+            if (contentEnd < 0) {
+                contentEnd = to;
+            }
+
+            if (current == null || current.userId != userId || current.length >= MAX_BATCH_CHARS) {
+                submit();
+                current = new Batch(userId);
+                users.add(userId);
+            }
+            current.add(id, buffer, tab2 + 1, contentEnd);
+            lines++;
+        }
+
+        /**
+         * @return 非负整数, 格式错误时返回 -1
+         */
+        private long parseLong(MappedByteBuffer buffer, int from, int to) {
+            if (from == to || to - from > 18) {
+                return -1;
+            }
+            long value = 0;
+            for (int i = from; i < to; i++) {
+                int digit = buffer.get(i) - '0';
+                if (digit < 0 || digit > 9) {
+                    return -1;
+                }
+                value = value * 10 + digit;
+            }
+            return value;
+        }
+
+        private void submit() throws IOException, InterruptedException {
+            if (current == null) {
+                return;
+            }
+            final Batch batch = current;
+            current = null;
+
+            // 同一用户上一批还未完成时等待, 保证批次的顺序
+            Future<?> previous = lastBatch.get(batch.userId);
+            if (previous != null) {
+                get(previous);
+            }
+            permits.acquire();
+            Future<?> future;
+            try {
+                future = pool.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            index.load(ImmutableListMultimap.<Long, PairEntry>builder()
+                                    .putAll(batch.userId, batch.entries()).build());
+                        } finally {
+                            permits.release();
+                        }
+                    }
+                });
+            } catch (RuntimeException e) {
+                permits.release();
+                throw e;
+            }
+            lastBatch.put(batch.userId, future);
+            if (lastBatch.size() > threads * 4) {
+                Iterator<Future<?>> it = lastBatch.values().iterator();
+                while (it.hasNext()) {
+                    Future<?> done = it.next();
+                    if (done.isDone()) {
+                        get(done);
+                        it.remove();
+                    }
+                }
+            }
+        }
+
+        void finish() throws IOException, InterruptedException {
+            submit();
+            for (Future<?> future : lastBatch.values()) {
+                get(future);
+            }
+        }
+
+        private void get(Future<?> future) throws IOException, InterruptedException {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw new IOException("Build user index failed", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * 一个用户连续的若干行, 内容解码后连续存放在 chars 中
+     */
+    private static final class Batch {
+
+        private final long userId;
+
+        private long[] ids = new long[16];
+
+        /**
+         * ends[i] : 第 i 条内容在 chars 中的结束位置
+         */
+        private int[] ends = new int[16];
+
+        private char[] chars = new char[256];
+
+        private int size;
+
+        private int length;
+
+        Batch(long userId) {
+            this.userId = userId;
+        }
+
+        /**
+         * 把 UTF-8 字节 [from, to) 解码后追加到 chars
+         */
+        void add(long id, MappedByteBuffer buffer, int from, int to) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+            }
+            // 解码后的字符数不超过字节数
+            if (length + (to - from) > chars.length) {
+                chars = Arrays.copyOf(chars, Math.max(chars.length * 2, length + (to - from)));
+            }
+            int i = from;
+            while (i < to) {
+                int b = buffer.get(i) & 0xff;
+                if (b < 0x80) {
+                    chars[length++] = (char) b;
+                    i++;
+                    continue;
+                }
+                // 首字节决定长度和第二个字节的范围, 排除超长编码和大于 U+10FFFF 的码点
+                int extra;
+                int code;
+                int min = 0x80;
+                int max = 0xbf;
+                if (b >= 0xc2 && b <= 0xdf) {
+                    extra = 1;
+                    code = b & 0x1f;
+                } else if (b >= 0xe0 && b <= 0xef) {
+                    extra = 2;
+                    code = b & 0x0f;
+                    if (b == 0xe0) {
+                        min = 0xa0;
+                    }
+                } else if (b >= 0xf0 && b <= 0xf4) {
+                    extra = 3;
+                    code = b & 0x07;
+                    if (b == 0xf0) {
+                        min = 0x90;
+                    } else if (b == 0xf4) {
+                        max = 0x8f;
+                    }
+                } else {
+                    chars[length++] = REPLACEMENT;
+                    i++;
+                    continue;
+                }
+                int k = 1;
+                for (; k <= extra && i + k < to; k++) {
+                    int next = buffer.get(i + k) & 0xff;
+                    if (k == 1 ? next < min || next > max : (next & 0xc0) != 0x80) {
+                        break;
+                    }
+                    code = code << 6 | next & 0x3f;
+                }
+                // 与 new String(bytes, UTF_8) 一致: 不完整的字符整体替换为一个 REPLACEMENT, 编码的代理项也是
+                if (k <= extra) {
+                    chars[length++] = REPLACEMENT;
+                    i += k;
+                    continue;
+                }
+                if (code >= Character.MIN_SURROGATE && code <= Character.MAX_SURROGATE) {
+                    chars[length++] = REPLACEMENT;
+                } else if (Character.isBmpCodePoint(code)) {
+                    chars[length++] = (char) code;
+                } else {
+                    chars[length++] = Character.highSurrogate(code);
+                    chars[length++] = Character.lowSurrogate(code);
+                }
+                i += extra + 1;
+            }
+            ids[size] = id;
+            ends[size] = length;
+            size++;
+        }
+
+        /**
+         * 在构建线程中创建条目, 只有正在构建的批次持有 String
+         */
+        List<PairEntry> entries() {
+            List<PairEntry> res = Lists.newArrayListWithCapacity(size);
+            int start = 0;
+            for (int i = 0; i < size; i++) {
+                res.add(new PairEntry(ids[i], new String(chars, start, ends[i] - start)));
+                start = ends[i];
+            }
+            return res;
+        }
+    }
+}
@@ -0,0 +1,559 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow.index;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.baidu.unbiz.common.Assert;
+import com.google.common.base.Charsets;
+import com.google.common.base.Supplier;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * push 和 load 的预写日志 <br/>
+ * <br/>
+ * 1. 写入: 每次写入追加一条记录并分配递增的 LSN, 写入操作系统缓存后按 Durability fsync, 同时等待的写入共用一次 fsync <br/>
+ * 2. 截断: 日志按大小滚动成多个文件 wal-firstLsn.log, 所有用户仍在增量中的最小 LSN 之前的文件被删除, <br/>
+ * 即这些写入都已构建成段并写入快照 <br/>
+ * 3. 恢复: 按顺序读出所有记录, 遇到不完整或校验失败的记录时忽略该文件剩余部分(崩溃时写了一半的记录) <br/>
+ * <br/>
+ * 记录格式(big endian): <br/>
+ * <pre>
+ *  int   payload 长度
+ *  int   CRC32 (lsn + payload)
+ *  long  lsn
+ *  byte  类型 PUT / REMOVE
+ *  long  userId
+ *  int   条目数 (PUT)
+ *  {long id, int 长度, byte[] UTF-8 content} (PUT)
+ * </pre>
+ *
+ * @see MonitoredIndex#openLog
+ *
+ * Created by whimsy on 15/12/22.
+ */
+public class WriteAheadLog {
+
+    static Logger logger = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    /**
+     * 不在日志中的写入的 LSN, 比如日志打开前的写入
+     */
+    static final long NO_LSN = Long.MAX_VALUE;
+
+    private static final String PREFIX = "wal-";
+
+    private static final String SUFFIX = ".log";
+
+    private static final byte PUT = 1;
+
+    private static final byte REMOVE = 2;
+
+    /**
+     * payload 长度 + CRC32 + lsn
+     */
+    private static final int RECORD_HEADER = 16;
+
+    private static final int MAX_PAYLOAD = 1 << 30;
+
+    /**
+     * 两次截断的最小间隔, 截断需要遍历所有用户
+     */
+    private static final long CHECKPOINT_INTERVAL_MILLIS = 1000L;
+
+    /**
+     * 等待后台线程结束的时间
+     */
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 5L;
+
+    private final File dir;
+
+    private final Durability durability;
+
+    /**
+     * 文件达到该大小后滚动
+     */
+    private final long fileBytes;
+
+    /**
+     * 文件中第一条记录的 LSN -> 文件, 最后一个为正在写入的文件
+     */
+    private final TreeMap<Long, File> files = new TreeMap<Long, File>();
+
+    /**
+     * 正在写入的文件, 第一次写入时创建
+     */
+    private FileOutputStream out;
+
+    private long outBytes;
+
+    /**
+     * 最后一条记录的 LSN
+     */
+    private long lastLsn;
+
+    /**
+     * 已写入日志但还未加入用户增量的 LSN, 截断时不能越过
+     */
+    private final NavigableSet<Long> pending = new ConcurrentSkipListSet<Long>();
+
+    private final Object syncMonitor = new Object();
+
+    /**
+     * 已 fsync 的最大 LSN, 由 syncMonitor 保护
+     */
+    private long syncedLsn;
+
+    /**
+     * 是否有线程正在 fsync, 由 syncMonitor 保护
+     */
+    private boolean syncing;
+
+    /**
+     * 所有用户仍需要的最小 LSN, 为 null 时不截断
+     */
+    private volatile Supplier<Long> checkpoint;
+
+    private volatile boolean checkpointRequested;
+
+    private long lastCheckpointMillis;
+
+    /**
+     * GROUP 时定时 fsync, 以及截断日志
+     */
+    private final ScheduledExecutorService flusher;
+
+    /**
+     * @param dir 日志目录, 不存在时创建
+     * @param durability 持久化方式
+     * @param syncMillis GROUP 时 fsync 的间隔毫秒数, 也是检查截断的间隔
+     * @param fileBytes 文件达到该大小后滚动
+     * @throws IOException 读取已有日志失败
+     */
+    public WriteAheadLog(File dir, Durability durability, long syncMillis, long fileBytes) throws IOException {
+        Assert.assertNotNull(dir);
+        Assert.assertNotNull(durability);
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IllegalArgumentException("Cannot create wal dir " + dir);
+        }
+        this.dir = dir;
+        this.durability = durability;
+        this.fileBytes = fileBytes;
+
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+                    try {
+                        long firstLsn = Long.parseLong(name.substring(PREFIX.length(),
+                                name.length() - SUFFIX.length()));
+                        files.put(firstLsn, new File(dir, name));
+                    } catch (NumberFormatException e) {
+                        logger.warn("Ignore unknown file {} in wal dir", name);
+                    }
+                }
+            }
+        }
+        // 新的记录从最后一个文件之后开始, 不在可能不完整的文件后追加
+        if (!files.isEmpty()) {
+            lastLsn = files.lastKey() - 1;
+            read(files.lastEntry().getValue(), new Replayer() {
+                @Override
+                public void put(long lsn, Long userId, List<PairEntry> entries) {
+                    lastLsn = Math.max(lastLsn, lsn);
+                }
+
+                @Override
+                public void remove(long lsn, Long userId) {
+                    lastLsn = Math.max(lastLsn, lsn);
+                }
+            });
+        }
+        syncedLsn = lastLsn;
+
+        flusher = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("allknow-wal-%d").setDaemon(true).build());
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (WriteAheadLog.this.durability == Durability.GROUP) {
+                        sync(lastLsn());
+                    }
+                    checkpointIfRequested();
+                } catch (IOException e) {
+                    logger.error("Background wal sync failed", e);
+                } catch (RuntimeException e) {
+                    logger.error("This shouldn't happen.", e);
+                }
+            }
+        }, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 恢复时逐条接收日志记录
+     */
+    public interface Replayer {
+
+        /**
+         * @param lsn 记录的 LSN
+         * @param userId 用户ID
+         * @param entries 写入的条目, 按写入顺序
+         */
+        void put(long lsn, Long userId, List<PairEntry> entries);
+
+        /**
+         * 用户被删除, 之前的记录都不再需要
+         *
+         * @param lsn 记录的 LSN
+         * @param userId 用户ID
+         */
+        void remove(long lsn, Long userId);
+    }
+
+    /**
+     * 按 LSN 顺序读出所有记录
+     *
+     * @param replayer 接收记录
+     * @throws IOException 读取失败
+     */
+    public void replay(Replayer replayer) throws IOException {
+        List<File> snapshot;
+        synchronized (this) {
+            snapshot = Lists.newArrayList(files.values());
+        }
+        for (File file : snapshot) {
+            read(file, replayer);
+        }
+    }
+
+    private static void read(File file, Replayer replayer) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                if (length < 0 || length > MAX_PAYLOAD) {
+                    logger.warn("Wal {} has a broken record, ignore the rest of the file", file);
+                    return;
+                }
+                byte[] payload = new byte[length];
+                int crc;
+                long lsn;
+                try {
+                    crc = in.readInt();
+                    lsn = in.readLong();
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    logger.warn("Wal {} ends with a partial record, ignore it", file);
+                    return;
+                }
+                if (crc(lsn, payload) != crc) {
+                    logger.warn("Wal {} has a corrupted record, ignore the rest of the file", file);
+                    return;
+                }
+                decode(lsn, payload, replayer);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void decode(long lsn, byte[] payload, Replayer replayer) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        Long userId = in.readLong();
+        if (type == REMOVE) {
+            replayer.remove(lsn, userId);
+            return;
+        }
+        int count = in.readInt();
+        List<PairEntry> entries = Lists.newArrayListWithCapacity(count);
+        for (int i = 0; i < count; i++) {
+            long id = in.readLong();
+            byte[] content = new byte[in.readInt()];
+            in.readFully(content);
+            entries.add(new PairEntry(id, new String(content, Charsets.UTF_8)));
+        }
+        replayer.put(lsn, userId, entries);
+    }
+
+    /**
+     * 追加一条写入记录, 返回后记录已在操作系统缓存中 <br/>
+     * 调用者把条目加入增量后调用 published, 再调用 sync 等待持久化
+     *
+     * @param userId 用户ID
+     * @param entries 写入的条目
+     * @return 记录的 LSN
+     * @throws IOException 写入失败
+     */
+    public long append(Long userId, Collection<PairEntry> entries) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream payload = new DataOutputStream(bytes);
+        payload.writeByte(PUT);
+        payload.writeLong(userId);
+        payload.writeInt(entries.size());
+        for (PairEntry entry : entries) {
+            byte[] content = entry.getContent().getBytes(Charsets.UTF_8);
+            payload.writeLong(entry.getId());
+            payload.writeInt(content.length);
+            payload.write(content);
+        }
+        return write(bytes.toByteArray(), true);
+    }
+
+    /**
+     * 追加一条删除用户的记录并等待持久化, 恢复时忽略该用户之前的记录
+     *
+     * @param userId 用户ID
+     * @throws IOException 写入失败
+     */
+    public void remove(Long userId) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream payload = new DataOutputStream(bytes);
+        payload.writeByte(REMOVE);
+        payload.writeLong(userId);
+        long lsn = write(bytes.toByteArray(), false);
+        if (durability != Durability.NONE) {
+            sync(lsn);
+        }
+    }
+
+    private synchronized long write(byte[] payload, boolean pend) throws IOException {
+        if (payload.length > MAX_PAYLOAD) {
+            throw new IOException("Wal record is too large, size = " + payload.length);
+        }
+        if (out == null || outBytes >= fileBytes) {
+            roll();
+        }
+        long lsn = lastLsn + 1;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + payload.length);
+        record.putInt(payload.length).putInt(crc(lsn, payload)).putLong(lsn).put(payload);
+        out.write(record.array());
+        outBytes += record.capacity();
+        lastLsn = lsn;
+        if (pend) {
+            pending.add(lsn);
+        }
+        return lsn;
+    }
+
+    /**
+     * 调用者持有 this
+     */
+    private void roll() throws IOException {
+        if (out != null) {
+            out.getFD().sync();
+            out.close();
+        }
+        File file = new File(dir, String.format("%s%020d%s", PREFIX, lastLsn + 1, SUFFIX));
+        out = new FileOutputStream(file);
+        // 新文件的目录项落盘后, 写入其中的记录才能在掉电后找到
+        SnapshotStore.syncDirectory(dir);
+        outBytes = 0;
+        files.put(lastLsn + 1, file);
+    }
+
+    private static int crc(long lsn, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(8).putLong(lsn).array());
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * @param lsn append 返回的 LSN, 对应的条目已加入用户的增量
+     */
+    public void published(long lsn) {
+        pending.remove(lsn);
+    }
+
+    /**
+     * SYNC 时等待 LSN 之前的记录都已 fsync, 其它方式直接返回 <br/>
+     * 同时等待的线程中只有一个 fsync, 一次覆盖所有已写入的记录
+     *
+     * @param lsn append 返回的 LSN
+     * @throws IOException fsync 失败
+     */
+    public void awaitDurable(long lsn) throws IOException {
+        if (durability == Durability.SYNC) {
+            sync(lsn);
+        }
+    }
+
+    private void sync(long lsn) throws IOException {
+        while (true) {
+            synchronized (syncMonitor) {
+                while (syncing && syncedLsn < lsn) {
+                    try {
+                        syncMonitor.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for wal sync");
+                    }
+                }
+                if (syncedLsn >= lsn) {
+                    return;
+                }
+                syncing = true;
+            }
+
+            long target;
+            FileOutputStream current;
+            synchronized (this) {
+                target = lastLsn;
+                current = out;
+            }
+            boolean synced = false;
+            try {
+                if (current != null) {
+                    current.getFD().sync();
+                }
+                synced = true;
+            } catch (IOException e) {
+                synchronized (this) {
+                    if (current == out) {
+                        throw e;
+                    }
+                }
+                // 文件已滚动, 滚动时已 fsync
+                synced = true;
+            } finally {
+                synchronized (syncMonitor) {
+                    syncing = false;
+                    if (synced) {
+                        syncedLsn = Math.max(syncedLsn, target);
+                    }
+                    syncMonitor.notifyAll();
+                }
+            }
+        }
+    }
+
+    private synchronized long lastLsn() {
+        return lastLsn;
+    }
+
+    /**
+     * @param checkpoint 返回所有用户仍在增量中的最小 LSN, 没有时返回 NO_LSN
+     */
+    public void setCheckpoint(Supplier<Long> checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * 有增量被构建成段并写入快照, 后台线程稍后截断日志
+     */
+    public void requestCheckpoint() {
+        checkpointRequested = true;
+    }
+
+    private void checkpointIfRequested() {
+        long now = System.currentTimeMillis();
+        if (!checkpointRequested || checkpoint == null || now - lastCheckpointMillis < CHECKPOINT_INTERVAL_MILLIS) {
+            return;
+        }
+        checkpointRequested = false;
+        lastCheckpointMillis = now;
+        truncate();
+    }
+
+    /**
+     * 删除所有记录都不再需要的文件, 正在写入的文件不删除
+     */
+    void truncate() {
+        // 先确定还未加入增量的 LSN, 再读取各用户的增量, 之后加入增量的记录不会被遗漏
+        long bound;
+        synchronized (this) {
+            bound = pending.isEmpty() ? lastLsn + 1 : pending.first();
+        }
+        long keep = Math.min(bound, checkpoint.get());
+
+        List<File> deleted = Lists.newArrayList();
+        synchronized (this) {
+            while (files.size() > 1) {
+                Map.Entry<Long, File> first = files.firstEntry();
+                // 下一个文件的第一条记录之前的记录都在第一个文件中
+                if (files.higherKey(first.getKey()) > keep) {
+                    break;
+                }
+                files.pollFirstEntry();
+                deleted.add(first.getValue());
+            }
+        }
+        for (File file : deleted) {
+            try {
+                Files.deleteIfExists(file.toPath());
+            } catch (IOException e) {
+                logger.error("Delete wal " + file + " failed", e);
+            }
+        }
+        if (!deleted.isEmpty()) {
+            logger.info("Wal truncated before lsn {}, {} files deleted", keep, deleted.size());
+        }
+    }
+
+    /**
+     * @return 日志文件数
+     */
+    public synchronized int fileCount() {
+        return files.size();
+    }
+
+    /**
+     * fsync 已写入的记录并关闭文件
+     */
+    public void close() {
+        flusher.shutdownNow();
+        try {
+            if (!flusher.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                logger.error("Pool did not terminate");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (out != null) {
+                try {
+                    out.getFD().sync();
+                    out.close();
+                } catch (IOException e) {
+                    logger.error("Close wal failed", e);
+                }
+                out = null;
+            }
+        }
+    }
+}
@@ -3,9 +3,11 @@
  */
 package com.baidu.sspweb.service.allknow.index.impl;
 
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import com.baidu.sspweb.service.allknow.index.AbstractIndex;
+import com.baidu.sspweb.service.allknow.index.IndexConfig;
 
 /**
  * 业务相关处理, 暂时未实现业务代码
@@ -15,5 +17,12 @@ import com.baidu.sspweb.service.allknow.index.AbstractIndex;
 @Service
 public class DeliveryIndex extends AbstractIndex {
 
+    public DeliveryIndex() {
+    }
+
+    @Autowired
+    public DeliveryIndex(IndexConfig config) {
+        super(config);
+    }
 
 }
@@ -0,0 +1,23 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow.index.suffix;
+
+import edu.princeton.cs.algs4.Manber;
+
+/**
+ * 原有的 Manber 倍增算法, O(n log^2 n) <br/>
+ * 作为 SAIS 的备选实现保留
+ *
+ * Created by whimsy on 15/12/02.
+ */
+public class ManberBuilder implements SuffixArrayBuilder {
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int[] build(String text) {
+        return Manber.sort(text);
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow.index.suffix;
+
+import java.util.Arrays;
+
+/**
+ * SA-IS 线性时间后缀数组构建 <br/>
+ * <br/>
+ * Ge Nong, Sen Zhang, Wai Hong Chan. <br/>
+ *      Two Efficient Algorithms for Linear Time Suffix Array Construction <br/>
+ * <br/>
+ * 1. 字符先压缩成稠密的字母表, 避免按 65536 个字符分配桶 <br/>
+ * 2. 末尾追加虚拟哨兵 0, 递归排序 LMS 子串 <br/>
+ * <br/>
+ * 文本以唯一的最小字符 START_SENTRY 开头, 此时标准后缀序与 Manber 的循环后缀序一致
+ *
+ * Created by whimsy on 15/12/02.
+ */
+public class SAISBuilder implements SuffixArrayBuilder {
+
+    /**
+     * 字母表压缩时, 文本长度超过该值使用查表, 否则使用二分查找
+     */
+    private static final int TABLE_THRESHOLD = 1 << 16;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int[] build(String text) {
+        int length = text.length();
+
+        // s[length] 为虚拟哨兵
+        int[] s = new int[length + 1];
+        int alphabet = compact(text, s);
+
+        int[] sa = new int[length + 1];
+        sais(s, sa, length + 1, alphabet + 1);
+
+        // 虚拟哨兵排在最前, 挪到最后与 Manber 格式一致
+        int[] index = new int[length + 1];
+        System.arraycopy(sa, 1, index, 0, length);
+        index[length] = length;
+        return index;
+    }
+
+    /**
+     * 将字符映射为 1..alphabet 的名次, 写入 s
+     *
+     * @return 字母表大小
+     */
+    private static int compact(String text, int[] s) {
+        int length = text.length();
+        if (length >= TABLE_THRESHOLD) {
+            int[] table = new int[Character.MAX_VALUE + 1];
+            for (int i = 0; i < length; i++) {
+                table[text.charAt(i)] = 1;
+            }
+            int alphabet = 0;
+            for (int c = 0; c < table.length; c++) {
+                if (table[c] != 0) {
+                    table[c] = ++alphabet;
+                }
+            }
+            for (int i = 0; i < length; i++) {
+                s[i] = table[text.charAt(i)];
+            }
+            return alphabet;
+        }
+
+        char[] chars = text.toCharArray();
+        Arrays.sort(chars);
+        int alphabet = 0;
+        for (int i = 0; i < length; i++) {
+            if (i == 0 || chars[i] != chars[i - 1]) {
+                chars[alphabet++] = chars[i];
+            }
+        }
+        for (int i = 0; i < length; i++) {
+            s[i] = Arrays.binarySearch(chars, 0, alphabet, text.charAt(i)) + 1;
+        }
+        return alphabet;
+    }
+
+    /**
+     * @param s 输入串, s[n - 1] 为唯一的最小字符 0
+     * @param sa 输出的后缀数组
+     * @param n  输入长度
+     * @param k  字母表大小
+     */
+    private static void sais(int[] s, int[] sa, int n, int k) {
+        if (n == 1) {
+            sa[0] = 0;
+            return;
+        }
+
+        // true: S 型, false: L 型
+        boolean[] t = new boolean[n];
+        t[n - 1] = true;
+        for (int i = n - 2; i >= 0; i--) {
+            t[i] = s[i] < s[i + 1] || (s[i] == s[i + 1] && t[i + 1]);
+        }
+
+        // 1. 对 LMS 子串排序
+        int[] bkt = new int[k];
+        buckets(s, bkt, n, k, true);
+        Arrays.fill(sa, 0, n, -1);
+        for (int i = 1; i < n; i++) {
+            if (isLMS(t, i)) {
+                sa[--bkt[s[i]]] = i;
+            }
+        }
+        induceL(t, sa, s, bkt, n, k);
+        induceS(t, sa, s, bkt, n, k);
+
+        // 2. 给排好序的 LMS 子串命名
+        int n1 = 0;
+        for (int i = 0; i < n; i++) {
+            if (isLMS(t, sa[i])) {
+                sa[n1++] = sa[i];
+            }
+        }
+        Arrays.fill(sa, n1, n, -1);
+
+        int name = 0;
+        int prev = -1;
+        for (int i = 0; i < n1; i++) {
+            int pos = sa[i];
+            boolean diff = false;
+            for (int d = 0; d < n; d++) {
+                if (prev == -1 || s[pos + d] != s[prev + d] || t[pos + d] != t[prev + d]) {
+                    diff = true;
+                    break;
+                } else if (d > 0 && (isLMS(t, pos + d) || isLMS(t, prev + d))) {
+                    break;
+                }
+            }
+            if (diff) {
+                name++;
+                prev = pos;
+            }
+            sa[n1 + (pos >> 1)] = name - 1;
+        }
+        for (int i = n - 1, j = n - 1; i >= n1; i--) {
+            if (sa[i] >= 0) {
+                sa[j--] = sa[i];
+            }
+        }
+
+        // 3. 递归排序约简后的串
+        int[] s1 = Arrays.copyOfRange(sa, n - n1, n);
+        int[] sa1 = new int[n1];
+        if (name < n1) {
+            sais(s1, sa1, n1, name);
+        } else {
+            for (int i = 0; i < n1; i++) {
+                sa1[s1[i]] = i;
+            }
+        }
+
+        // 4. 由 LMS 后缀的顺序诱导出完整的后缀数组
+        for (int i = 1, j = 0; i < n; i++) {
+            if (isLMS(t, i)) {
+                s1[j++] = i;
+            }
+        }
+        for (int i = 0; i < n1; i++) {
+            sa1[i] = s1[sa1[i]];
+        }
+        Arrays.fill(sa, 0, n, -1);
+        buckets(s, bkt, n, k, true);
+        for (int i = n1 - 1; i >= 0; i--) {
+            int j = sa1[i];
+            sa[--bkt[s[j]]] = j;
+        }
+        induceL(t, sa, s, bkt, n, k);
+        induceS(t, sa, s, bkt, n, k);
+    }
+
+    private static boolean isLMS(boolean[] t, int i) {
+        return i > 0 && t[i] && !t[i - 1];
+    }
+
+    /**
+     * @param end true 取桶的结束位置, false 取桶的开始位置
+     */
+    private static void buckets(int[] s, int[] bkt, int n, int k, boolean end) {
+        Arrays.fill(bkt, 0, k, 0);
+        for (int i = 0; i < n; i++) {
+            bkt[s[i]]++;
+        }
+        int sum = 0;
+        for (int i = 0; i < k; i++) {
+            sum += bkt[i];
+            bkt[i] = end ? sum : sum - bkt[i];
+        }
+    }
+
+    private static void induceL(boolean[] t, int[] sa, int[] s, int[] bkt, int n, int k) {
+        buckets(s, bkt, n, k, false);
+        for (int i = 0; i < n; i++) {
+            int j = sa[i] - 1;
+            if (j >= 0 && !t[j]) {
+                sa[bkt[s[j]]++] = j;
+            }
+        }
+    }
+
+    private static void induceS(boolean[] t, int[] sa, int[] s, int[] bkt, int n, int k) {
+        buckets(s, bkt, n, k, true);
+        for (int i = n - 1; i >= 0; i--) {
+            int j = sa[i] - 1;
+            if (j >= 0 && t[j]) {
+                sa[--bkt[s[j]]] = j;
+            }
+        }
+    }
+}
@@ -0,0 +1,25 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow.index.suffix;
+
+/**
+ * 后缀数组构建算法 <br/>
+ * <br/>
+ * 输出与 Manber 内部 index 的格式一致: <br/>
+ *      长度为 text.length() + 1, index[i] 为排名第 i 的后缀起始下标, <br/>
+ *      最后一位为哨兵 text.length() <br/>
+ *
+ * @see SAISBuilder
+ * @see ManberBuilder
+ *
+ * Created by whimsy on 15/12/02.
+ */
+public interface SuffixArrayBuilder {
+
+    /**
+     * @param text 待索引字串, 以 Manber.START_SENTRY 开头
+     * @return 后缀数组
+     */
+    int[] build(String text);
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow.shard;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * 一致性哈希环, 不可变 <br/>
+ * <br/>
+ * 每个节点按节点名在环上放置 replicas 个虚拟节点, 用户ID顺时针找到的第一个虚拟节点即所属节点 <br/>
+ * 增加一个节点时只有约 1/N 的用户改变所属节点, 并且都迁移到新节点 <br/>
+ *
+ * Created by whimsy on 15/12/21.
+ */
+final class ConsistentHashRing {
+
+    private static final HashFunction HASH = Hashing.murmur3_32();
+
+    private final List<IndexNode> nodes;
+
+    private final int replicas;
+
+    /**
+     * 虚拟节点的哈希值 -> 节点
+     */
+    private final TreeMap<Integer, IndexNode> ring = Maps.newTreeMap();
+
+    /**
+     * @param nodes 所有节点, 节点名不能重复
+     * @param replicas 每个节点的虚拟节点数
+     */
+    ConsistentHashRing(Collection<IndexNode> nodes, int replicas) {
+        if (nodes.isEmpty() || replicas <= 0) {
+            throw new IllegalArgumentException("nodes should not be empty and replicas should be positive");
+        }
+        this.nodes = ImmutableList.copyOf(nodes);
+        this.replicas = replicas;
+
+        Map<String, IndexNode> names = Maps.newHashMap();
+        for (IndexNode node : nodes) {
+            if (names.put(node.getName(), node) != null) {
+                throw new IllegalArgumentException("Duplicated node name: " + node.getName());
+            }
+            for (int i = 0; i < replicas; i++) {
+                ring.put(HASH.hashString(node.getName() + "#" + i, Charsets.UTF_8).asInt(), node);
+            }
+        }
+    }
+
+    /**
+     * @return 增加一个节点后的新环
+     */
+    ConsistentHashRing with(IndexNode node) {
+        return new ConsistentHashRing(ImmutableList.<IndexNode>builder().addAll(nodes).add(node).build(), replicas);
+    }
+
+    /**
+     * @return 用户所属的节点
+     */
+    IndexNode nodeOf(Long userId) {
+        Map.Entry<Integer, IndexNode> entry = ring.ceilingEntry(HASH.hashLong(userId).asInt());
+        return entry == null ? ring.firstEntry().getValue() : entry.getValue();
+    }
+
+    /**
+     * @return 所有节点, 按加入的顺序
+     */
+    List<IndexNode> nodes() {
+        return nodes;
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow.shard;
+
+import java.util.List;
+import java.util.Set;
+
+import com.baidu.sspweb.service.allknow.KnowService;
+import com.baidu.sspweb.service.allknow.index.PairEntry;
+import com.google.common.collect.Multimap;
+
+/**
+ * 一个索引节点, 保存一部分用户的索引 <br/>
+ * <br/>
+ * 查询接口与 KnowService 相同, 另外提供写入和迁移用户需要的接口 <br/>
+ * 部署到多台机器时由 RPC 客户端实现, 测试和单机部署使用 LoopbackNode <br/>
+ *
+ * @see LoopbackNode
+ * @see ShardedKnowService
+ *
+ * Created by whimsy on 15/12/21.
+ */
+public interface IndexNode extends KnowService {
+
+    /**
+     * @return 节点名, 在所有节点中唯一, 决定节点在哈希环上的位置
+     */
+    String getName();
+
+    /**
+     * 批量导入数据
+     *
+     * @param datas userId -> 条目
+     */
+    void load(Multimap<Long, PairEntry> datas);
+
+    /**
+     * 插入或更新一个条目
+     *
+     * @param userId 条目用户ID
+     * @param id 条目ID
+     * @param content 条目内容
+     */
+    void push(Long userId, Long id, String content);
+
+    /**
+     * @return 节点上有索引的所有用户ID
+     */
+    Set<Long> userIds();
+
+    /**
+     * @param userId 用户ID
+     * @return 用户的全部条目, 按ID升序
+     */
+    List<PairEntry> export(Long userId);
+
+    /**
+     * 删除用户的索引, 用户迁移到其它节点之后调用
+     *
+     * @param userId 用户ID
+     */
+    void remove(Long userId);
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow.shard;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.baidu.sspweb.service.allknow.KnowService;
+import com.baidu.sspweb.service.allknow.KnowServiceImpl;
+import com.baidu.sspweb.service.allknow.QueryResult;
+import com.baidu.sspweb.service.allknow.index.PairEntry;
+import com.baidu.sspweb.service.allknow.index.impl.DeliveryIndex;
+import com.baidu.sspweb.service.allknow.query.Query;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+
+/**
+ * 同一个 JVM 中的索引节点, 代替真实的远程节点 <br/>
+ * <br/>
+ * 参数和返回值都被复制, 调用者与节点之间不共享可变对象, 与通过网络调用的行为一致 <br/>
+ *
+ * Created by whimsy on 15/12/21.
+ */
+public class LoopbackNode implements IndexNode {
+
+    private final String name;
+
+    private final DeliveryIndex index;
+
+    private final KnowService service;
+
+    /**
+     * @param name 节点名
+     * @param index 节点持有的索引
+     */
+    public LoopbackNode(String name, DeliveryIndex index) {
+        this.name = name;
+        this.index = index;
+        this.service = new KnowServiceImpl(index);
+    }
+
+    /**
+     * @return 节点持有的索引
+     */
+    public DeliveryIndex getIndex() {
+        return index;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void load(Multimap<Long, PairEntry> datas) {
+        Multimap<Long, PairEntry> copy = ArrayListMultimap.create();
+        for (Map.Entry<Long, PairEntry> entry : datas.entries()) {
+            copy.put(entry.getKey(), copy(entry.getValue()));
+        }
+        index.load(copy);
+    }
+
+    @Override
+    public void push(Long userId, Long id, String content) {
+        index.push(userId, id, content);
+    }
+
+    @Override
+    public Set<Long> userIds() {
+        return ImmutableSet.copyOf(index.userIds());
+    }
+
+    @Override
+    public List<PairEntry> export(Long userId) {
+        List<PairEntry> res = Lists.newArrayList();
+        for (PairEntry entry : index.export(userId)) {
+            res.add(copy(entry));
+        }
+        return res;
+    }
+
+    @Override
+    public void remove(Long userId) {
+        index.remove(userId);
+    }
+
+    @Override
+    public List<Long> findDeliveryIds(Long userId, String keyword) {
+        return service.findDeliveryIds(userId, keyword);
+    }
+
+    @Override
+    public long[] findDeliveryIdArray(Long userId, String keyword) {
+        return service.findDeliveryIdArray(userId, keyword).clone();
+    }
+
+    @Override
+    public Map<String, List<Long>> findDeliveryIds(Long userId, Collection<String> keywords) {
+        return service.findDeliveryIds(userId, Lists.newArrayList(keywords));
+    }
+
+    @Override
+    public Map<Long, List<Long>> findDeliveryIds(Collection<Long> userIds, String keyword) {
+        return Maps.newLinkedHashMap(service.findDeliveryIds(Lists.newArrayList(userIds), keyword));
+    }
+
+    @Override
+    public List<Long> findDeliveryIds(Long userId, String keyword, int offset, int limit) {
+        return service.findDeliveryIds(userId, keyword, offset, limit);
+    }
+
+    @Override
+    public int countDeliveryIds(Long userId, String keyword) {
+        return service.countDeliveryIds(userId, keyword);
+    }
+
+    @Override
+    public long[] findDeliveryIdArray(Long userId, Query query) {
+        return service.findDeliveryIdArray(userId, query).clone();
+    }
+
+    @Override
+    public QueryResult findDeliveryIdResult(Long userId, String keyword) {
+        QueryResult result = service.findDeliveryIdResult(userId, keyword);
+        return new QueryResult(result.getIds().clone(), result.isStale());
+    }
+
+    private static PairEntry copy(PairEntry entry) {
+        return new PairEntry(entry.getId(), entry.getContent());
+    }
+
+    @Override
+    public String toString() {
+        return "LoopbackNode{" + name + '}';
+    }
+}
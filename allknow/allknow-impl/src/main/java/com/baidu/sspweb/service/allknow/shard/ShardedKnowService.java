@@ -0,0 +1,386 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow.shard;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.baidu.sspweb.service.allknow.KnowService;
+import com.baidu.sspweb.service.allknow.QueryResult;
+import com.baidu.sspweb.service.allknow.index.PairEntry;
+import com.baidu.sspweb.service.allknow.query.Query;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * 按用户分片的 KnowService <br/>
+ * <br/>
+ * 1. 用户通过一致性哈希环路由到一个索引节点, 单用户的查询和写入只访问该节点 <br/>
+ * 2. 跨用户查询按节点分组, 并行发送到各个节点后汇总(scatter-gather) <br/>
+ * 3. 增加节点时, 把所属节点变为新节点的用户从原节点导出, 导入新节点后从原节点删除 <br/>
+ * 迁移一个用户时只锁住该用户(所在的锁分段), 其它用户的查询和写入不受影响 <br/>
+ * 切换哈希环时短暂地锁住所有分段, 期间只列出各节点的用户, 不导出数据 <br/>
+ *
+ * @see ConsistentHashRing
+ *
+ * Created by whimsy on 15/12/21.
+ */
+public class ShardedKnowService implements KnowService {
+
+    private static Logger logger = LoggerFactory.getLogger(ShardedKnowService.class);
+
+    /**
+     * 默认每个节点的虚拟节点数
+     */
+    public static final int DEFAULT_REPLICAS = 160;
+
+    /**
+     * 等待并行查询线程结束的时间
+     */
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 5L;
+
+    /**
+     * 用户锁的分段数, 迁移一个用户时同一分段的其它用户也被阻塞
+     */
+    private static final int LOCK_STRIPES = 1024;
+
+    private volatile ConsistentHashRing ring;
+
+    /**
+     * 按用户分段的锁: 查询和写入持有用户的读锁, 迁移用户持有写锁 <br/>
+     * 持有多个时按分段顺序获取, 避免死锁
+     */
+    private final Striped<ReadWriteLock> userLocks = Striped.readWriteLock(LOCK_STRIPES);
+
+    /**
+     * 哈希环已经切换, 但还没有迁移完成的用户 -> 原节点
+     */
+    private final ConcurrentMap<Long, IndexNode> migrating = Maps.newConcurrentMap();
+
+    /**
+     * 跨用户查询时并行访问各个节点
+     */
+    private final ExecutorService scatter;
+
+    /**
+     * @param nodes 初始的索引节点
+     */
+    public ShardedKnowService(Collection<IndexNode> nodes) {
+        this(nodes, DEFAULT_REPLICAS);
+    }
+
+    /**
+     * @param nodes 初始的索引节点
+     * @param replicas 每个节点的虚拟节点数, 越大用户分布越均匀
+     */
+    public ShardedKnowService(Collection<IndexNode> nodes, int replicas) {
+        this.ring = new ConsistentHashRing(nodes, replicas);
+        this.scatter = Executors.newCachedThreadPool(
+                new ThreadFactoryBuilder().setNameFormat("allknow-scatter-%d").setDaemon(true).build());
+    }
+
+    /**
+     * 停止并行查询线程
+     */
+    public void close() {
+        scatter.shutdownNow();
+        try {
+            if (!scatter.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                logger.error("Pool did not terminate");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return 用户所属的节点
+     */
+    public IndexNode nodeOf(Long userId) {
+        IndexNode source = migrating.get(userId);
+        return source != null ? source : ring.nodeOf(userId);
+    }
+
+    /**
+     * @return 所有节点, 按加入的顺序
+     */
+    public List<IndexNode> nodes() {
+        return ring.nodes();
+    }
+
+    /**
+     * 批量导入, 按所属节点分组后导入
+     *
+     * @param datas userId -> 条目
+     */
+    public void load(Multimap<Long, PairEntry> datas) {
+        List<Lock> locks = readLocks(datas.keySet());
+        try {
+            Map<IndexNode, Multimap<Long, PairEntry>> groups = Maps.newLinkedHashMap();
+            for (Long userId : datas.keySet()) {
+                IndexNode node = nodeOf(userId);
+                Multimap<Long, PairEntry> group = groups.get(node);
+                if (group == null) {
+                    group = ArrayListMultimap.create();
+                    groups.put(node, group);
+                }
+                group.putAll(userId, datas.get(userId));
+            }
+            for (Map.Entry<IndexNode, Multimap<Long, PairEntry>> entry : groups.entrySet()) {
+                entry.getKey().load(entry.getValue());
+            }
+        } finally {
+            unlock(locks);
+        }
+    }
+
+    /**
+     * 插入或更新一个条目
+     */
+    public void push(Long userId, Long id, String content) {
+        Lock lock = readLock(userId);
+        try {
+            nodeOf(userId).push(userId, id, content);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 增加一个节点, 迁移所属节点变为新节点的用户 <br/>
+     * <br/>
+     * 1. 锁住所有分段, 列出要迁移的用户并记录原节点, 切换哈希环. 迁移完成前这些用户仍然路由到原节点 <br/>
+     * 2. 逐个迁移: 持有该用户的写锁导出, 导入新节点, 从原节点删除, 之后路由到新节点 <br/>
+     * 只有正在迁移的用户(及同一分段的用户)的查询和写入被阻塞, 不会丢失写入 <br/>
+     * 多次调用串行执行
+     *
+     * @param node 新节点, 节点名不能与已有节点重复
+     * @return 迁移的用户数
+     */
+    public synchronized int addNode(IndexNode node) {
+        Map<Long, IndexNode> moving = Maps.newLinkedHashMap();
+        lockAll();
+        try {
+            ConsistentHashRing current = ring;
+            ConsistentHashRing next = current.with(node);
+            for (IndexNode source : current.nodes()) {
+                for (Long userId : source.userIds()) {
+                    if (next.nodeOf(userId) == node) {
+                        moving.put(userId, source);
+                    }
+                }
+            }
+            migrating.putAll(moving);
+            ring = next;
+        } finally {
+            unlockAll();
+        }
+
+        for (Map.Entry<Long, IndexNode> entry : moving.entrySet()) {
+            Long userId = entry.getKey();
+            IndexNode source = entry.getValue();
+            Lock lock = userLocks.get(userId).writeLock();
+            lock.lock();
+            try {
+                Multimap<Long, PairEntry> datas = ArrayListMultimap.create();
+                datas.putAll(userId, source.export(userId));
+                node.load(datas);
+                source.remove(userId);
+                migrating.remove(userId);
+            } finally {
+                lock.unlock();
+            }
+        }
+        logger.info("Node {} added, {} users moved", node.getName(), moving.size());
+        return moving.size();
+    }
+
+    /**
+     * 获取用户的读锁, 之后才能路由, 保证迁移不会在访问节点期间发生
+     */
+    private Lock readLock(Long userId) {
+        Lock lock = userLocks.get(userId).readLock();
+        lock.lock();
+        return lock;
+    }
+
+    /**
+     * 按分段顺序获取多个用户的读锁, 同一分段只获取一次
+     */
+    private List<Lock> readLocks(Iterable<Long> userIds) {
+        List<Lock> locks = Lists.newArrayList();
+        ReadWriteLock previous = null;
+        for (ReadWriteLock stripe : userLocks.bulkGet(userIds)) {
+            if (stripe == previous) {
+                continue;
+            }
+            previous = stripe;
+            Lock lock = stripe.readLock();
+            lock.lock();
+            locks.add(lock);
+        }
+        return locks;
+    }
+
+    private static void unlock(List<Lock> locks) {
+        for (Lock lock : Lists.reverse(locks)) {
+            lock.unlock();
+        }
+    }
+
+    private void lockAll() {
+        for (int i = 0; i < userLocks.size(); ++i) {
+            userLocks.getAt(i).writeLock().lock();
+        }
+    }
+
+    private void unlockAll() {
+        for (int i = userLocks.size() - 1; i >= 0; --i) {
+            userLocks.getAt(i).writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Long> findDeliveryIds(Long userId, String keyword) {
+        Lock lock = readLock(userId);
+        try {
+            return nodeOf(userId).findDeliveryIds(userId, keyword);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long[] findDeliveryIdArray(Long userId, String keyword) {
+        Lock lock = readLock(userId);
+        try {
+            return nodeOf(userId).findDeliveryIdArray(userId, keyword);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Map<String, List<Long>> findDeliveryIds(Long userId, Collection<String> keywords) {
+        Lock lock = readLock(userId);
+        try {
+            return nodeOf(userId).findDeliveryIds(userId, keywords);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 按节点分组, 每个节点一次调用, 并行执行 <br/>
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<Long, List<Long>> findDeliveryIds(Collection<Long> userIds, final String keyword) {
+        List<Lock> locks = readLocks(userIds);
+        try {
+            ListMultimap<IndexNode, Long> groups = LinkedListMultimap.create();
+            for (Long userId : userIds) {
+                groups.put(nodeOf(userId), userId);
+            }
+
+            Map<IndexNode, Future<Map<Long, List<Long>>>> futures = Maps.newLinkedHashMap();
+            for (final IndexNode node : groups.keySet()) {
+                final List<Long> group = groups.get(node);
+                futures.put(node, scatter.submit(new Callable<Map<Long, List<Long>>>() {
+                    @Override
+                    public Map<Long, List<Long>> call() {
+                        return node.findDeliveryIds(group, keyword);
+                    }
+                }));
+            }
+
+            Map<Long, List<Long>> gathered = Maps.newHashMap();
+            for (Map.Entry<IndexNode, Future<Map<Long, List<Long>>>> entry : futures.entrySet()) {
+                gathered.putAll(get(entry.getKey(), entry.getValue()));
+            }
+
+            // 按调用者给出的用户顺序返回
+            Map<Long, List<Long>> res = Maps.newLinkedHashMap();
+            for (Long userId : userIds) {
+                res.put(userId, gathered.get(userId));
+            }
+            return res;
+        } finally {
+            unlock(locks);
+        }
+    }
+
+    private static <T> T get(IndexNode node, Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while querying node " + node.getName(), e);
+        } catch (ExecutionException e) {
+            logger.error("Query node " + node.getName() + " failed", e.getCause());
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    @Override
+    public List<Long> findDeliveryIds(Long userId, String keyword, int offset, int limit) {
+        Lock lock = readLock(userId);
+        try {
+            return nodeOf(userId).findDeliveryIds(userId, keyword, offset, limit);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int countDeliveryIds(Long userId, String keyword) {
+        Lock lock = readLock(userId);
+        try {
+            return nodeOf(userId).countDeliveryIds(userId, keyword);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long[] findDeliveryIdArray(Long userId, Query query) {
+        Lock lock = readLock(userId);
+        try {
+            return nodeOf(userId).findDeliveryIdArray(userId, query);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public QueryResult findDeliveryIdResult(Long userId, String keyword) {
+        Lock lock = readLock(userId);
+        try {
+            return nodeOf(userId).findDeliveryIdResult(userId, keyword);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
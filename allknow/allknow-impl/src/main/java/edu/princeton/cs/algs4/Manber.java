@@ -3,6 +3,8 @@
  */
 package edu.princeton.cs.algs4;
 
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -35,77 +37,166 @@ public class Manber {
 
     private static final int NUM_OF_CHAR = 65536; // support chinese character
 
+    /**
+     * LCP-LR 每项占一个字节, 超过 255 的 LCP 只记为 255, 查询时退化为逐字符比较
+     */
+    private static final int LCP_MASK = 0xff;
+
+    /**
+     * 估算内存时每个对象(数组)的头部大小
+     */
+    private static final int OBJECT_HEADER = 16;
+
     public static final String WORD_SEPARATOR = "\uffff";
     public static final String START_SENTRY = "\u0000";
     public static final String END_SENTRY = "\uffff\uffff";
 
-    private int length;               // length of input string
-    private String text;         // input text
-    private int[] index;         // offset of ith string in order
-    private int[] rank;          // rank of ith string
-    private int[] newrank;       // rank of ith string (temporary)
-    private int offset;
+    private final int length;               // length of input string
+    private final CharSequence text;        // input text
+    private final IntBuffer index;          // offset of ith string in order
+    private final ByteBuffer lcpLeft;       // lcp(suffix(left), suffix(mid)) of binary search node mid
+    private final ByteBuffer lcpRight;      // lcp(suffix(mid), suffix(right)) of binary search node mid
 
     public Manber(String s) {
+        this(s, sort(s));
+    }
 
-        length = s.length();
-        text = s;
-        index   = new int[length + 1];
-        rank    = new int[length + 1];
-        newrank = new int[length + 1];
+    /**
+     * 使用已构建好的后缀数组, 不再进行排序
+     *
+     * @param s  输入字串
+     * @param index  s 的后缀数组, 格式见 SuffixArrayBuilder
+     *
+     * @see com.baidu.sspweb.service.allknow.index.suffix.SuffixArrayBuilder
+     */
+    public Manber(CharSequence s, int[] index) {
+        if (index.length != s.length() + 1) {
+            throw new IllegalArgumentException("index.length should be text.length() + 1");
+        }
+        this.length = s.length();
+        this.text = s;
+        this.index = IntBuffer.wrap(index);
+
+        byte[] left = new byte[length + 1];
+        byte[] right = new byte[length + 1];
+        buildLcp(index, left, right);
+        this.lcpLeft = ByteBuffer.wrap(left);
+        this.lcpRight = ByteBuffer.wrap(right);
+    }
 
-        // sentinels
-        index[length] = length;
-        rank[length] = -1;
+    /**
+     * 使用已构建好的全部数据, 比如内存映射的索引文件, 不做任何计算
+     *
+     * @param s  输入字串
+     * @param index  后缀数组, 长度 s.length() + 1
+     * @param lcpLeft  LCP-LR, 长度 s.length() + 1
+     * @param lcpRight LCP-LR, 长度 s.length() + 1
+     */
+    public Manber(CharSequence s, IntBuffer index, ByteBuffer lcpLeft, ByteBuffer lcpRight) {
+        if (index.limit() != s.length() + 1 || lcpLeft.limit() != s.length() + 1
+                || lcpRight.limit() != s.length() + 1) {
+            throw new IllegalArgumentException("index/lcp length should be text.length() + 1");
+        }
+        this.length = s.length();
+        this.text = s;
+        this.index = index;
+        this.lcpLeft = lcpLeft;
+        this.lcpRight = lcpRight;
+    }
 
-        msd();
-        doit();
+    /**
+     * 原 Manber 倍增算法排序, O(n log^2 n)
+     *
+     * @param s 输入字串
+     * @return 后缀数组, 格式见 SuffixArrayBuilder
+     */
+    public static int[] sort(String s) {
+        return new Doubling(s).index;
     }
 
+    /**
+     * @return 后缀数组, 只读
+     */
+    public IntBuffer getIndex() {
+        return index.asReadOnlyBuffer();
+    }
 
     /**
-     * @param query  查询关键字
-     * @return 大于等于query的第一个元素的rank, 也就是可能前缀为 query 起始rank
+     * @return LCP-LR 左侧, 只读
      */
-    private int floor(String query) {
+    public ByteBuffer getLcpLeft() {
+        return lcpLeft.asReadOnlyBuffer();
+    }
 
-        int left = 0;
-        int right = length;
-        while (left < right) {
-            int mid = (left + right) / 2;
-            if (compare(mid, query) < 0) {
-                left = mid + 1;
-            } else {
-                right = mid;
-            }
-        }
-        return Math.max(1, left);
+    /**
+     * @return LCP-LR 右侧, 只读
+     */
+    public ByteBuffer getLcpRight() {
+        return lcpRight.asReadOnlyBuffer();
     }
 
+    /**
+     * @return 索引字串
+     */
+    public CharSequence getText() {
+        return text;
+    }
 
+    /**
+     * @return 索引字串的长度
+     */
+    public int length() {
+        return length;
+    }
 
     /**
+     * 估算构建完成后常驻堆内存的大小, 内存映射的部分不计算在内 <br/>
+     * text(2 byte/char) + index(4 byte/char) + LCP-LR(2 byte/char)
      *
+     * @return 字节数
+     */
+    public long retainedSize() {
+        long size = OBJECT_HEADER * 5;
+        if (text instanceof String) {
+            size += 2L * length;
+        }
+        if (index.hasArray()) {
+            size += 4L * (length + 1);
+        }
+        if (lcpLeft.hasArray()) {
+            size += 2L * (length + 1);
+        }
+        return size;
+    }
+
+
+    /**
+     * @param query  查询关键字
+     * @return 第一个不小于 query 的后缀的 rank, 也就是前缀为 query 的起始rank
+     */
+    public int floor(String query) {
+        return search(query, false);
+    }
+
+    /**
      * @param query 查询关键字
-     * @return 小于等于query+"\uffff"的第一个元素rank, 也就是前缀为query 的终止rank
+     * @return 第一个大于 query 且前缀不为 query 的后缀的 rank, 也就是前缀为 query 的终止rank(不包含)
      */
-    private int ceiling(String query) {
+    public int ceiling(String query) {
+        return search(query, true);
+    }
 
-        query += WORD_SEPARATOR + WORD_SEPARATOR;
-        int left = 0;
-        int right = length;
-        while (left < right) {
-            int mid = (left + right) / 2 + 1;
-            if (compare(mid, query) > 0) {
-                right = mid - 1;
-            } else {
-                left = mid;
-            }
-        }
-        return Math.min(left, length - 1);
+    /**
+     * @param rank 后缀的排名
+     * @return 排名为 rank 的后缀在字串中的下标
+     */
+    public int indexAt(int rank) {
+        return index.get(rank);
     }
 
     /**
+     * 前缀匹配的后缀排名为 [floor(query), ceiling(query)), 可以用 indexAt 逐个访问, 不需要装箱
+     *
      * @param query 查询关键字
      * @return 查找前缀匹配的字串下标
      */
@@ -114,166 +205,320 @@ public class Manber {
 
         int left = floor(query);
         int right = ceiling(query);
-        for (int i = left; i <= right; ++i) {
-            list.add(index[i]);
+        for (int i = left; i < right; ++i) {
+            list.add(index.get(i));
         }
         return list;
     }
 
-    private int mod(int x) {
-        if (x > length) {
-            x -= length;
-        }
-        return x;
-    }
-    private int compare(int curRank, String query) {
-        int size = Math.min(length, query.length());
-        for (int i = 0; i < size; ++i) {
-            if (text.charAt(mod(index[curRank] + i)) < query.charAt(i)) {
-                return -1;
-            }
-            if (text.charAt(mod(index[curRank] + i)) > query.charAt(i)) {
-                return +1;
-            }
+    /**
+     * LCP-LR 二分查找, 比较次数 O(m + log n) <br/>
+     * <br/>
+     * 不变式: rank = left 的后缀在 query 之前, rank = right 的后缀不在 query 之前 <br/>
+     * l = lcp(suffix(left), query), r = lcp(suffix(right), query) <br/>
+     * 每一步只从 max(l, r) 或已知的 LCP 开始比较, 不再从 query 的第 0 个字符重新比较
+     *
+     * @param query 查询关键字
+     * @param upper false: 后缀小于 query 时在 query 之前 <br/>
+     *              true: 后缀小于 query 或以 query 为前缀时在 query 之前
+     * @return 第一个不在 query 之前的后缀的 rank
+     */
+    private int search(String query, boolean upper) {
+        if (length == 0) {
+            return 0;
         }
-        return length - query.length();
-    }
 
-    // do one pass of msd sorting by rank at given offset
-    private void doit() {
-        for (offset = 1; offset < length; offset += offset) {
+        int left = 0;
+        int right = length - 1;
+        int l = lcp(index.get(left), query, 0);
+        if (!before(index.get(left), query, l, upper)) {
+            return left;
+        }
+        int r = lcp(index.get(right), query, 0);
+        if (before(index.get(right), query, r, upper)) {
+            return length;
+        }
 
-            int count = 0;
-            for (int i = 1; i <= length; i++) {
-                if (rank[index[i]] == rank[index[i - 1]]) {
-                    count++;
-                }
-                else if (count > 0) {
-                    // sort
-                    int left = i - 1 - count;
-                    int right = i - 1;
-                    quicksort(left, right);
-
-                    // now fix up ranks
-                    int r = rank[index[left]];
-                    for (int j = left + 1; j <= right; j++) {
-                        if (less(index[j - 1], index[j]))  {
-                            r = rank[index[left]] + j - left;
-                        }
-                        newrank[index[j]] = r;
+        while (right - left > 1) {
+            int mid = (left + right) >>> 1;
+            if (l >= r) {
+                int lm = lcpLeft.get(mid) & LCP_MASK;
+                if (lm > l && (lm < LCP_MASK || l < LCP_MASK)) {
+                    // suffix(mid) 与 suffix(left) 在第 l 个字符上相同, 同样在 query 之前
+                    left = mid;
+                } else if (lm < l && lm < LCP_MASK) {
+                    // suffix(mid) 在第 lm 个字符上大于 suffix(left), 也就大于 query
+                    right = mid;
+                    r = lm;
+                } else {
+                    int k = lcp(index.get(mid), query, Math.min(lm, l));
+                    if (before(index.get(mid), query, k, upper)) {
+                        left = mid;
+                        l = k;
+                    } else {
+                        right = mid;
+                        r = k;
                     }
-
-                    // copy back - note can't update rank too eagerly
-                    for (int j = left + 1; j <= right; j++) {
-                        rank[index[j]] = newrank[index[j]];
+                }
+            } else {
+                int rm = lcpRight.get(mid) & LCP_MASK;
+                if (rm > r && (rm < LCP_MASK || r < LCP_MASK)) {
+                    right = mid;
+                } else if (rm < r && rm < LCP_MASK) {
+                    left = mid;
+                    l = rm;
+                } else {
+                    int k = lcp(index.get(mid), query, Math.min(rm, r));
+                    if (before(index.get(mid), query, k, upper)) {
+                        left = mid;
+                        l = k;
+                    } else {
+                        right = mid;
+                        r = k;
                     }
-
-                    count = 0;
                 }
             }
         }
+        return right;
     }
 
-    // sort by leading char, assumes UTF-8
-    private void msd() {
-        // calculate frequencies
-        int[] freq = new int[NUM_OF_CHAR];
-        for (int i = 0; i < length; i++) {
-            freq[text.charAt(i)]++;
+    /**
+     * @param suffix 后缀起始下标
+     * @param from   已知相同的前缀长度
+     * @return suffix 与 query 的最长公共前缀长度
+     */
+    private int lcp(int suffix, String query, int from) {
+        int size = Math.min(length - suffix, query.length());
+        int i = from;
+        while (i < size && text.charAt(suffix + i) == query.charAt(i)) {
+            i++;
         }
+        return i;
+    }
 
-        // calculate cumulative frequencies
-        int[] cumm = new int[NUM_OF_CHAR];
-        for (int i = 1; i < NUM_OF_CHAR; i++) {
-            cumm[i] = cumm[i - 1] + freq[i - 1];
+    /**
+     * @param k suffix 与 query 的最长公共前缀长度
+     * @return suffix 是否在 query 之前, 定义见 search
+     */
+    private boolean before(int suffix, String query, int k, boolean upper) {
+        if (k == query.length()) {
+            return upper;
         }
+        // 后缀已结束, 短的在前
+        return suffix + k == length || text.charAt(suffix + k) < query.charAt(k);
+    }
 
-        // compute ranks
-        for (int i = 0; i < length; i++) {
-            rank[i] = cumm[text.charAt(i)];
+    /**
+     * Kasai 算法求相邻后缀的 LCP, 再沿二分查找树求出每个 mid 到左右端点的 LCP
+     */
+    private void buildLcp(int[] sa, byte[] left, byte[] right) {
+        if (length < 2) {
+            return;
         }
 
-        // sort by first char
+        int[] rankOf = new int[length];
+        for (int i = 0; i < length; i++) {
+            rankOf[sa[i]] = i;
+        }
+        // lcp[i] = lcp(suffix(i - 1), suffix(i))
+        int[] lcp = new int[length];
+        int h = 0;
         for (int i = 0; i < length; i++) {
-            index[cumm[text.charAt(i)]++] = i;
+            if (rankOf[i] > 0) {
+                int j = sa[rankOf[i] - 1];
+                while (i + h < length && j + h < length && text.charAt(i + h) == text.charAt(j + h)) {
+                    h++;
+                }
+                lcp[rankOf[i]] = h;
+                if (h > 0) {
+                    h--;
+                }
+            } else {
+                h = 0;
+            }
+        }
+
+        fillLcp(lcp, left, right, 0, length - 1);
+    }
+
+    /**
+     * @return lcp(suffix(lo), suffix(hi))
+     */
+    private static int fillLcp(int[] lcp, byte[] left, byte[] right, int lo, int hi) {
+        if (hi - lo <= 1) {
+            return lcp[hi];
         }
+        int mid = (lo + hi) >>> 1;
+        int lm = fillLcp(lcp, left, right, lo, mid);
+        int rm = fillLcp(lcp, left, right, mid, hi);
+        left[mid] = (byte) Math.min(lm, LCP_MASK);
+        right[mid] = (byte) Math.min(rm, LCP_MASK);
+        return Math.min(lm, rm);
     }
 
+    /**
+     * Manber 倍增排序, 只在构建期间存在, 排序完成后 rank/newrank 即可回收
+     */
+    private static final class Doubling {
+
+        private final int length;    // length of input string
+        private final String text;   // input text
+        private final int[] index;   // offset of ith string in order
+        private final int[] rank;    // rank of ith string
+        private final int[] newrank; // rank of ith string (temporary)
+        private int offset;
+
+        private Doubling(String s) {
+            length = s.length();
+            text = s;
+            index   = new int[length + 1];
+            rank    = new int[length + 1];
+            newrank = new int[length + 1];
+
+            // sentinels
+            index[length] = length;
+            rank[length] = -1;
+
+            msd();
+            doit();
+        }
+
+        // do one pass of msd sorting by rank at given offset
+        private void doit() {
+            for (offset = 1; offset < length; offset += offset) {
+
+                int count = 0;
+                for (int i = 1; i <= length; i++) {
+                    if (rank[index[i]] == rank[index[i - 1]]) {
+                        count++;
+                    }
+                    else if (count > 0) {
+                        // sort
+                        int left = i - 1 - count;
+                        int right = i - 1;
+                        quicksort(left, right);
+
+                        // now fix up ranks
+                        int r = rank[index[left]];
+                        for (int j = left + 1; j <= right; j++) {
+                            if (less(index[j - 1], index[j]))  {
+                                r = rank[index[left]] + j - left;
+                            }
+                            newrank[index[j]] = r;
+                        }
+
+                        // copy back - note can't update rank too eagerly
+                        for (int j = left + 1; j <= right; j++) {
+                            rank[index[j]] = newrank[index[j]];
+                        }
+
+                        count = 0;
+                    }
+                }
+            }
+        }
+
+        // sort by leading char, assumes UTF-8
+        private void msd() {
+            // calculate frequencies
+            int[] freq = new int[NUM_OF_CHAR];
+            for (int i = 0; i < length; i++) {
+                freq[text.charAt(i)]++;
+            }
+
+            // calculate cumulative frequencies
+            int[] cumm = new int[NUM_OF_CHAR];
+            for (int i = 1; i < NUM_OF_CHAR; i++) {
+                cumm[i] = cumm[i - 1] + freq[i - 1];
+            }
+
+            // compute ranks
+            for (int i = 0; i < length; i++) {
+                rank[i] = cumm[text.charAt(i)];
+            }
+
+            // sort by first char
+            for (int i = 0; i < length; i++) {
+                index[cumm[text.charAt(i)]++] = i;
+            }
+        }
 
 
-/**********************************************************************
- *  Helper functions for comparing suffixes.
- **********************************************************************/
 
     /**********************************************************************
-     * Is the substring text[v..length] lexicographically less than the
-     * substring text[w..length] ?
+     *  Helper functions for comparing suffixes.
      **********************************************************************/
-    private boolean less(int v, int w) {
-        if (v + offset >= length) {
-            v -= length;
-        }
-        if (w + offset >= length) {
-            w -= length;
+
+        /**********************************************************************
+         * Is the substring text[v..length] lexicographically less than the
+         * substring text[w..length] ?
+         **********************************************************************/
+        private boolean less(int v, int w) {
+            if (v + offset >= length) {
+                v -= length;
+            }
+            if (w + offset >= length) {
+                w -= length;
+            }
+            return rank[v + offset] < rank[w + offset];
         }
-        return rank[v + offset] < rank[w + offset];
-    }
 
 
 
-    /*************************************************************************
-     *  Quicksort code from Sedgewick 7.1, 7.2.
-     *************************************************************************/
+        /*************************************************************************
+         *  Quicksort code from Sedgewick 7.1, 7.2.
+         *************************************************************************/
 
-    // swap pointer sort indices
-    private void exch(int i, int j) {
-        int swap = index[i];
-        index[i] = index[j];
-        index[j] = swap;
-    }
+        // swap pointer sort indices
+        private void exch(int i, int j) {
+            int swap = index[i];
+            index[i] = index[j];
+            index[j] = swap;
+        }
 
 
-    // SUGGEST REPLACING WITH 3-WAY QUICKSORT SINCE ELEMENTS ARE
-    // RANKS AND THERE MAY BE DUPLICATES
-    void quicksort(int l, int r) {
-        if (r <= l) {
-            return;
+        // SUGGEST REPLACING WITH 3-WAY QUICKSORT SINCE ELEMENTS ARE
+        // RANKS AND THERE MAY BE DUPLICATES
+        void quicksort(int l, int r) {
+            if (r <= l) {
+                return;
+            }
+            int i = partition(l, r);
+            quicksort(l, i - 1);
+            quicksort(i + 1, r);
         }
-        int i = partition(l, r);
-        quicksort(l, i - 1);
-        quicksort(i + 1, r);
-    }
 
-    int partition(int l, int r) {
-        int i = l - 1;
-        int j = r;
-        int v = index[r];
+        int partition(int l, int r) {
+            int i = l - 1;
+            int j = r;
+            int v = index[r];
 
-        while (true) {
+            while (true) {
 
-            // find item on left to swap
-            while (less(index[++i], v)) {
+                // find item on left to swap
+                while (less(index[++i], v)) {
 
-            }
+                }
 
-            // find item on right to swap
-            while (less(v, index[--j])) {
-                if (j == l) {
+                // find item on right to swap
+                while (less(v, index[--j])) {
+                    if (j == l) {
+                        break;
+                    }
+                }
+
+                // check if pointers cross
+                if (i >= j) {
                     break;
                 }
-            }
 
-            // check if pointers cross
-            if (i >= j) {
-                break;
+                exch(i, j);
             }
 
-            exch(i, j);
-        }
-
-        // swap with partition element
-        exch(i, r);
+            // swap with partition element
+            exch(i, r);
 
-        return i;
+            return i;
+        }
     }
-}
\ No newline at end of file
+}
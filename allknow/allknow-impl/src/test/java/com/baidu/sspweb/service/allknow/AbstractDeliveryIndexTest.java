@@ -27,7 +27,7 @@ public abstract  class AbstractDeliveryIndexTest {
 
     protected static final Long USER_ID = 5106311L;
 
-    // 每过5000ms增量会合并到基准，所以过了WAIT_INDEX_SLEEP_TIMEms，验证索引的效率
+    // 增量达到阈值后由后台线程合并到基准，所以过了WAIT_INDEX_SLEEP_TIMEms，验证索引的效率
     protected static final Long WAIT_INDEX_SLEEP_TIME = 6000L;
 
 
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.baidu.sspweb.service.allknow.index.HotSwapKWIC;
+import com.baidu.sspweb.service.allknow.index.KWIC;
+import com.baidu.sspweb.service.allknow.index.PairEntry;
+import com.baidu.sspweb.service.allknow.query.MatchMode;
+import com.baidu.sspweb.service.allknow.query.Query;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Longs;
+
+/**
+ * 布尔查询和锚定匹配: 与逐条检查 content 的结果一致, 包括段, 增量和被覆盖的数据
+ *
+ * Created by whimsy on 15/12/16.
+ */
+public class BooleanQueryTest extends AbstractDeliveryIndexTest {
+
+    private static final Query[] QUERIES = {
+        Query.term("北京"),
+        Query.and(Query.term("北京"), Query.term("医院")),
+        Query.and(Query.term("北京"), Query.not(Query.term("医院"))),
+        Query.or(Query.term("北京"), Query.term("上海"), Query.term("广州")),
+        Query.and(Query.or(Query.term("北京"), Query.term("上海")), Query.term("地区")),
+        Query.and(Query.term("1"), Query.not(Query.term("北京")), Query.not(Query.term("删除"))),
+        // "1" 匹配的后缀远多于当前结果, 逐条检查 content
+        Query.and(Query.term("北京"), Query.term("1")),
+        Query.and(Query.term("医院"), Query.not(Query.term("1"))),
+        Query.and(Query.term("不存在"), Query.term("北京")),
+        Query.term("北京", MatchMode.PREFIX),
+        Query.term("医院", MatchMode.SUFFIX),
+        Query.term("北京解放军307医院", MatchMode.EXACT),
+        Query.and(Query.term("北京", MatchMode.PREFIX), Query.not(Query.term("医院", MatchMode.SUFFIX))),
+    };
+
+    @Test
+    public void testMatchesBruteForce() {
+        HotSwapKWIC index = new HotSwapKWIC();
+        Map<Long, String> contents = Maps.newTreeMap();
+
+        // 分两批构建成段, 再写入增量, 部分增量覆盖段中的数据
+        int i = 0;
+        for (PairEntry entry : getData("delivery_5106311_data_medium.txt").values()) {
+            contents.put(entry.getId(), entry.getContent());
+            if (i++ % 2 == 0) {
+                index.insertOrUpdate(entry);
+            }
+        }
+        index.tryReIndex();
+        for (PairEntry entry : getData("delivery_5106311_data_medium.txt").values()) {
+            index.insertOrUpdate(entry);
+        }
+        index.tryReIndex();
+        int updated = 0;
+        for (Long id : contents.keySet()) {
+            if (updated++ % 10 == 0) {
+                String content = "北京医院" + id;
+                contents.put(id, content);
+                index.insertOrUpdate(new PairEntry(id, content));
+            }
+        }
+
+        for (Query query : QUERIES) {
+            assertThat(query.toString(), Arrays.toString(index.findIds(query)),
+                    is(Arrays.toString(bruteForce(contents, query))));
+        }
+    }
+
+    @Test
+    public void testAnchoredMatch() {
+        KWIC kwic = new KWIC(Lists.newArrayList(
+                new PairEntry(1L, "北京医院"),
+                new PairEntry(2L, ""),
+                new PairEntry(3L, "医院北京"),
+                new PairEntry(4L, "北京")));
+
+        assertThat(Arrays.toString(kwic.findIds("北京", MatchMode.CONTAINS)), is("[1, 3, 4]"));
+        assertThat(Arrays.toString(kwic.findIds("北京", MatchMode.PREFIX)), is("[1, 4]"));
+        assertThat(Arrays.toString(kwic.findIds("北京", MatchMode.SUFFIX)), is("[3, 4]"));
+        assertThat(Arrays.toString(kwic.findIds("北京", MatchMode.EXACT)), is("[4]"));
+        assertThat(Arrays.toString(kwic.findIds("北京医院", MatchMode.EXACT)), is("[1]"));
+        assertThat(Arrays.toString(kwic.findIds("", MatchMode.PREFIX)), is("[1, 2, 3, 4]"));
+        assertThat(Arrays.toString(kwic.findIds("", MatchMode.SUFFIX)), is("[1, 2, 3, 4]"));
+        assertThat(Arrays.toString(kwic.findIds("", MatchMode.EXACT)), is("[2]"));
+        assertThat(kwic.estimate("北京", MatchMode.EXACT), is(1));
+
+        // 增量按同样的方式匹配
+        HotSwapKWIC index = new HotSwapKWIC();
+        index.insertOrUpdate(new PairEntry(1L, "北京医院"));
+        index.insertOrUpdate(new PairEntry(4L, "北京"));
+        assertThat(Arrays.toString(index.findIds("北京", MatchMode.EXACT)), is("[4]"));
+        assertThat(Arrays.toString(index.findIds("医院", MatchMode.SUFFIX)), is("[1]"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTopLevelNot() {
+        HotSwapKWIC index = new HotSwapKWIC();
+        index.insertOrUpdate(new PairEntry(1L, "北京"));
+        index.findIds(Query.not(Query.term("北京")));
+    }
+
+    private static long[] bruteForce(Map<Long, String> contents, Query query) {
+        long[] ids = new long[contents.size()];
+        int size = 0;
+        for (Map.Entry<Long, String> entry : contents.entrySet()) {
+            if (matches(query, entry.getValue())) {
+                ids[size++] = entry.getKey();
+            }
+        }
+        return Longs.toArray(Longs.asList(ids).subList(0, size));
+    }
+
+    private static boolean matches(Query query, String content) {
+        switch (query.getOperator()) {
+            case TERM:
+                return query.getMode().matches(content, query.getKeyword());
+            case AND:
+                for (Query clause : query.getClauses()) {
+                    if (!matches(clause, content)) {
+                        return false;
+                    }
+                }
+                return true;
+            case OR:
+                for (Query clause : query.getClauses()) {
+                    if (matches(clause, content)) {
+                        return true;
+                    }
+                }
+                return false;
+            default:
+                return !matches(query.getClauses().get(0), content);
+        }
+    }
+}
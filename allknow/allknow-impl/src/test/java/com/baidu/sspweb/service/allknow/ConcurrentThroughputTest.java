@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.baidu.sspweb.service.allknow.index.PairEntry;
+import com.baidu.sspweb.service.allknow.index.impl.DeliveryIndex;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+
+/**
+ * 多线程插入 + 查询的吞吐量 <br/>
+ * 线程数从1增加到CPU核数, 打印每秒操作数, 不同用户之间不应该互相阻塞
+ *
+ * Created by whimsy on 15/12/12.
+ */
+public class ConcurrentThroughputTest {
+
+    static Logger logger = LoggerFactory.getLogger(ConcurrentThroughputTest.class);
+
+    private static final int USER_COUNT = 64;
+
+    private static final int ENTRIES_PER_USER = 200;
+
+    private static final int OPS_PER_THREAD = 5000;
+
+    /**
+     * 每 PUSH_RATIO 次操作中有一次插入, 其余为查询
+     */
+    private static final int PUSH_RATIO = 5;
+
+    private static final String[] QUERIES = {"北京", "条目1", "不存在"};
+
+    private static Multimap<Long, PairEntry> data() {
+        Multimap<Long, PairEntry> datas = ArrayListMultimap.create();
+        for (long userId = 0; userId < USER_COUNT; ++userId) {
+            for (int i = 0; i < ENTRIES_PER_USER; ++i) {
+                datas.put(userId, new PairEntry((long) i, (i % 10 == 0 ? "北京" : "上海") + "条目" + i));
+            }
+        }
+        return datas;
+    }
+
+    private static List<Integer> threadCounts() {
+        List<Integer> counts = Lists.newArrayList();
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads < cores; threads *= 2) {
+            counts.add(threads);
+        }
+        counts.add(cores);
+        return counts;
+    }
+
+    @Test
+    public void testThroughput() throws InterruptedException {
+        for (int threads : threadCounts()) {
+            final DeliveryIndex index = new DeliveryIndex();
+            index.load(data());
+
+            final CountDownLatch start = new CountDownLatch(1);
+            final CountDownLatch done = new CountDownLatch(threads);
+            final AtomicInteger pushes = new AtomicInteger();
+            final AtomicInteger errors = new AtomicInteger();
+
+            for (int t = 0; t < threads; ++t) {
+                final int seed = t;
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Random random = new Random(seed);
+                        try {
+                            start.await();
+                            for (int i = 0; i < OPS_PER_THREAD; ++i) {
+                                long userId = random.nextInt(USER_COUNT);
+                                if (i % PUSH_RATIO == 0) {
+                                    // 新的ID, 不覆盖已有数据
+                                    long id = ENTRIES_PER_USER + (long) seed * OPS_PER_THREAD + i;
+                                    index.push(userId, id, "北京新增" + id);
+                                    pushes.incrementAndGet();
+                                } else {
+                                    index.query(userId, QUERIES[random.nextInt(QUERIES.length)]);
+                                }
+                            }
+                        } catch (Exception e) {
+                            errors.incrementAndGet();
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                }).start();
+            }
+
+            Stopwatch watch = Stopwatch.createStarted();
+            start.countDown();
+            done.await();
+            long elapsed = Math.max(1L, watch.elapsed(TimeUnit.MILLISECONDS));
+            logger.info("threads = {}, ops = {}, {} ms, {} ops/s", threads, threads * OPS_PER_THREAD,
+                    elapsed, threads * OPS_PER_THREAD * 1000L / elapsed);
+
+            try {
+                assertThat(errors.get(), is(0));
+                int total = 0;
+                for (long userId = 0; userId < USER_COUNT; ++userId) {
+                    total += index.query(userId, "北京新增").size();
+                }
+                assertThat(total, is(pushes.get()));
+            } finally {
+                index.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.core.Is.is;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.baidu.sspweb.service.allknow.index.IndexConfig;
+import com.baidu.sspweb.service.allknow.index.LatencyHistogram;
+import com.baidu.sspweb.service.allknow.index.PairEntry;
+import com.baidu.sspweb.service.allknow.index.impl.DeliveryIndex;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.Lists;
+
+/**
+ * 构建段时和构建后查询的 p99 都不超过构建前的 allknow.soak.p99Budget 倍 <br/>
+ * 默认值适合与其它测试共用的机器, 独占的压测机上可以通过系统属性收紧, 并用 allknow.soak.phaseSeconds 延长时间
+ *
+ * Created by whimsy on 15/12/24.
+ */
+public class HotSwapSoakTest extends AbstractDeliveryIndexTest {
+
+    private static final double P99_BUDGET = Double.parseDouble(System.getProperty("allknow.soak.p99Budget", "4"));
+
+    private static final int USERS = Integer.getInteger("allknow.soak.users", 8);
+
+    @Test
+    public void testSwapLatency() throws Exception {
+        List<PairEntry> entries = Lists.newArrayList(getData("delivery_5106311_data_medium.txt").get(USER_ID));
+        List<Long> userIds = Lists.newArrayList();
+        ImmutableListMultimap.Builder<Long, PairEntry> datas = ImmutableListMultimap.builder();
+        for (long userId = 1; userId <= USERS; ++userId) {
+            userIds.add(userId);
+            datas.putAll(userId, entries);
+        }
+
+        // 只由 reIndex 构建段, 不经过缓存
+        IndexConfig config = new IndexConfig();
+        config.setPlainIndexThreshold(Integer.MAX_VALUE);
+        config.setCacheBytes(0);
+        DeliveryIndex index = new DeliveryIndex(config);
+        try {
+            index.load(datas.build());
+            for (Long userId : userIds) {
+                index.reIndex(userId);
+            }
+
+            SoakHarness harness = new SoakHarness(index, userIds, entries);
+            Map<SoakHarness.Phase, LatencyHistogram> latencies = harness.run();
+            assertThat(harness.getSwaps(), greaterThan(0L));
+            assertThat(harness.getWrites(), greaterThan(0L));
+
+            LatencyHistogram before = latencies.get(SoakHarness.Phase.BEFORE);
+            LatencyHistogram swap = latencies.get(SoakHarness.Phase.SWAP);
+            LatencyHistogram after = latencies.get(SoakHarness.Phase.AFTER);
+            assertThat(before.getCount(), greaterThan(0L));
+            assertThat(swap.getCount(), greaterThan(0L));
+            assertThat(after.getCount(), greaterThan(0L));
+            long budget = (long) (before.getP99Micros() * P99_BUDGET);
+            assertThat("swap p99 " + swap + " vs before " + before, swap.getP99Micros(), lessThanOrEqualTo(budget));
+            assertThat("after p99 " + after + " vs before " + before, after.getP99Micros(), lessThanOrEqualTo(budget));
+
+            // 所有写入构建成段后与直接查询增量的结果一致
+            String expected = Arrays.toString(index.queryIds(1L, "北京"));
+            index.reIndex(1L);
+            assertThat(Arrays.toString(index.queryIds(1L, "北京")), is(expected));
+        } finally {
+            index.close();
+        }
+    }
+}
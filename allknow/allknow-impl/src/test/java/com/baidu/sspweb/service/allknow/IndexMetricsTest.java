@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.core.Is.is;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import com.baidu.sspweb.service.allknow.index.IndexConfig;
+import com.baidu.sspweb.service.allknow.index.LatencyHistogram;
+import com.baidu.sspweb.service.allknow.index.MonitoredIndex;
+
+/**
+ * 耗时分布的分位数误差, MBean 注册后可以读取索引状况
+ *
+ * Created by whimsy on 15/12/24.
+ */
+public class IndexMetricsTest {
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertThat(histogram.getP99Micros(), is(0L));
+
+        // 1us .. 10000us 均匀分布
+        for (long micros = 1; micros <= 10000; ++micros) {
+            histogram.record(micros * 1000L);
+        }
+        assertThat(histogram.getCount(), is(10000L));
+        assertThat(histogram.getMaxMicros(), is(10000L));
+        assertWithin(histogram.getP50Micros(), 5000L);
+        assertWithin(histogram.getP99Micros(), 9900L);
+        assertWithin(histogram.getP999Micros(), 9990L);
+        assertWithin(histogram.getMeanMicros(), 5000L);
+
+        histogram.reset();
+        assertThat(histogram.getCount(), is(0L));
+        assertThat(histogram.getMaxMicros(), is(0L));
+    }
+
+    private static void assertWithin(long actual, long expected) {
+        assertThat(actual, greaterThan(expected - 1));
+        assertThat(actual, lessThanOrEqualTo(expected + expected / 8));
+    }
+
+    @Test
+    public void testMBeans() throws Exception {
+        IndexConfig config = new IndexConfig();
+        config.setPlainIndexThreshold(100);
+        config.setCacheBytes(0);
+        MonitoredIndex index = new MonitoredIndex(config);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName health = new ObjectName(MonitoredIndex.JMX_DOMAIN + ":type=MonitoredIndex,name=\"test\"");
+        ObjectName query = new ObjectName(MonitoredIndex.JMX_DOMAIN + ":type=Latency,name=\"test\",operation=query");
+        try {
+            index.registerMBeans("test");
+
+            for (long id = 0; id < 150; ++id) {
+                index.push(1L, id, "北京条目" + id);
+            }
+            index.push(2L, 0L, "上海条目");
+            for (int i = 0; i < 10; ++i) {
+                index.queryIds(1L, "北京");
+            }
+
+            assertThat((Long) server.getAttribute(query, "Count"), is(10L));
+            assertThat(index.getMetrics().getPush().getCount(), is(151L));
+            assertThat((Integer) server.getAttribute(health, "UserCount"), is(2));
+            assertThat((Integer) server.invoke(health, "deltaSize", new Object[] {2L},
+                    new String[] {long.class.getName()}), is(1));
+            assertThat((Integer) server.invoke(health, "deltaSize", new Object[] {3L},
+                    new String[] {long.class.getName()}), is(-1));
+
+            // 等待后台把用户 1 的增量构建成段
+            for (int i = 0; i < 100 && index.getRebuildCount() == 0; ++i) {
+                Thread.sleep(50L);
+            }
+            assertThat((Long) server.getAttribute(health, "RebuildCount"), greaterThan(0L));
+            assertThat((Long) server.getAttribute(health, "SwapCount"), greaterThan(0L));
+            assertThat((Long) server.getAttribute(health, "RetainedBytes"), greaterThan(0L));
+            assertThat(index.queryIds(1L, "北京").length, is(150));
+
+            Map<Long, Integer> largest = index.getLargestDeltas();
+            assertThat(largest.get(2L), is(1));
+        } finally {
+            index.closeThreadPool();
+        }
+        assertThat(server.isRegistered(health), is(false));
+        assertThat(server.isRegistered(query), is(false));
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.baidu.sspweb.service.allknow.index.suffix.SAISBuilder;
+
+import edu.princeton.cs.algs4.Manber;
+
+/**
+ * 验证 Manber.findPrefixMatch 与逐个位置匹配的结果一致
+ *
+ * Created by whimsy on 15/12/03.
+ */
+public class ManberTest {
+
+    private static final String ALPHABET = "北京ab-";
+
+    private static String randomString(Random random, int maxLength) {
+        StringBuilder sb = new StringBuilder();
+        int length = random.nextInt(maxLength);
+        for (int i = 0; i < length; ++i) {
+            sb.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        }
+        return sb.toString();
+    }
+
+    private static List<Integer> bruteForce(String text, String query) {
+        List<Integer> res = new ArrayList<Integer>();
+        for (int i = 0; i < text.length(); ++i) {
+            if (text.startsWith(query, i)) {
+                res.add(i);
+            }
+        }
+        return res;
+    }
+
+    private static void verify(Manber manber, String text, String query) {
+        List<Integer> res = manber.findPrefixMatch(query);
+        Collections.sort(res);
+        assertThat(res, is(bruteForce(text, query)));
+    }
+
+    @Test
+    public void testRandom() {
+        Random random = new Random(20151203L);
+        for (int round = 0; round < 100; ++round) {
+            StringBuilder sb = new StringBuilder(Manber.START_SENTRY);
+            int size = random.nextInt(100);
+            for (int i = 0; i < size; ++i) {
+                sb.append(randomString(random, 30)).append(Manber.WORD_SEPARATOR);
+            }
+            String text = sb.append(Manber.END_SENTRY).toString();
+
+            Manber doubling = new Manber(text);
+            Manber sais = new Manber(text, new SAISBuilder().build(text));
+            for (int i = 0; i < 20; ++i) {
+                String query = randomString(random, 6);
+                verify(doubling, text, query);
+                verify(sais, text, query);
+            }
+            verify(sais, text, Manber.WORD_SEPARATOR);
+        }
+    }
+
+    @Test
+    public void testLongCommonPrefix() {
+        // LCP 超过 LCP-LR 单字节上限时的退化比较
+        StringBuilder base = new StringBuilder();
+        for (int i = 0; i < 600; ++i) {
+            base.append('a');
+        }
+        StringBuilder sb = new StringBuilder(Manber.START_SENTRY);
+        for (int i = 0; i < 20; ++i) {
+            sb.append(base).append(i).append(Manber.WORD_SEPARATOR);
+        }
+        String text = sb.append(Manber.END_SENTRY).toString();
+        Manber sais = new Manber(text, new SAISBuilder().build(text));
+
+        verify(sais, text, base.toString());
+        verify(sais, text, base.toString() + "1");
+        verify(sais, text, base.substring(300) + "19");
+        verify(sais, text, base.toString() + "b");
+    }
+}
@@ -61,6 +61,7 @@ public class MediumIndexTest extends AbstractDeliveryIndexTest {
 
         infoWarnThrow(query, expectedSize, watch.elapsed(TimeUnit.MILLISECONDS));
 
+        assertSameIds(ids, deliveryIndex.queryIds(USER_ID, query));
     }
 
 
@@ -76,6 +77,15 @@ public class MediumIndexTest extends AbstractDeliveryIndexTest {
         assertThat(ids.size(), is(expectedSize));
 
         infoWarnThrow(query, expectedSize, watch.elapsed(TimeUnit.MILLISECONDS));
+
+        assertSameIds(ids, deliveryIndex.queryIds(USER_ID, query));
+    }
+
+    private static void assertSameIds(List<PairEntry> entries, long[] ids) {
+        assertThat(ids.length, is(entries.size()));
+        for (int i = 0; i < ids.length; ++i) {
+            assertThat(ids[i], is(entries.get(i).getId()));
+        }
     }
 
 
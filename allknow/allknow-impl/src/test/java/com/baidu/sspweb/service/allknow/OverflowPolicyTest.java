@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+import org.junit.Test;
+
+import com.baidu.sspweb.service.allknow.index.HotSwapKWIC;
+import com.baidu.sspweb.service.allknow.index.IndexConfig;
+import com.baidu.sspweb.service.allknow.index.KWIC;
+import com.baidu.sspweb.service.allknow.index.OverflowPolicy;
+import com.baidu.sspweb.service.allknow.index.OverflowStats;
+import com.baidu.sspweb.service.allknow.index.PairEntry;
+import com.baidu.sspweb.service.allknow.index.ReIndexScheduler;
+
+/**
+ * 增量过长时查询不失败: 同步构建, 限制写入, 或者返回过期结果
+ *
+ * Created by whimsy on 15/12/20.
+ */
+public class OverflowPolicyTest {
+
+    private static final int THRESHOLD = 100;
+
+    private static final int PUSHES = 5 * THRESHOLD;
+
+    private static IndexConfig config(OverflowPolicy policy) {
+        IndexConfig config = new IndexConfig();
+        config.setPlainIndexThreshold(THRESHOLD);
+        config.setTooLongFactor(2);
+        config.setOverflowPolicy(policy);
+        return config;
+    }
+
+    private static void push(HotSwapKWIC index, int count) {
+        for (int i = 0; i < count; ++i) {
+            index.insertOrUpdate(new PairEntry((long) i, "条目" + i));
+            assertThat(index.find("条目" + i).isEmpty(), is(false));
+        }
+    }
+
+    @Test
+    public void testInlineCompaction() {
+        OverflowStats stats = new OverflowStats();
+        // 没有后台线程, 只能由写入线程构建段
+        HotSwapKWIC index = new HotSwapKWIC(KWIC.DEFAULT_BUILDER, 1L, null,
+                config(OverflowPolicy.INLINE_COMPACTION), null, stats);
+        push(index, PUSHES);
+
+        assertThat(stats.getInlineCompactions() > 0, is(true));
+        assertThat(index.segmentCount() > 0, is(true));
+        assertThat(index.find("条目").size(), is(PUSHES));
+    }
+
+    @Test
+    public void testThrottleWriters() {
+        OverflowStats stats = new OverflowStats();
+        ReIndexScheduler scheduler = new ReIndexScheduler(1);
+        try {
+            HotSwapKWIC index = new HotSwapKWIC(KWIC.DEFAULT_BUILDER, 1L, null,
+                    config(OverflowPolicy.THROTTLE_WRITERS), scheduler, stats);
+            push(index, PUSHES);
+
+            assertThat(stats.getInlineCompactions(), is(0L));
+            assertThat(index.find("条目").size(), is(PUSHES));
+            assertThat(index.findIdResult("条目").isStale(), is(false));
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void testDegrade() {
+        OverflowStats stats = new OverflowStats();
+        HotSwapKWIC index = new HotSwapKWIC(KWIC.DEFAULT_BUILDER, 1L, null,
+                config(OverflowPolicy.DEGRADE), null, stats);
+        for (int i = 0; i < 2 * THRESHOLD; ++i) {
+            index.insertOrUpdate(new PairEntry((long) i, "条目" + i));
+        }
+
+        // 跳过增量, 只返回段中的数据, stale 标记与结果一致
+        QueryResult result = index.findIdResult("条目");
+        assertThat(result.isStale(), is(true));
+        assertThat(result.getIds().length, is(0));
+        assertThat(index.find("条目").size(), is(0));
+        assertThat(index.count("条目"), is(0));
+        assertThat(stats.getDegradedQueries(), is(3L));
+
+        index.tryReIndex();
+        result = index.findIdResult("条目");
+        assertThat(result.isStale(), is(false));
+        assertThat(result.getIds().length, is(2 * THRESHOLD));
+        assertThat(index.find("条目").size(), is(2 * THRESHOLD));
+    }
+}
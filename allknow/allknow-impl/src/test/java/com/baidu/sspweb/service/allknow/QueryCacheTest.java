@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+import org.junit.Test;
+
+import com.baidu.sspweb.service.allknow.index.MonitoredIndex;
+import com.baidu.sspweb.service.allknow.index.QueryCache;
+
+/**
+ * 查询结果缓存: 命中, 写入后失效, 按大小淘汰
+ *
+ * Created by whimsy on 15/12/14.
+ */
+public class QueryCacheTest extends AbstractDeliveryIndexTest {
+
+    @Test
+    public void testHitAndInvalidate() {
+        MonitoredIndex index = new MonitoredIndex(1, QueryCache.DEFAULT_MAX_BYTES);
+        try {
+            index.load(getData("delivery_5106311_data_medium.txt"));
+            QueryCache cache = index.getQueryCache();
+
+            assertThat(index.query(USER_ID, "北京").size(), is(37));
+            assertThat(index.query(USER_ID, "北京").size(), is(37));
+            assertThat(index.queryIds(USER_ID, "北京").length, is(37));
+            assertThat(index.count(USER_ID, "北京"), is(37));
+            assertThat(cache.stats().hitCount(), is(1L));
+            assertThat(cache.retainedSize() > 0, is(true));
+
+            // 写入后版本号变化, 不会读到旧的结果
+            index.push(USER_ID, 1L, "北京新增");
+            assertThat(index.query(USER_ID, "北京").size(), is(38));
+            assertThat(index.queryIds(USER_ID, "北京").length, is(38));
+            assertThat(index.count(USER_ID, "北京"), is(38));
+            assertThat(cache.stats().hitCount(), is(1L));
+
+            // 返回的数组被修改不影响缓存
+            index.queryIds(USER_ID, "北京")[0] = -1L;
+            assertThat(index.queryIds(USER_ID, "北京")[0], is(1L));
+        } finally {
+            index.closeThreadPool();
+        }
+    }
+
+    @Test
+    public void testEviction() {
+        MonitoredIndex index = new MonitoredIndex(1, 1L << 12);
+        try {
+            index.load(getData("delivery_5106311_data_medium.txt"));
+            for (String query : new String[] {"北京", "上海", "广州", "地区", "医院", "北京"}) {
+                index.query(USER_ID, query);
+            }
+            QueryCache cache = index.getQueryCache();
+            assertThat(cache.stats().evictionCount() > 0, is(true));
+            assertThat(cache.retainedSize() <= 1L << 12, is(true));
+        } finally {
+            index.closeThreadPool();
+        }
+    }
+
+    @Test
+    public void testDisabled() {
+        MonitoredIndex index = new MonitoredIndex(1, 0);
+        try {
+            index.load(getData("delivery_5106311_data_medium.txt"));
+            assertThat(index.query(USER_ID, "北京").size(), is(37));
+            assertThat(index.query(USER_ID, "北京").size(), is(37));
+            assertThat(index.getQueryCache().size(), is(0L));
+        } finally {
+            index.closeThreadPool();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+import org.junit.Test;
+
+import com.baidu.sspweb.service.allknow.index.HotSwapKWIC;
+import com.baidu.sspweb.service.allknow.index.IndexConfig;
+import com.baidu.sspweb.service.allknow.index.KWIC;
+import com.baidu.sspweb.service.allknow.index.MonitoredIndex;
+import com.baidu.sspweb.service.allknow.index.PairEntry;
+import com.baidu.sspweb.service.allknow.index.ReIndexScheduler;
+
+/**
+ * 事件驱动的重建调度: 增量越过阈值时入队, 没有写入的用户不入队
+ *
+ * Created by whimsy on 15/12/19.
+ */
+public class ReIndexSchedulerTest {
+
+    private static final int THRESHOLD = 100;
+
+    private static IndexConfig config() {
+        IndexConfig config = new IndexConfig();
+        config.setPlainIndexThreshold(THRESHOLD);
+        config.setReindexThreads(1);
+        return config;
+    }
+
+    @Test
+    public void testFlushWhenDirty() throws InterruptedException {
+        ReIndexScheduler scheduler = new ReIndexScheduler(1);
+        try {
+            HotSwapKWIC index = new HotSwapKWIC(KWIC.DEFAULT_BUILDER, 1L, null, config(), scheduler);
+            for (int i = 0; i < THRESHOLD - 1; ++i) {
+                index.insertOrUpdate(new PairEntry((long) i, "条目" + i));
+            }
+            assertThat(scheduler.pendingCount(), is(0));
+
+            index.insertOrUpdate(new PairEntry((long) THRESHOLD, "条目" + THRESHOLD));
+            // 不需要等待轮询周期
+            for (int i = 0; i < 100 && index.segmentCount() == 0; ++i) {
+                Thread.sleep(50L);
+            }
+            assertThat(index.segmentCount(), is(1));
+            assertThat(index.find("条目").size(), is(THRESHOLD));
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void testIdleUsersNotQueued() {
+        MonitoredIndex index = new MonitoredIndex(config());
+        try {
+            for (long userId = 0; userId < 100000; ++userId) {
+                index.push(userId, userId, "条目" + userId);
+            }
+            assertThat(index.getScheduler().pendingCount(), is(0));
+            assertThat(index.query(99999L, "条目").size(), is(1));
+        } finally {
+            index.closeThreadPool();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.core.Is.is;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.baidu.sspweb.service.allknow.index.KWIC;
+import com.baidu.sspweb.service.allknow.index.PairEntry;
+import com.baidu.sspweb.service.allknow.index.SnapshotStore;
+import com.baidu.sspweb.service.allknow.index.suffix.ManberBuilder;
+import com.baidu.sspweb.service.allknow.index.suffix.SuffixArrayBuilder;
+import com.google.common.collect.Sets;
+
+/**
+ * KWIC 的常驻内存: 构建后每个字符约 8 字节(索引字串 2 + 后缀数组 4 + LCP-LR 2), 另加每个条目的边界和ID <br/>
+ * retainedSize 与从 KWIC 可达的数组一致, 说明构建期间的 rank/newrank 等临时数组没有被持有 <br/>
+ * 内存映射打开的 KWIC 只有分块目录在堆上
+ *
+ * Created by whimsy on 15/12/24.
+ */
+public class RetainedSizeTest extends AbstractDeliveryIndexTest {
+
+    /**
+     * 估算时计入, 但可达字节数不计的对象头
+     */
+    private static final long HEADERS = 1024L;
+
+    @Test
+    public void testBuilt() throws IllegalAccessException {
+        assertBuilt(KWIC.DEFAULT_BUILDER);
+        assertBuilt(new ManberBuilder());
+    }
+
+    @Test
+    public void testMapped() throws IOException, IllegalAccessException {
+        Collection<PairEntry> entries = getData("delivery_5106311_data_medium.txt").get(USER_ID);
+        File dir = Files.createTempDirectory("allknow-snapshot").toFile();
+        try {
+            SnapshotStore store = new SnapshotStore(dir, true);
+            store.write(USER_ID, 1L, new KWIC(entries));
+            KWIC mapped = store.open(USER_ID, 1L, KWIC.DEFAULT_BUILDER);
+
+            long chars = textLength(entries);
+            // 分块目录每 64 个字符 4 字节
+            assertThat(mapped.retainedSize(), lessThanOrEqualTo(chars / 16 + HEADERS));
+            assertSameAsReachable(mapped);
+        } finally {
+            TestFiles.deleteRecursively(dir);
+        }
+    }
+
+    private static void assertBuilt(SuffixArrayBuilder builder) throws IllegalAccessException {
+        Collection<PairEntry> entries = getData("delivery_5106311_data_medium.txt").get(USER_ID);
+        KWIC kwic = new KWIC(entries, builder);
+
+        long chars = textLength(entries);
+        // 条目边界 starts 4 字节, ID 8 字节, 分块目录每 64 个字符 4 字节
+        long overhead = 12L * (entries.size() + 1) + chars / 16 + HEADERS;
+        assertThat(kwic.retainedSize(), greaterThanOrEqualTo(8L * chars));
+        assertThat(kwic.retainedSize(), lessThanOrEqualTo(8L * chars + overhead));
+        assertSameAsReachable(kwic);
+    }
+
+    private static void assertSameAsReachable(KWIC kwic) throws IllegalAccessException {
+        long reachable = reachableBytes(kwic);
+        assertThat(reachable, lessThanOrEqualTo(kwic.retainedSize()));
+        assertThat(kwic.retainedSize() - reachable, lessThanOrEqualTo(HEADERS));
+    }
+
+    /**
+     * @return Manber 索引字串的长度: 起始哨兵 + 每个条目及其分隔符 + 结束哨兵
+     */
+    private static long textLength(Collection<PairEntry> entries) {
+        long length = 3;
+        for (PairEntry entry : entries) {
+            length += entry.getContent().length() + 1;
+        }
+        return length;
+    }
+
+    /**
+     * 从 root 可达的数组和堆上缓冲区的字节数, 不含对象头 <br/>
+     * 只深入本项目的类, String 按每个字符 2 字节计算, 内存映射的缓冲区不计
+     */
+    private static long reachableBytes(Object root) throws IllegalAccessException {
+        Set<Object> visited = Sets.newIdentityHashSet();
+        Deque<Object> pending = new ArrayDeque<Object>();
+        pending.push(root);
+        long bytes = 0;
+        while (!pending.isEmpty()) {
+            Object o = pending.pop();
+            if (!visited.add(o)) {
+                continue;
+            }
+            Class<?> c = o.getClass();
+            if (o instanceof String) {
+                bytes += 2L * ((String) o).length();
+            } else if (o instanceof Buffer) {
+                Buffer buffer = (Buffer) o;
+                if (buffer.hasArray()) {
+                    bytes += (long) buffer.capacity() * elementSize(buffer);
+                }
+            } else if (c.isArray()) {
+                if (c.getComponentType().isPrimitive()) {
+                    bytes += (long) Array.getLength(o) * primitiveSize(c.getComponentType());
+                } else {
+                    for (int i = 0; i < Array.getLength(o); i++) {
+                        Object element = Array.get(o, i);
+                        if (element != null) {
+                            pending.push(element);
+                        }
+                    }
+                }
+            } else if (c.getName().startsWith("com.baidu.") || c.getName().startsWith("edu.princeton.")) {
+                for (Class<?> k = c; k != null; k = k.getSuperclass()) {
+                    for (Field field : k.getDeclaredFields()) {
+                        if (Modifier.isStatic(field.getModifiers()) || field.getType().isPrimitive()) {
+                            continue;
+                        }
+                        field.setAccessible(true);
+                        Object value = field.get(o);
+                        if (value != null) {
+                            pending.push(value);
+                        }
+                    }
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private static int elementSize(Buffer buffer) {
+        if (buffer instanceof ByteBuffer) {
+            return 1;
+        } else if (buffer instanceof CharBuffer) {
+            return 2;
+        } else if (buffer instanceof IntBuffer) {
+            return 4;
+        }
+        return 8;
+    }
+
+    private static int primitiveSize(Class<?> type) {
+        if (type == byte.class || type == boolean.class) {
+            return 1;
+        } else if (type == char.class || type == short.class) {
+            return 2;
+        } else if (type == int.class || type == float.class) {
+            return 4;
+        }
+        return 8;
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.baidu.sspweb.service.allknow.index.HotSwapKWIC;
+import com.baidu.sspweb.service.allknow.index.KWIC;
+import com.baidu.sspweb.service.allknow.index.PairEntry;
+import com.baidu.sspweb.service.allknow.index.SnapshotStore;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Longs;
+
+/**
+ * 分段索引: 增量构建成段, 同层的段合并, 新的数据覆盖旧段中的数据
+ *
+ * Created by whimsy on 15/12/10.
+ */
+public class SegmentedIndexTest {
+
+    private static final int BATCH_SIZE = 1000;
+
+    private static final long USER_ID = 5106311L;
+
+    /**
+     * 第 batch 批数据: 新增 BATCH_SIZE - 1 条, 并更新 ID 为 0 的数据
+     */
+    private static List<PairEntry> batch(int batch) {
+        List<PairEntry> entries = Lists.newArrayList();
+        for (int i = 1; i < BATCH_SIZE; ++i) {
+            entries.add(new PairEntry((long) batch * BATCH_SIZE + i, "批次" + batch + "-条目" + i));
+        }
+        entries.add(new PairEntry(0L, "共享-批次" + batch));
+        return entries;
+    }
+
+    @Test
+    public void testFlushAndMerge() {
+        HotSwapKWIC index = new HotSwapKWIC();
+
+        for (int batch = 0; batch < 5; ++batch) {
+            index.batchLoad(batch(batch));
+        }
+
+        // 前4批合并成一段, 第5批单独一段
+        assertThat(index.segmentCount(), is(2));
+        assertThat(index.find("条目").size(), is(5 * (BATCH_SIZE - 1)));
+        assertThat(index.find("批次2-").size(), is(BATCH_SIZE - 1));
+
+        // ID 为 0 的数据以最新一批为准
+        List<PairEntry> shared = index.find("共享");
+        assertThat(shared.size(), is(1));
+        assertThat(shared.get(0).getContent(), is("共享-批次4"));
+        assertThat(index.find("共享-批次0").size(), is(0));
+
+        // 增量中的更新覆盖段中的数据
+        index.insertOrUpdate(new PairEntry(1L, "已更新"));
+        // 条目1, 条目10 ~ 条目19, 条目100 ~ 条目199, 除去已更新的条目1
+        assertThat(index.find("批次0-条目1").size(), is(110));
+        assertThat(index.find("已更新").size(), is(1));
+    }
+
+    @Test
+    public void testPagingAndCount() {
+        HotSwapKWIC index = new HotSwapKWIC();
+        for (int batch = 0; batch < 5; ++batch) {
+            index.batchLoad(batch(batch));
+        }
+        index.insertOrUpdate(new PairEntry(1L, "已更新"));
+        index.insertOrUpdate(new PairEntry(99999L, "批次9-条目1"));
+
+        // 条目 匹配的后缀多于条目数, 按条目顺序匹配; 其余按后缀数组区间
+        for (String query : new String[] {"条目", "条目1", "批次3-条目99", "共享", "不存在"}) {
+            List<PairEntry> all = index.find(query);
+            assertThat(index.count(query), is(all.size()));
+
+            for (int offset : new int[] {0, 1, 19, 1000, all.size()}) {
+                List<PairEntry> page = index.find(query, offset, 20);
+                List<PairEntry> expected = all.subList(Math.min(offset, all.size()),
+                        Math.min(offset + 20, all.size()));
+                assertThat(page.size(), is(expected.size()));
+                for (int i = 0; i < page.size(); ++i) {
+                    assertThat(page.get(i).getId(), is(expected.get(i).getId()));
+                    assertThat(page.get(i).getContent(), is(expected.get(i).getContent()));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBatchFind() {
+        HotSwapKWIC index = new HotSwapKWIC();
+        for (int batch = 0; batch < 5; ++batch) {
+            index.batchLoad(batch(batch));
+        }
+        index.insertOrUpdate(new PairEntry(1L, "已更新"));
+        index.insertOrUpdate(new PairEntry(99999L, "批次9-条目1"));
+        // 互相重叠的关键字: 一个关键字是另一个的后缀或子串
+        index.insertOrUpdate(new PairEntry(99998L, "ushers"));
+
+        List<String> queries = Lists.newArrayList("条目1", "批次9", "已更新", "共享", "不存在", "条目1",
+                "he", "she", "hers", "s", "");
+        Map<String, List<PairEntry>> res = index.find(queries);
+
+        assertThat(Lists.newArrayList(res.keySet()), is(Lists.newArrayList(Sets.newLinkedHashSet(queries))));
+        for (String query : res.keySet()) {
+            List<PairEntry> expected = index.find(query);
+            List<PairEntry> actual = res.get(query);
+            assertThat(query, actual.size(), is(expected.size()));
+            for (int i = 0; i < actual.size(); ++i) {
+                assertThat(actual.get(i).getId(), is(expected.get(i).getId()));
+                assertThat(actual.get(i).getContent(), is(expected.get(i).getContent()));
+            }
+        }
+        assertThat(res.get("hers").size(), is(1));
+    }
+
+    @Test
+    public void testDeltaGrams() {
+        HotSwapKWIC index = new HotSwapKWIC();
+        Map<Long, String> contents = Maps.newTreeMap();
+        // 只写增量, 部分ID被多次更新, 旧的内容不应再被查到
+        for (int i = 0; i < BATCH_SIZE / 2; ++i) {
+            long id = i % 300;
+            String content = (i % 7 == 0 ? "北京" : "上海") + "医院-" + i;
+            contents.put(id, content);
+            index.insertOrUpdate(new PairEntry(id, content));
+            // 建立 gram 倒排索引之前逐条扫描
+            if (i == 40) {
+                assertDeltaMatches(index, contents);
+            }
+        }
+        assertThat(index.segmentCount(), is(0));
+        assertDeltaMatches(index, contents);
+    }
+
+    private static void assertDeltaMatches(HotSwapKWIC index, Map<Long, String> contents) {
+        List<String> queries = Lists.newArrayList("北京医院", "上海", "医", "-1", "1", "院-4", "", "广州", "北海",
+                "京医院-7");
+        for (String query : queries) {
+            List<Long> expected = Lists.newArrayList();
+            for (Map.Entry<Long, String> entry : contents.entrySet()) {
+                if (entry.getValue().contains(query)) {
+                    expected.add(entry.getKey());
+                }
+            }
+            assertThat(query, Longs.asList(index.findIds(query)), is(expected));
+            assertThat(query, index.count(query), is(expected.size()));
+        }
+    }
+
+    @Test
+    public void testCountFromSuffixArray() {
+        HotSwapKWIC index = new HotSwapKWIC();
+        index.batchLoad(batch(0));
+
+        assertThat(index.segmentCount(), is(1));
+        assertThat(index.count("条目1"), is(111));
+        assertThat(index.count("条目999"), is(1));
+        assertThat(index.count("不存在"), is(0));
+    }
+
+    @Test
+    public void testQueryDuringPushStorm() throws InterruptedException {
+        final HotSwapKWIC index = new HotSwapKWIC();
+        index.batchLoad(batch(0));
+
+        final int pushes = 5 * BATCH_SIZE;
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < pushes; ++i) {
+                    index.insertOrUpdate(new PairEntry(BATCH_SIZE + (long) i, "风暴" + i));
+                    if (i % (BATCH_SIZE / 2) == 0) {
+                        index.tryReIndex();
+                    }
+                }
+            }
+        });
+        writer.start();
+
+        // 每次查询看到的都是某个完整的版本, 已写入的数据不会消失
+        int last = 0;
+        while (writer.isAlive()) {
+            int count = index.find("风暴").size();
+            assertThat(count >= last, is(true));
+            assertThat(index.find("条目").size(), is(BATCH_SIZE - 1));
+            last = count;
+        }
+        writer.join();
+        index.tryReIndex();
+        assertThat(index.find("风暴").size(), is(pushes));
+    }
+
+    @Test
+    public void testReopenSegments() throws IOException {
+        File dir = Files.createTempDirectory("allknow-segment").toFile();
+        try {
+            SnapshotStore store = new SnapshotStore(dir, true);
+
+            HotSwapKWIC index = new HotSwapKWIC(KWIC.DEFAULT_BUILDER, USER_ID, store);
+            for (int batch = 0; batch < 5; ++batch) {
+                index.batchLoad(batch(batch));
+            }
+
+            // 被合并的段的快照已删除
+            assertThat(store.segments().get(USER_ID).size(), is(2));
+
+            HotSwapKWIC reopened = HotSwapKWIC.open(KWIC.DEFAULT_BUILDER, USER_ID, store,
+                    store.segments().get(USER_ID));
+            assertThat(reopened.segmentCount(), is(2));
+            assertThat(reopened.find("条目").size(), is(5 * (BATCH_SIZE - 1)));
+            assertThat(reopened.find("共享").get(0).getContent(), is("共享-批次4"));
+        } finally {
+            TestFiles.deleteRecursively(dir);
+        }
+    }
+}
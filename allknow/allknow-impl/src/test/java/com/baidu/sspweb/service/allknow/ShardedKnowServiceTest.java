@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.baidu.sspweb.service.allknow.index.HotSwapKWIC;
+import com.baidu.sspweb.service.allknow.index.IndexConfig;
+import com.baidu.sspweb.service.allknow.index.OverflowPolicy;
+import com.baidu.sspweb.service.allknow.index.PairEntry;
+import com.baidu.sspweb.service.allknow.index.impl.DeliveryIndex;
+import com.baidu.sspweb.service.allknow.shard.IndexNode;
+import com.baidu.sspweb.service.allknow.shard.LoopbackNode;
+import com.baidu.sspweb.service.allknow.shard.ShardedKnowService;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * 分片服务: 多个进程内节点代替真实的机器, 结果与单个索引一致, 增加节点后只迁移部分用户 <br/>
+ * 迁移期间只有正在迁移的用户被阻塞
+ *
+ * Created by whimsy on 15/12/21.
+ */
+public class ShardedKnowServiceTest {
+
+    private static final int USERS = 200;
+
+    private static final String[] WORDS = {"北京", "上海", "医院", "学校"};
+
+    private final List<DeliveryIndex> indexes = Lists.newArrayList();
+
+    /**
+     * 阻塞重建线程, 保证增量不会在后台被构建成段
+     */
+    private final CountDownLatch reIndexBlocked = new CountDownLatch(1);
+
+    private DeliveryIndex reference;
+
+    private KnowService expected;
+
+    private ShardedKnowService sharded;
+
+    @Before
+    public void setUp() {
+        List<IndexNode> nodes = Lists.newArrayList();
+        for (int i = 0; i < 3; ++i) {
+            nodes.add(node("node-" + i));
+        }
+        sharded = new ShardedKnowService(nodes);
+        reference = new DeliveryIndex();
+        expected = new KnowServiceImpl(reference);
+
+        Multimap<Long, PairEntry> datas = ArrayListMultimap.create();
+        for (long userId = 0; userId < USERS; ++userId) {
+            for (long id = 0; id < 10; ++id) {
+                datas.put(userId, new PairEntry(userId * 100 + id, WORDS[(int) ((userId + id) % WORDS.length)] + id));
+            }
+        }
+        sharded.load(datas);
+        reference.load(datas);
+    }
+
+    @After
+    public void tearDown() {
+        reIndexBlocked.countDown();
+        sharded.close();
+        reference.close();
+        for (DeliveryIndex index : indexes) {
+            index.close();
+        }
+    }
+
+    private LoopbackNode node(String name) {
+        DeliveryIndex index = new DeliveryIndex();
+        indexes.add(index);
+        return new LoopbackNode(name, index);
+    }
+
+    /**
+     * 增量超过 5 条后查询跳过增量, 唯一的重建线程被阻塞, 增量一直保留
+     */
+    private LoopbackNode degradedNode(String name) {
+        IndexConfig config = new IndexConfig();
+        config.setPlainIndexThreshold(5);
+        config.setTooLongFactor(1);
+        config.setOverflowPolicy(OverflowPolicy.DEGRADE);
+        config.setReindexThreads(1);
+        config.setCacheBytes(0);
+        final CountDownLatch blocked = reIndexBlocked;
+        DeliveryIndex index = new DeliveryIndex(config) {
+            {
+                monitoredIndex.getScheduler().schedule(new HotSwapKWIC() {
+                    @Override
+                    public void tryReIndex() {
+                        try {
+                            blocked.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+            }
+        };
+        indexes.add(index);
+        return new LoopbackNode(name, index);
+    }
+
+    @Test
+    public void testRouteAndFanOut() {
+        // 每个用户只在所属节点上
+        int total = 0;
+        for (IndexNode node : sharded.nodes()) {
+            for (Long userId : node.userIds()) {
+                assertThat(sharded.nodeOf(userId), is(node));
+            }
+            assertThat(node.userIds().isEmpty(), is(false));
+            total += node.userIds().size();
+        }
+        assertThat(total, is(USERS));
+
+        sharded.push(7L, 99999L, "北京新条目");
+        reference.push(7L, 99999L, "北京新条目");
+        assertResults();
+    }
+
+    @Test
+    public void testAddNode() {
+        Map<Long, IndexNode> before = owners();
+
+        IndexNode added = node("node-3");
+        int moved = sharded.addNode(added);
+
+        // 只有所属节点变为新节点的用户被迁移, 其它用户不动
+        assertThat(moved, is(added.userIds().size()));
+        assertThat(moved > 0 && moved < USERS / 2, is(true));
+        for (Map.Entry<Long, IndexNode> entry : owners().entrySet()) {
+            if (entry.getValue() != added) {
+                assertThat(entry.getValue(), is(before.get(entry.getKey())));
+            }
+        }
+        int total = 0;
+        for (IndexNode node : sharded.nodes()) {
+            total += node.userIds().size();
+        }
+        assertThat(total, is(USERS));
+
+        Long movedUser = added.userIds().iterator().next();
+        sharded.push(movedUser, 99999L, "上海新条目");
+        reference.push(movedUser, 99999L, "上海新条目");
+        assertResults();
+    }
+
+    @Test
+    public void testAddNodeLocksOnlyMovingUser() throws Exception {
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicLong loadingUser = new AtomicLong(-1L);
+        DeliveryIndex index = new DeliveryIndex();
+        indexes.add(index);
+        // 导入第一个迁移的用户时阻塞, 直到 release
+        final IndexNode added = new LoopbackNode("node-3", index) {
+            @Override
+            public void load(Multimap<Long, PairEntry> datas) {
+                if (loadingUser.compareAndSet(-1L, datas.keySet().iterator().next())) {
+                    loading.countDown();
+                    Uninterruptibles.awaitUninterruptibly(release);
+                }
+                super.load(datas);
+            }
+        };
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            Future<Integer> moved = executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return sharded.addNode(added);
+                }
+            });
+            assertThat(loading.await(5, TimeUnit.SECONDS), is(true));
+            final Long movingUser = loadingUser.get();
+            final Long otherUser = movingUser == 0L ? 1L : 0L;
+
+            // 其它用户的写入和查询不等待迁移
+            reference.push(otherUser, 99998L, "北京新条目");
+            Future<List<Long>> other = executor.submit(new Callable<List<Long>>() {
+                @Override
+                public List<Long> call() {
+                    sharded.push(otherUser, 99998L, "北京新条目");
+                    return sharded.findDeliveryIds(otherUser, "北京");
+                }
+            });
+            assertThat(other.get(5, TimeUnit.SECONDS), is(expected.findDeliveryIds(otherUser, "北京")));
+
+            // 迁移中的用户的写入等到迁移完成后写入新节点, 不会丢失
+            reference.push(movingUser, 99999L, "上海新条目");
+            Future<?> push = executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    sharded.push(movingUser, 99999L, "上海新条目");
+                }
+            });
+            release.countDown();
+            push.get(5, TimeUnit.SECONDS);
+            assertThat(moved.get(5, TimeUnit.SECONDS), is(added.userIds().size()));
+            assertThat(sharded.nodeOf(movingUser), is(added));
+            assertResults();
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testAddNodeDegraded() {
+        List<IndexNode> nodes = Lists.newArrayList();
+        for (int i = 0; i < 3; ++i) {
+            nodes.add(degradedNode("degraded-" + i));
+        }
+        ShardedKnowService degraded = new ShardedKnowService(nodes);
+        try {
+            // 每个用户 10 条在段中, 10 条在增量中, 查询只能看到段
+            Multimap<Long, PairEntry> datas = ArrayListMultimap.create();
+            for (long userId = 0; userId < USERS; ++userId) {
+                for (long id = 0; id < 10; ++id) {
+                    datas.put(userId, new PairEntry(userId * 100 + id, "北京" + id));
+                }
+            }
+            degraded.load(datas);
+            for (long userId = 0; userId < USERS; ++userId) {
+                for (long id = 10; id < 20; ++id) {
+                    degraded.push(userId, userId * 100 + id, "北京" + id);
+                }
+            }
+            assertThat(degraded.findDeliveryIds(0L, "北京").size(), is(10));
+
+            IndexNode added = degradedNode("degraded-3");
+            assertThat(degraded.addNode(added) > 0, is(true));
+
+            // 迁移的用户带上了增量中的数据
+            for (Long userId : added.userIds()) {
+                assertThat(added.export(userId).size(), is(20));
+                assertThat(added.findDeliveryIds(userId, "北京").size(), is(20));
+            }
+        } finally {
+            reIndexBlocked.countDown();
+            degraded.close();
+        }
+    }
+
+    private Map<Long, IndexNode> owners() {
+        Map<Long, IndexNode> owners = Maps.newHashMap();
+        for (IndexNode node : sharded.nodes()) {
+            for (Long userId : node.userIds()) {
+                owners.put(userId, node);
+            }
+        }
+        return owners;
+    }
+
+    private void assertResults() {
+        List<Long> userIds = Lists.newArrayList();
+        for (long userId = USERS - 1; userId >= 0; --userId) {
+            userIds.add(userId);
+        }
+        for (String word : WORDS) {
+            assertThat(sharded.findDeliveryIds(userIds, word), is(expected.findDeliveryIds(userIds, word)));
+            for (Long userId : userIds) {
+                assertThat(sharded.findDeliveryIds(userId, word), is(expected.findDeliveryIds(userId, word)));
+                assertThat(sharded.countDeliveryIds(userId, word), is(expected.countDeliveryIds(userId, word)));
+            }
+        }
+    }
+}
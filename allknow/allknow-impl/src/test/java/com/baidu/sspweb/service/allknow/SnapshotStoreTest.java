@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.baidu.sspweb.service.allknow.index.HotSwapKWIC;
+import com.baidu.sspweb.service.allknow.index.IndexConfig;
+import com.baidu.sspweb.service.allknow.index.KWIC;
+import com.baidu.sspweb.service.allknow.index.MonitoredIndex;
+import com.baidu.sspweb.service.allknow.index.PairEntry;
+import com.baidu.sspweb.service.allknow.index.SnapshotStore;
+import com.baidu.sspweb.service.allknow.index.impl.DeliveryIndex;
+
+/**
+ * 索引快照的写入和内存映射打开
+ *
+ * Created by whimsy on 15/12/08.
+ */
+public class SnapshotStoreTest extends AbstractDeliveryIndexTest {
+
+    private static final String[] QUERIES = {"北京", "地区", "删除于2012", "-", "不存在"};
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("allknow-snapshot").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        TestFiles.deleteRecursively(dir);
+    }
+
+    private static KWIC mediumIndex() {
+        return new KWIC(getData("delivery_5106311_data_medium.txt").get(USER_ID));
+    }
+
+    private static void assertSameResult(KWIC expected, KWIC actual) {
+        for (String query : QUERIES) {
+            List<PairEntry> left = expected.find(query);
+            List<PairEntry> right = actual.find(query);
+            assertThat(right.size(), is(left.size()));
+            for (int i = 0; i < left.size(); ++i) {
+                assertThat(right.get(i).getId(), is(left.get(i).getId()));
+                assertThat(right.get(i).getContent(), is(left.get(i).getContent()));
+            }
+        }
+    }
+
+    @Test
+    public void testWriteAndOpen() throws IOException {
+        SnapshotStore store = new SnapshotStore(dir, true);
+        KWIC kwic = mediumIndex();
+        store.write(USER_ID, 1L, kwic);
+
+        assertThat(store.segments().size(), is(1));
+        KWIC mapped = store.open(USER_ID, 1L, KWIC.DEFAULT_BUILDER);
+        assertSameResult(kwic, mapped);
+
+        // 映射的索引可以作为旧索引继续合并
+        List<PairEntry> entries = Collections.singletonList(new PairEntry(1L, "北京地区"));
+        assertSameResult(new KWIC(kwic, entries), new KWIC(mapped, entries));
+    }
+
+    @Test(expected = IOException.class)
+    public void testCorrupted() throws IOException {
+        SnapshotStore store = new SnapshotStore(dir, true);
+        store.write(USER_ID, 1L, mediumIndex());
+
+        RandomAccessFile file = new RandomAccessFile(new File(dir, USER_ID + "-1.kwic"), "rw");
+        try {
+            file.seek(file.length() / 2);
+            int b = file.read();
+            file.seek(file.length() / 2);
+            file.write(b ^ 0xff);
+        } finally {
+            file.close();
+        }
+
+        store.open(USER_ID, 1L, KWIC.DEFAULT_BUILDER);
+    }
+
+    @Test
+    public void testReopenDeliveryIndex() {
+        deliveryIndex = new DeliveryIndex();
+        deliveryIndex.openSnapshots(dir, false);
+        // 超过阈值, batchLoad 时重建索引并写入快照
+        deliveryIndex.load(getData("delivery_5106311_data_medium.txt"));
+        deliveryIndex.close();
+
+        DeliveryIndex reopened = new DeliveryIndex();
+        reopened.openSnapshots(dir, false);
+        try {
+            assertThat(reopened.query(USER_ID, "北京").size(), is(37));
+            assertThat(reopened.query(USER_ID, "地区").size(), is(1));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void testRemoveStopsSnapshots() throws InterruptedException {
+        IndexConfig config = new IndexConfig();
+        config.setPlainIndexThreshold(10);
+        config.setReindexThreads(1);
+        MonitoredIndex index = new MonitoredIndex(config);
+        SnapshotStore store = new SnapshotStore(dir, false);
+        index.openSnapshots(store);
+
+        final CountDownLatch blocked = new CountDownLatch(1);
+        try {
+            for (long id = 0; id < 10; ++id) {
+                index.push(1L, id, "北京条目" + id);
+            }
+            index.reIndex(1L);
+            assertThat(store.segments().get(1L).size(), is(1));
+
+            // 唯一的重建线程被阻塞, 用户 1 的重建排在队列中
+            index.getScheduler().schedule(new HotSwapKWIC() {
+                @Override
+                public void tryReIndex() {
+                    try {
+                        blocked.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            awaitEmptyQueue(index);
+            for (long id = 10; id < 20; ++id) {
+                index.push(1L, id, "北京条目" + id);
+            }
+            assertThat(index.getScheduler().pendingCount(), is(1));
+
+            // 删除后排队的重建不再写快照
+            index.remove(1L);
+            blocked.countDown();
+            awaitEmptyQueue(index);
+        } finally {
+            blocked.countDown();
+            index.closeThreadPool();
+        }
+        assertThat(store.segments().containsKey(1L), is(false));
+    }
+
+    private static void awaitEmptyQueue(MonitoredIndex index) throws InterruptedException {
+        for (int i = 0; i < 100 && index.getScheduler().pendingCount() > 0; ++i) {
+            Thread.sleep(10L);
+        }
+    }
+}
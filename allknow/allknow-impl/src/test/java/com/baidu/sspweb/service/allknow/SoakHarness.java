@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.baidu.sspweb.service.allknow.index.LatencyHistogram;
+import com.baidu.sspweb.service.allknow.index.PairEntry;
+import com.baidu.sspweb.service.allknow.index.impl.DeliveryIndex;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * 热替换的持续压测: 读线程和写线程并发访问 DeliveryIndex, 控制线程通过 reIndex 确定地触发构建段 <br/>
+ * <br/>
+ * 1. WARMUP : 读写, 不记录 <br/>
+ * 2. BEFORE : 读写, 不构建段 <br/>
+ * 3. SWAP   : 读写, 控制线程不断轮流对每个用户 reIndex <br/>
+ * 4. AFTER  : 读写, 不构建段 <br/>
+ * <br/>
+ * 每次查询的耗时记录到查询开始时所在阶段的直方图, 参数由系统属性 allknow.soak.* 配置
+ *
+ * Created by whimsy on 15/12/24.
+ */
+public class SoakHarness {
+
+    static Logger logger = LoggerFactory.getLogger(SoakHarness.class);
+
+    /**
+     * 压测的阶段
+     */
+    public enum Phase {
+        WARMUP, BEFORE, SWAP, AFTER
+    }
+
+    private static final String[] KEYWORDS = {"北京", "地区", "删除于2012", "全国", "医院", "-", "癫痫", "不存在"};
+
+    /**
+     * 每个阶段的秒数
+     */
+    private final int phaseSeconds = Integer.getInteger("allknow.soak.phaseSeconds", 2);
+
+    private final int readers = Integer.getInteger("allknow.soak.readers", 4);
+
+    private final int writers = Integer.getInteger("allknow.soak.writers", 2);
+
+    /**
+     * 所有写线程合计的每秒写入数
+     */
+    private final int writesPerSecond = Integer.getInteger("allknow.soak.writesPerSecond", 1000);
+
+    private final long seed = Long.getLong("allknow.soak.seed", 42L);
+
+    private final DeliveryIndex index;
+
+    private final List<Long> userIds;
+
+    /**
+     * 写入的 content 从中轮流选取
+     */
+    private final List<PairEntry> contents;
+
+    private final Map<Phase, LatencyHistogram> latencies = new EnumMap<Phase, LatencyHistogram>(Phase.class);
+
+    private volatile Phase phase = Phase.WARMUP;
+
+    private volatile boolean stopped;
+
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    /**
+     * SWAP 阶段发布新段列表的次数, 不含增量为空时不构建段的 reIndex
+     */
+    private long swaps;
+
+    private final AtomicLong writes = new AtomicLong();
+
+    /**
+     * @param index 已导入数据的索引, 增量阈值应足够大, 不由后台线程构建段
+     * @param userIds 读写的用户
+     * @param contents 写入的 content
+     */
+    public SoakHarness(DeliveryIndex index, List<Long> userIds, List<PairEntry> contents) {
+        this.index = index;
+        this.userIds = userIds;
+        this.contents = contents;
+        for (Phase p : Phase.values()) {
+            latencies.put(p, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * 运行所有阶段, 读写线程中的异常在结束后抛出
+     *
+     * @return 各阶段的查询耗时
+     */
+    public Map<Phase, LatencyHistogram> run() throws Exception {
+        List<Thread> threads = Lists.newArrayList();
+        for (int i = 0; i < readers; i++) {
+            threads.add(new Thread(new Reader(seed + i), "soak-reader-" + i));
+        }
+        RateLimiter limiter = RateLimiter.create(writesPerSecond);
+        for (int i = 0; i < writers; i++) {
+            threads.add(new Thread(new Writer(seed + readers + i, limiter), "soak-writer-" + i));
+        }
+        for (Thread thread : threads) {
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        try {
+            for (Phase p : Phase.values()) {
+                phase = p;
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(phaseSeconds);
+                if (p == Phase.SWAP) {
+                    long published = index.getMetrics().getSwaps();
+                    while (System.nanoTime() < deadline && failure.get() == null) {
+                        for (Long userId : userIds) {
+                            index.reIndex(userId);
+                        }
+                    }
+                    swaps = index.getMetrics().getSwaps() - published;
+                } else {
+                    TimeUnit.NANOSECONDS.sleep(Math.max(deadline - System.nanoTime(), 0L));
+                }
+            }
+        } finally {
+            stopped = true;
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+
+        Throwable cause = failure.get();
+        if (cause != null) {
+            throw new IllegalStateException("Soak worker failed", cause);
+        }
+        for (Phase p : Phase.values()) {
+            logger.info("{} {}", p, latencies.get(p));
+        }
+        logger.info("swaps = {}, writes = {}", swaps, writes);
+        return latencies;
+    }
+
+    /**
+     * @return SWAP 阶段发布新段列表的次数, 包括构建和合并
+     */
+    public long getSwaps() {
+        return swaps;
+    }
+
+    /**
+     * @return 写入的条数
+     */
+    public long getWrites() {
+        return writes.get();
+    }
+
+    /**
+     * 按固定的随机序列查询, 记录每次查询的耗时
+     */
+    private class Reader implements Runnable {
+
+        private final Random random;
+
+        Reader(long seed) {
+            random = new Random(seed);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!stopped) {
+                    Long userId = userIds.get(random.nextInt(userIds.size()));
+                    String keyword = KEYWORDS[random.nextInt(KEYWORDS.length)];
+                    LatencyHistogram histogram = latencies.get(phase);
+                    long start = System.nanoTime();
+                    index.queryIds(userId, keyword);
+                    histogram.recordSince(start);
+                }
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            }
+        }
+    }
+
+    /**
+     * 按固定的随机序列写入, 一半覆盖已有的 ID, 一半是新 ID
+     */
+    private class Writer implements Runnable {
+
+        private final Random random;
+
+        private final RateLimiter limiter;
+
+        Writer(long seed, RateLimiter limiter) {
+            this.random = new Random(seed);
+            this.limiter = limiter;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!stopped) {
+                    limiter.acquire();
+                    Long userId = userIds.get(random.nextInt(userIds.size()));
+                    PairEntry entry = contents.get(random.nextInt(contents.size()));
+                    long id = random.nextBoolean() ? entry.getId() : -1L - writes.get();
+                    index.push(userId, id, entry.getContent());
+                    writes.incrementAndGet();
+                }
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.baidu.sspweb.service.allknow.index.suffix.ManberBuilder;
+import com.baidu.sspweb.service.allknow.index.suffix.ParallelBuilder;
+import com.baidu.sspweb.service.allknow.index.suffix.SAISBuilder;
+import com.baidu.sspweb.service.allknow.index.suffix.SuffixArrayBuilder;
+
+import edu.princeton.cs.algs4.Manber;
+
+/**
+ * 验证不同后缀数组构建算法的结果一致
+ *
+ * Created by whimsy on 15/12/02.
+ */
+public class SuffixArrayBuilderTest extends AbstractDeliveryIndexTest {
+
+    private SuffixArrayBuilder manber = new ManberBuilder();
+
+    private SuffixArrayBuilder sais = new SAISBuilder();
+
+    /**
+     * 阈值为0, 小文本也走并行构建
+     */
+    private ParallelBuilder parallel = new ParallelBuilder(ParallelBuilder.MIN_PARALLELISM, 0);
+
+    @After
+    public void tearDown() {
+        parallel.shutdown();
+    }
+
+    /**
+     * 按 KWIC 的格式拼接索引字串
+     */
+    private static String concat(List<String> contents) {
+        StringBuilder sb = new StringBuilder(Manber.START_SENTRY);
+        for (String content : contents) {
+            sb.append(content).append(Manber.WORD_SEPARATOR);
+        }
+        return sb.append(Manber.END_SENTRY).toString();
+    }
+
+    private void verify(String text) {
+        int[] expected = manber.build(text);
+        assertArrayEquals(expected, sais.build(text));
+        assertArrayEquals(expected, parallel.build(text));
+    }
+
+    @Test
+    public void testEmpty() {
+        verify(concat(Collections.<String>emptyList()));
+    }
+
+    @Test
+    public void testMediumData() {
+        List<String> contents = new ArrayList<String>();
+        for (String[] values : getRawData("delivery_5106311_data_medium.txt")) {
+            contents.add(values[2]);
+        }
+        verify(concat(contents));
+    }
+
+    @Test
+    public void testRepetitive() {
+        List<String> contents = new ArrayList<String>();
+        for (int i = 0; i < 3000; ++i) {
+            contents.add("癫痫--全国...删除于2012-04-12 13:10:13");
+        }
+        verify(concat(contents));
+    }
+
+    @Test
+    public void testLarge() {
+        Random random = new Random(20151204L);
+        List<String> contents = new ArrayList<String>();
+        for (int i = 0; i < 20000; ++i) {
+            if (random.nextBoolean()) {
+                contents.add("癫痫--全国...删除于2012-04-12 13:10:13");
+            } else {
+                contents.add("北京红旗精神医院-商务通" + random.nextInt(1000));
+            }
+        }
+        verify(concat(contents));
+    }
+
+    @Test
+    public void testRandom() {
+        Random random = new Random(20151202L);
+        for (int round = 0; round < 50; ++round) {
+            List<String> contents = new ArrayList<String>();
+            int size = random.nextInt(200);
+            for (int i = 0; i < size; ++i) {
+                StringBuilder sb = new StringBuilder();
+                int length = random.nextInt(20);
+                for (int j = 0; j < length; ++j) {
+                    sb.append("北京ab-".charAt(random.nextInt(5)));
+                }
+                contents.add(sb.toString());
+            }
+            verify(concat(contents));
+        }
+    }
+
+    /**
+     * 关闭后线程池不再接受构建
+     */
+    @Test(expected = RejectedExecutionException.class)
+    public void testShutdown() {
+        parallel.shutdown();
+        parallel.build(concat(Collections.singletonList("北京地区")));
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * 测试用的临时目录 <br/>
+ * deleteOnExit 不能删除非空目录, 测试结束时关闭索引和日志后由 deleteRecursively 删除
+ *
+ * Created by whimsy on 15/12/24.
+ */
+final class TestFiles {
+
+    private TestFiles() {
+    }
+
+    /**
+     * 删除目录及其中所有文件, 目录不存在时什么也不做
+     *
+     * @param dir 目录, 为 null 时什么也不做
+     */
+    static void deleteRecursively(File dir) throws IOException {
+        if (dir == null || !dir.exists()) {
+            return;
+        }
+        Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                if (e != null) {
+                    throw e;
+                }
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.baidu.sspweb.service.allknow.index.LoadStats;
+import com.baidu.sspweb.service.allknow.index.PairEntry;
+import com.baidu.sspweb.service.allknow.index.TsvLoader;
+import com.baidu.sspweb.service.allknow.index.impl.DeliveryIndex;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Resources;
+
+/**
+ * 流式导入: 与逐行 split 后导入的结果一致, 同一用户不连续的数据按文件顺序覆盖
+ *
+ * Created by whimsy on 15/12/23.
+ */
+public class TsvLoaderTest extends AbstractDeliveryIndexTest {
+
+    private static final String[] QUERIES = {"北京", "地区", "删除于2012", "-", "不存在", ""};
+
+    @Test
+    public void testSameAsSplit() throws IOException, URISyntaxException {
+        String filename = "delivery_5106311_data_medium.txt";
+        DeliveryIndex expected = new DeliveryIndex();
+        DeliveryIndex actual = new DeliveryIndex();
+        try {
+            expected.load(getData(filename));
+            File file = new File(Resources.getResource(filename).toURI());
+            LoadStats stats = new TsvLoader(actual, 4).load(file);
+
+            assertThat(stats.getBytes(), is(file.length()));
+            assertThat(stats.getSkipped(), is(0L));
+            assertThat(stats.getLines(), is((long) getRawData(filename).size()));
+            for (String query : QUERIES) {
+                assertThat(query, Arrays.toString(actual.queryIds(USER_ID, query)),
+                        is(Arrays.toString(expected.queryIds(USER_ID, query))));
+            }
+        } finally {
+            expected.close();
+            actual.close();
+        }
+    }
+
+    @Test
+    public void testInterleavedUsers() throws IOException {
+        File file = Files.createTempFile("allknow-load", ".txt").toFile();
+        file.deleteOnExit();
+        String data = "1\t10\t北京医院\r\n"
+                + "2\t20\t上海\ud83d\ude00\n"
+                + "bad line\n"
+                + "1\t10\t北京学校\n"
+                + "1\t11\t广州\t多余的列\n"
+                + "\n"
+                + "2\t21\t上海";
+        Files.write(file.toPath(), data.getBytes(Charsets.UTF_8));
+
+        DeliveryIndex index = new DeliveryIndex();
+        try {
+            LoadStats stats = new TsvLoader(index, 2).load(file);
+            assertThat(stats.getLines(), is(5L));
+            assertThat(stats.getSkipped(), is(1L));
+            assertThat(stats.getUsers(), is(2L));
+
+            assertThat(index.queryIds(1L, "医院").length, is(0));
+            assertThat(Arrays.toString(index.queryIds(1L, "北京学校")), is("[10]"));
+            assertThat(Arrays.toString(index.queryIds(1L, "广州")), is("[11]"));
+            assertThat(index.queryIds(1L, "多余").length, is(0));
+            assertThat(Arrays.toString(index.queryIds(2L, "上海")), is("[20, 21]"));
+            assertThat(Arrays.toString(index.queryIds(2L, "\ud83d\ude00")), is("[20]"));
+        } finally {
+            index.close();
+        }
+    }
+
+    /**
+     * 非法的 UTF-8 与 new String(bytes, UTF_8) 一样替换: 超长编码, 编码的代理项, 超出范围的码点, 不完整的字符
+     */
+    @Test
+    public void testMalformedUtf8() throws IOException {
+        List<byte[]> contents = Lists.newArrayList(
+                bytes(0xc0, 0x80), bytes(0xc1, 0xbf), bytes(0xe0, 0x80, 0x80), bytes(0xe0, 0x9f, 0xbf),
+                bytes(0xed, 0xa0, 0x80), bytes(0xed, 0xbf, 0xbf, 0x41), bytes(0xf0, 0x8f, 0xbf, 0xbf),
+                bytes(0xf4, 0x90, 0x80, 0x80), bytes(0xf5, 0x80, 0x80, 0x80), bytes(0x41, 0xe4, 0xb8, 0x41),
+                bytes(0xe4, 0xb8, 0xe4, 0xb8, 0xad), bytes(0xf0, 0x9f, 0x98), bytes(0xed, 0x9f, 0xbf));
+        // 不含分隔符和 EF, 解码结果不会出现索引使用的 \uffff
+        int[] alphabet = {0x41, 0x80, 0x8f, 0x90, 0x9f, 0xa0, 0xad, 0xb8, 0xbf, 0xc0, 0xc2, 0xdf, 0xe0, 0xe4,
+            0xed, 0xf0, 0xf4, 0xf5, 0xff};
+        Random random = new Random(42L);
+        for (int i = 0; i < 1000; ++i) {
+            byte[] content = new byte[1 + random.nextInt(8)];
+            for (int k = 0; k < content.length; ++k) {
+                content[k] = (byte) alphabet[random.nextInt(alphabet.length)];
+            }
+            contents.add(content);
+        }
+
+        File file = Files.createTempFile("allknow-load", ".txt").toFile();
+        DeliveryIndex index = new DeliveryIndex();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (int id = 0; id < contents.size(); ++id) {
+                out.write(("1\t" + id + "\t").getBytes(Charsets.UTF_8));
+                out.write(contents.get(id));
+                out.write('\n');
+            }
+            Files.write(file.toPath(), out.toByteArray());
+
+            new TsvLoader(index, 2).load(file);
+            List<PairEntry> entries = index.export(1L);
+            assertThat(entries.size(), is(contents.size()));
+            for (PairEntry entry : entries) {
+                byte[] content = contents.get(entry.getId().intValue());
+                assertThat(Arrays.toString(content), entry.getContent(), is(new String(content, Charsets.UTF_8)));
+            }
+        } finally {
+            index.close();
+            Files.delete(file.toPath());
+        }
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] res = new byte[values.length];
+        for (int i = 0; i < values.length; ++i) {
+            res[i] = (byte) values[i];
+        }
+        return res;
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2015 Baidu, Inc. All Rights Reserved.
+ */
+package com.baidu.sspweb.service.allknow;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.baidu.sspweb.service.allknow.index.Durability;
+import com.baidu.sspweb.service.allknow.index.IndexConfig;
+import com.baidu.sspweb.service.allknow.index.KWIC;
+import com.baidu.sspweb.service.allknow.index.MonitoredIndex;
+import com.baidu.sspweb.service.allknow.index.SnapshotStore;
+import com.google.common.collect.Lists;
+
+/**
+ * 预写日志: 崩溃后从快照和日志恢复所有写入, 写入快照后日志被截断
+ *
+ * Created by whimsy on 15/12/22.
+ */
+public class WriteAheadLogTest {
+
+    private static final int THRESHOLD = 100;
+
+    private File snapshotDir;
+
+    private File walDir;
+
+    /**
+     * 测试中打开的索引, 测试失败时也在删除目录前关闭
+     */
+    private final List<MonitoredIndex> opened = Lists.newArrayList();
+
+    @Before
+    public void setUp() throws IOException {
+        snapshotDir = Files.createTempDirectory("allknow-snapshot").toFile();
+        walDir = Files.createTempDirectory("allknow-wal").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (MonitoredIndex index : opened) {
+            index.closeThreadPool();
+        }
+        TestFiles.deleteRecursively(snapshotDir);
+        TestFiles.deleteRecursively(walDir);
+    }
+
+    private MonitoredIndex open(Durability durability) throws IOException {
+        return open(durability, new SnapshotStore(snapshotDir, true));
+    }
+
+    private MonitoredIndex open(Durability durability, SnapshotStore store) throws IOException {
+        IndexConfig config = new IndexConfig();
+        config.setPlainIndexThreshold(THRESHOLD);
+        config.setWalDurability(durability);
+        config.setWalFileBytes(4096);
+        MonitoredIndex index = new MonitoredIndex(config);
+        index.openSnapshots(store);
+        index.openLog(walDir);
+        opened.add(index);
+        return index;
+    }
+
+    @Test
+    public void testReplay() throws IOException {
+        MonitoredIndex index = open(Durability.SYNC);
+        for (long userId = 0; userId < 10; ++userId) {
+            for (long id = 0; id < 30; ++id) {
+                index.push(userId, id, "北京条目" + id);
+            }
+            index.push(userId, 0L, "上海条目0");
+        }
+        index.remove(9L);
+        // 不关闭日志, 模拟进程崩溃, 最后一个文件末尾有写了一半的记录
+        File[] files = walDir.listFiles();
+        Arrays.sort(files);
+        FileOutputStream torn = new FileOutputStream(files[files.length - 1], true);
+        torn.write(new byte[] {0, 0, 1, 0, 42});
+        torn.close();
+        index.closeThreadPool();
+
+        MonitoredIndex recovered = open(Durability.SYNC);
+        try {
+            for (long userId = 0; userId < 9; ++userId) {
+                assertThat(recovered.queryIds(userId, "北京").length, is(29));
+                assertThat(Arrays.toString(recovered.queryIds(userId, "上海")), is("[0]"));
+            }
+            assertThat(recovered.queryIds(9L, "北京").length, is(0));
+
+            // 恢复后继续写入, 再次恢复时仍然完整
+            recovered.push(1L, 100L, "广州条目");
+        } finally {
+            recovered.closeThreadPool();
+        }
+        MonitoredIndex again = open(Durability.NONE);
+        try {
+            assertThat(Arrays.toString(again.queryIds(1L, "广州")), is("[100]"));
+            assertThat(again.queryIds(1L, "北京").length, is(29));
+        } finally {
+            again.closeThreadPool();
+        }
+    }
+
+    @Test
+    public void testTruncateAfterSnapshot() throws IOException, InterruptedException {
+        MonitoredIndex index = open(Durability.GROUP);
+        try {
+            for (long id = 0; id < THRESHOLD * 10; ++id) {
+                index.push(1L, id, "北京条目" + id);
+            }
+            // 后台构建段并写入快照后截断, 只剩下还在增量中的写入所在的文件
+            for (int i = 0; i < 100 && walDir.listFiles().length > 3; ++i) {
+                Thread.sleep(50L);
+            }
+            assertThat(walDir.listFiles().length <= 3, is(true));
+        } finally {
+            index.closeThreadPool();
+        }
+
+        MonitoredIndex recovered = open(Durability.GROUP);
+        try {
+            assertThat(recovered.queryIds(1L, "北京").length, is(THRESHOLD * 10));
+        } finally {
+            recovered.closeThreadPool();
+        }
+    }
+
+    /**
+     * 写快照失败一次(比如磁盘暂时写满)后, 重试或合并写入快照, 日志仍然可以截断
+     */
+    @Test
+    public void testTruncateAfterSnapshotFailure() throws IOException, InterruptedException {
+        final AtomicInteger failures = new AtomicInteger(1);
+        SnapshotStore store = new SnapshotStore(snapshotDir, true) {
+            @Override
+            public void write(Long userId, long seq, KWIC kwic) throws IOException {
+                if (failures.getAndDecrement() > 0) {
+                    throw new IOException("No space left on device");
+                }
+                super.write(userId, seq, kwic);
+            }
+        };
+        MonitoredIndex index = open(Durability.GROUP, store);
+        try {
+            for (long id = 0; id < THRESHOLD * 10; ++id) {
+                index.push(1L, id, "北京条目" + id);
+            }
+            for (int i = 0; i < 100 && walDir.listFiles().length > 3; ++i) {
+                Thread.sleep(50L);
+            }
+            assertThat(failures.get() < 0, is(true));
+            assertThat(walDir.listFiles().length <= 3, is(true));
+        } finally {
+            index.closeThreadPool();
+        }
+
+        MonitoredIndex recovered = open(Durability.GROUP);
+        try {
+            assertThat(recovered.queryIds(1L, "北京").length, is(THRESHOLD * 10));
+        } finally {
+            recovered.closeThreadPool();
+        }
+    }
+}